@@ -0,0 +1,132 @@
+package net.razorvine.pickle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable registry of object constructors for the Python classes (module.name) that an Unpickler knows about.
+ * Unlike the static registry of {@link Unpickler#registerConstructor}, a registry is built once and then
+ * given to unpicklers ({@link Unpickler#Unpickler(ConstructorRegistry)}), so different unpicklers can use
+ * different mappings, and the registry can be shared by any number of threads without locking.
+ * The constructors are kept in a frozen open addressing table, lookups don't allocate.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public final class ConstructorRegistry {
+
+	private final String[] keys;		// module + "." + name
+	private final IObjectConstructor[] constructors;
+	private final int mask;
+
+	/**
+	 * Builds a registry. Not threadsafe, but the registries it builds are.
+	 */
+	public static final class Builder {
+		private final Map<String, IObjectConstructor> constructors = new LinkedHashMap<>();
+
+		private Builder(Map<String, IObjectConstructor> constructors) {
+			this.constructors.putAll(constructors);
+		}
+
+		/**
+		 * Register an object constructor for the given Python class, replacing an earlier registration.
+		 */
+		public Builder register(String module, String classname, IObjectConstructor constructor) {
+			if (constructor == null)
+				throw new IllegalArgumentException("constructor is null");
+			constructors.put(module + "." + classname, constructor);
+			return this;
+		}
+
+		/**
+		 * Remove the constructor of the given Python class, if any.
+		 */
+		public Builder unregister(String module, String classname) {
+			constructors.remove(module + "." + classname);
+			return this;
+		}
+
+		public ConstructorRegistry build() {
+			return new ConstructorRegistry(constructors);
+		}
+	}
+
+	private ConstructorRegistry(Map<String, IObjectConstructor> entries) {
+		int capacity = 2;
+		while (capacity < entries.size() * 2)
+			capacity *= 2;
+		keys = new String[capacity];
+		constructors = new IObjectConstructor[capacity];
+		mask = capacity - 1;
+		for (Map.Entry<String, IObjectConstructor> entry : entries.entrySet()) {
+			int i = spread(entry.getKey().hashCode()) & mask;
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = entry.getKey();
+			constructors[i] = entry.getValue();
+		}
+	}
+
+	/**
+	 * A builder that starts with no constructors at all.
+	 */
+	public static Builder builder() {
+		return new Builder(new LinkedHashMap<String, IObjectConstructor>());
+	}
+
+	/**
+	 * A builder that starts with the constructors of this registry.
+	 */
+	public Builder toBuilder() {
+		Map<String, IObjectConstructor> entries = new LinkedHashMap<>();
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null)
+				entries.put(keys[i], constructors[i]);
+		}
+		return new Builder(entries);
+	}
+
+	/**
+	 * A registry with the constructors that are currently in the static registry of the Unpickler:
+	 * the standard ones, plus the ones added with {@link Unpickler#registerConstructor}.
+	 */
+	public static ConstructorRegistry defaults() {
+		return new ConstructorRegistry(Unpickler.objectConstructors);
+	}
+
+	/**
+	 * The constructor registered for the given Python class, or null if there is none.
+	 */
+	public IObjectConstructor get(String module, String name) {
+		// the hash of module + "." + name, computed without concatenating the strings
+		int hash = module.hashCode() * 31 + '.';
+		for (int i = 0; i < name.length(); i++)
+			hash *= 31;
+		hash += name.hashCode();
+		int length = module.length() + 1 + name.length();
+		for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+			String key = keys[i];
+			if (key == null)
+				return null;
+			if (key.length() == length && key.startsWith(module) && key.charAt(module.length()) == '.'
+					&& key.regionMatches(module.length() + 1, name, 0, name.length()))
+				return constructors[i];
+		}
+	}
+
+	/**
+	 * The number of registered constructors.
+	 */
+	public int size() {
+		int size = 0;
+		for (String key : keys) {
+			if (key != null)
+				size++;
+		}
+		return size;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,51 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Interface for the source of the out-of-band buffers of a protocol 5 pickle
+ * (the buffers that Python passes to its buffer_callback when pickling).
+ * The unpickler asks for the next buffer every time it encounters a NEXT_BUFFER opcode.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public interface IBufferProvider {
+
+	/**
+	 * Return the next out-of-band buffer, or null if there are no more buffers.
+	 * The data of the buffer is between its position and limit.
+	 */
+	ByteBuffer nextBuffer() throws IOException;
+
+	/**
+	 * Provide the given buffers, in order.
+	 */
+	static IBufferProvider of(Iterable<ByteBuffer> buffers) {
+		final Iterator<ByteBuffer> iterator = buffers.iterator();
+		return () -> iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * Provide the contents of the given files, in order, by memory mapping them (read-only).
+	 * A file is only mapped when its buffer is requested.
+	 */
+	static IBufferProvider mapped(final Path... files) {
+		return new IBufferProvider() {
+			private int index = 0;
+
+			@Override
+			public ByteBuffer nextBuffer() throws IOException {
+				if (index >= files.length)
+					return null;
+				try (FileChannel channel = FileChannel.open(files[index++], StandardOpenOption.READ)) {
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+			}
+		};
+	}
+}
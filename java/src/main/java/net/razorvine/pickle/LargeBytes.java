@@ -0,0 +1,157 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only sequence of bytes that can be longer than the 2 GB that fit in a byte array, stored as a list
+ * of ByteBuffer chunks. The unpickler returns payloads of bytes and strings that are too large for a byte[] or
+ * String in this form (see {@link Unpickler#setLargeBytesThreshold}). When the pickle is read from a file with
+ * {@link Unpickler#load(java.nio.file.Path)}, the chunks are memory mapped regions of the file, so the payload
+ * is not copied onto the heap at all.
+ * For a string, the bytes are its UTF-8 encoding.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public final class LargeBytes {
+
+	/**
+	 * The largest byte array the JVM can reliably allocate.
+	 */
+	public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The default size of the chunks, 1 GB.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+	private final ByteBuffer[] chunks;
+	private final long[] starts;		// the index of the first byte of every chunk
+	private final long length;
+
+	/**
+	 * Create a sequence of the remaining bytes of the given buffers, in order. The buffers are not copied.
+	 */
+	public LargeBytes(List<ByteBuffer> chunks) {
+		this.chunks = new ByteBuffer[chunks.size()];
+		this.starts = new long[chunks.size()];
+		long total = 0;
+		for (int i = 0; i < this.chunks.length; i++) {
+			this.chunks[i] = chunks.get(i).slice().asReadOnlyBuffer();
+			this.starts[i] = total;
+			total += this.chunks[i].remaining();
+		}
+		this.length = total;
+	}
+
+	/**
+	 * Read a large payload from the unpickle input, in chunks of at most the given size.
+	 * The chunks are slices of the input where it supports that, see {@link UnpickleInput#readSlice(int)}.
+	 */
+	static LargeBytes read(UnpickleInput input, long length, int chunkSize) throws IOException {
+		List<ByteBuffer> chunks = new ArrayList<>((int) Math.min(1024, length / chunkSize + 1));
+		while (length > 0) {
+			int size = (int) Math.min(length, chunkSize);
+			chunks.add(input.readSlice(size));
+			length -= size;
+		}
+		return new LargeBytes(chunks);
+	}
+
+	/**
+	 * The number of bytes.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * The byte at the given index.
+	 */
+	public byte get(long index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("index " + index + " out of range 0.." + length);
+		int chunk = chunk(index);
+		return chunks[chunk].get((int) (index - starts[chunk]));
+	}
+
+	/**
+	 * Copy bytes, starting at the given index, into the given part of a byte array.
+	 */
+	public void get(long index, byte[] dest, int offset, int count) {
+		if (index < 0 || count < 0 || index > length - count)
+			throw new IndexOutOfBoundsException("range " + index + "+" + count + " out of range 0.." + length);
+		while (count > 0) {
+			int chunk = chunk(index);
+			ByteBuffer source = chunks[chunk].duplicate();
+			int start = (int) (index - starts[chunk]);
+			int size = Math.min(count, source.limit() - start);
+			((Buffer) source).position(start);
+			source.get(dest, offset, size);
+			index += size;
+			offset += size;
+			count -= size;
+		}
+	}
+
+	private int chunk(long index) {
+		int chunk = Arrays.binarySearch(starts, index);
+		if (chunk < 0)
+			return -chunk - 2;
+		while (chunk < chunks.length - 1 && starts[chunk + 1] == index)
+			chunk++;		// skip empty chunks
+		return chunk;
+	}
+
+	/**
+	 * Read-only views of the chunks.
+	 */
+	public List<ByteBuffer> getChunks() {
+		List<ByteBuffer> views = new ArrayList<>(chunks.length);
+		for (ByteBuffer chunk : chunks)
+			views.add(chunk.duplicate());
+		return Collections.unmodifiableList(views);
+	}
+
+	/**
+	 * Write all bytes to the channel, for instance a FileChannel.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer source = chunk.duplicate();
+			while (source.hasRemaining())
+				channel.write(source);
+		}
+	}
+
+	/**
+	 * Write all bytes to the stream.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(Channels.newChannel(out));
+	}
+
+	/**
+	 * Copy the bytes into a byte array, if they fit in one.
+	 */
+	public byte[] toByteArray() {
+		if (length > MAX_ARRAY_SIZE)
+			throw new PickleException("too large for a byte array: " + length + " bytes");
+		byte[] result = new byte[(int) length];
+		get(0, result, 0, result.length);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "LargeBytes(length=" + length + ", chunks=" + chunks.length + ")";
+	}
+}
@@ -0,0 +1,16 @@
+package net.razorvine.pickle;
+
+/**
+ * Exception thrown when the unpickler rejects a pickle because it exceeds one of its {@link UnpicklerLimits}.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class LimitExceededException extends PickleException {
+
+	private static final long serialVersionUID = 4418367370283916641L;
+
+	public LimitExceededException(String message) {
+		super(message);
+	}
+
+}
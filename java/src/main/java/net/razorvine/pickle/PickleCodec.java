@@ -0,0 +1,340 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe facade for pickling and unpickling.
+ * Picklers and unpicklers are not threadsafe, so this class borrows one from a pool for every call,
+ * and returns it to the pool afterwards. The pool never blocks: when it is empty a new instance is created,
+ * and when it is full a returned instance is simply discarded. So the number of idle instances kept
+ * is bounded, regardless of the number of threads using the codec. It doesn't use thread locals,
+ * so it works the same for platform threads and (many) virtual threads.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleCodec {
+
+	/**
+	 * Default maximum number of idle picklers and unpicklers kept in the pool.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Lock-free pool that keeps at most a fixed number of idle instances.
+	 */
+	private static class Pool<T> {
+		private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final int maxSize;
+
+		Pool(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		T poll() {
+			T instance = idle.poll();
+			if (instance != null)
+				size.decrementAndGet();
+			return instance;
+		}
+
+		void offer(T instance) {
+			if (size.incrementAndGet() <= maxSize)
+				idle.offer(instance);
+			else
+				size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The outcome of unpickling one pickle of a batch (see {@link #loadAll}): the object, or the error.
+	 */
+	public static final class Result {
+		private final Object value;
+		private final Exception error;
+
+		Result(Object value, Exception error) {
+			this.value = value;
+			this.error = error;
+		}
+
+		/**
+		 * Whether the pickle was unpickled without error.
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * The unpickled object, null if there was an error.
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * The error (a PickleException, IOException or other exception), null if there was none.
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * The unpickled object, or throw the error.
+		 */
+		public Object get() throws PickleException, IOException {
+			if (error instanceof IOException)
+				throw (IOException) error;
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			if (error != null)
+				throw new PickleException("unpickling failed", error);
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return error == null ? "Result(" + value + ")" : "Result(error=" + error + ")";
+		}
+	}
+
+	/**
+	 * Number of pickles a worker of {@link #loadAll} takes at a time.
+	 */
+	static final int BATCH_BLOCK_SIZE = 16;
+
+	private final Pool<Pickler> picklers;
+	private final Pool<Unpickler> unpicklers;
+	private final Supplier<Pickler> picklerFactory;
+	private final Supplier<Unpickler> unpicklerFactory;
+
+	/**
+	 * Create a codec that uses default picklers and unpicklers.
+	 */
+	public PickleCodec() {
+		this(DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Create a codec that uses default picklers and unpicklers, keeping at most poolSize idle instances of each.
+	 */
+	public PickleCodec(int poolSize) {
+		this(poolSize, Pickler::new, Unpickler::new);
+	}
+
+	/**
+	 * Create a codec that uses picklers and unpicklers created by the given factories,
+	 * keeping at most poolSize idle instances of each.
+	 * Use this to configure the instances, or to use your own subclasses.
+	 */
+	public PickleCodec(int poolSize, Supplier<Pickler> picklerFactory, Supplier<Unpickler> unpicklerFactory) {
+		if (poolSize < 1)
+			throw new IllegalArgumentException("pool size must be at least 1");
+		this.picklers = new Pool<>(poolSize);
+		this.unpicklers = new Pool<>(poolSize);
+		this.picklerFactory = picklerFactory;
+		this.unpicklerFactory = unpicklerFactory;
+	}
+
+	/**
+	 * Pickle a given object graph, returning the result as a byte array.
+	 */
+	public byte[] dumps(Object o) throws PickleException, IOException {
+		Pickler pickler = borrowPickler();
+		try {
+			return pickler.dumps(o);
+		} finally {
+			release(pickler);
+		}
+	}
+
+	/**
+	 * Pickle a given object graph, writing the result to the output stream.
+	 */
+	public void dump(Object o, OutputStream stream) throws PickleException, IOException {
+		Pickler pickler = borrowPickler();
+		try {
+			pickler.dump(o, stream);
+		} finally {
+			release(pickler);
+		}
+	}
+
+	/**
+	 * Read a pickled object representation from the given pickle data bytes.
+	 */
+	public Object loads(byte[] pickledata) throws PickleException, IOException {
+		return load(UnpickleInput.fromBytes(pickledata));
+	}
+
+	/**
+	 * Read a pickled object representation from the given buffer.
+	 */
+	public Object load(ByteBuffer buffer) throws PickleException, IOException {
+		return load(UnpickleInput.fromBuffer(buffer));
+	}
+
+	/**
+	 * Read a pickled object representation from the given input stream.
+	 * The stream is not closed.
+	 */
+	public Object load(InputStream stream) throws PickleException, IOException {
+		return load(UnpickleInput.fromStream(stream));
+	}
+
+	/**
+	 * Read a pickled object representation from the given unpickle input.
+	 */
+	public Object load(UnpickleInput source) throws PickleException, IOException {
+		Unpickler unpickler = borrowUnpickler();
+		try {
+			return unpickler.load(source);
+		} finally {
+			release(unpickler);
+		}
+	}
+
+	/**
+	 * Unpickle a batch of independent pickles, spread over the threads of the given executor.
+	 * The results are in the same order as the pickles. A pickle that can't be unpickled doesn't stop the others,
+	 * its result holds the error instead. The workers each use an unpickler from the pool for all the pickles
+	 * they take, so their stack, memo and caches are reused. The calling thread takes part in the work too,
+	 * and this method returns when all pickles are done. It only waits for workers that are running, so it can
+	 * also be called from a thread of the executor itself: when the executor has no free threads, the calling
+	 * thread does all the work.
+	 * With a ForkJoinPool the number of workers is its parallelism, otherwise the number of processors.
+	 */
+	public List<Result> loadAll(final List<byte[]> pickles, Executor executor) {
+		return loadAll(pickles.size(), index -> UnpickleInput.fromBytes(pickles.get(index)), executor);
+	}
+
+	/**
+	 * Unpickle a batch of independent pickles from buffers, spread over the threads of the given executor.
+	 * Each pickle is read from the buffer's position, the buffers themselves are not modified.
+	 * See {@link #loadAll(List, Executor)}.
+	 */
+	public List<Result> loadAllBuffers(final List<ByteBuffer> pickles, Executor executor) {
+		return loadAll(pickles.size(), index -> UnpickleInput.fromBuffer(pickles.get(index).duplicate()), executor);
+	}
+
+	private List<Result> loadAll(final int count, final IntFunction<UnpickleInput> inputs, Executor executor) {
+		final Result[] results = new Result[count];
+		final AtomicInteger next = new AtomicInteger();
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+		int workers = Math.max(1, Math.min(parallelism, (count + BATCH_BLOCK_SIZE - 1) / BATCH_BLOCK_SIZE));
+		final CountDownLatch blocksDone = new CountDownLatch((count + BATCH_BLOCK_SIZE - 1) / BATCH_BLOCK_SIZE);
+		final AtomicReference<Error> error = new AtomicReference<>();
+		Runnable worker = () -> loadBlocks(count, inputs, next, results, blocksDone, error);
+		try {
+			for (int i = 1; i < workers; i++)
+				executor.execute(worker);
+		} catch (RejectedExecutionException x) {
+			// the calling thread does the remaining work
+		}
+		worker.run();
+		// The calling thread only gets here when every block has been taken, so this only waits for the blocks that
+		// are being worked on by threads of the executor. Workers that didn't get a thread yet find nothing to do,
+		// so this doesn't deadlock when it is called from a thread of a saturated executor.
+		boolean interrupted = false;
+		while (true) {
+			try {
+				blocksDone.await();
+				break;
+			} catch (InterruptedException x) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		// only Errors get here, exceptions of the pickles are in their results
+		if (error.get() != null)
+			throw error.get();
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	/**
+	 * Take blocks of pickles and unpickle them, until there are none left.
+	 * Every block that is taken is counted down, also when it is skipped because of an earlier Error.
+	 */
+	private void loadBlocks(int count, IntFunction<UnpickleInput> inputs, AtomicInteger next, Result[] results,
+			CountDownLatch blocksDone, AtomicReference<Error> error) {
+		Unpickler unpickler = null;
+		try {
+			int start;
+			while ((start = next.getAndAdd(BATCH_BLOCK_SIZE)) < count) {
+				try {
+					if (error.get() != null)
+						continue;
+					if (unpickler == null)
+						unpickler = borrowUnpickler();
+					int end = Math.min(start + BATCH_BLOCK_SIZE, count);
+					for (int i = start; i < end; i++) {
+						try {
+							results[i] = new Result(unpickler.load(inputs.apply(i)), null);
+						} catch (Exception x) {
+							results[i] = new Result(null, x);
+						}
+					}
+				} catch (Error x) {
+					error.compareAndSet(null, x);
+				} finally {
+					blocksDone.countDown();
+				}
+			}
+		} finally {
+			if (unpickler != null)
+				release(unpickler);
+		}
+	}
+
+	/**
+	 * The number of idle picklers that are currently in the pool.
+	 */
+	public int idlePicklers() {
+		return picklers.size.get();
+	}
+
+	/**
+	 * The number of idle unpicklers that are currently in the pool.
+	 */
+	public int idleUnpicklers() {
+		return unpicklers.size.get();
+	}
+
+	protected Pickler borrowPickler() {
+		Pickler pickler = picklers.poll();
+		return pickler != null ? pickler : picklerFactory.get();
+	}
+
+	protected Unpickler borrowUnpickler() {
+		Unpickler unpickler = unpicklers.poll();
+		return unpickler != null ? unpickler : unpicklerFactory.get();
+	}
+
+	protected void release(Pickler pickler) {
+		pickler.reset();
+		pickler.out = null;		// don't keep the caller's stream alive
+		picklers.offer(pickler);
+	}
+
+	protected void release(Unpickler unpickler) {
+		unpickler.reset();
+		unpickler.reader = null;	// don't keep the caller's data alive
+		unpicklers.offer(unpickler);
+	}
+}
@@ -0,0 +1,293 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Non-blocking push decoder for a sequence of pickles, for instance read from a SocketChannel in an NIO event loop.
+ * Give it the bytes with {@link #feed(ByteBuffer)} as they arrive, in chunks of any size; it returns the objects
+ * of the pickles that were completed by the chunk. When a chunk ends in the middle of an opcode or its payload,
+ * the decoder keeps the partial opcode in its buffer and continues with it on the next feed. The opcodes that are
+ * complete are executed immediately, so only the incomplete tail of the input is buffered, never a whole pickle.
+ * Announced payload lengths are checked against the limits of the unpickler ({@link Unpickler#setLimits})
+ * before the payload is buffered, so use limits when the input is not trusted.
+ * The unpickler statistics ({@link Unpickler#setStats}) are not collected for pickles that are decoded this way.
+ * A decoder is not threadsafe; use one decoder per connection.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleDecoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024*1024;
+
+	// argument formats of the opcodes, used to determine whether an opcode has been received completely
+	private static final byte NO_ARGS = 0;
+	private static final byte ONE_LINE = -1;
+	private static final byte TWO_LINES = -2;
+	private static final byte LENGTH1 = -3;		// 1 byte length + payload
+	private static final byte LENGTH4 = -4;		// signed 4 byte length + payload
+	private static final byte ULENGTH4 = -5;	// unsigned 4 byte length + payload
+	private static final byte LENGTH8 = -6;		// 8 byte length + payload
+	private static final byte UNKNOWN = -7;
+	private static final byte[] ARGUMENTS = new byte[256];
+
+	static {
+		Arrays.fill(ARGUMENTS, UNKNOWN);
+		for (short opcode : new short[] { Opcodes.MARK, Opcodes.STOP, Opcodes.POP, Opcodes.POP_MARK, Opcodes.DUP, Opcodes.NONE,
+				Opcodes.REDUCE, Opcodes.APPEND, Opcodes.BUILD, Opcodes.DICT, Opcodes.EMPTY_DICT, Opcodes.APPENDS, Opcodes.LIST,
+				Opcodes.EMPTY_LIST, Opcodes.OBJ, Opcodes.SETITEM, Opcodes.TUPLE, Opcodes.EMPTY_TUPLE, Opcodes.SETITEMS,
+				Opcodes.BINPERSID, Opcodes.NEWOBJ, Opcodes.TUPLE1, Opcodes.TUPLE2, Opcodes.TUPLE3, Opcodes.NEWTRUE, Opcodes.NEWFALSE,
+				Opcodes.EMPTY_SET, Opcodes.ADDITEMS, Opcodes.FROZENSET, Opcodes.NEWOBJ_EX, Opcodes.STACK_GLOBAL, Opcodes.MEMOIZE,
+				Opcodes.NEXT_BUFFER, Opcodes.READONLY_BUFFER })
+			ARGUMENTS[opcode] = NO_ARGS;
+		for (short opcode : new short[] { Opcodes.BININT1, Opcodes.BINGET, Opcodes.BINPUT, Opcodes.PROTO, Opcodes.EXT1 })
+			ARGUMENTS[opcode] = 1;
+		for (short opcode : new short[] { Opcodes.BININT2, Opcodes.EXT2 })
+			ARGUMENTS[opcode] = 2;
+		for (short opcode : new short[] { Opcodes.BININT, Opcodes.LONG_BINGET, Opcodes.LONG_BINPUT, Opcodes.EXT4 })
+			ARGUMENTS[opcode] = 4;
+		for (short opcode : new short[] { Opcodes.BINFLOAT, Opcodes.FRAME })
+			ARGUMENTS[opcode] = 8;
+		for (short opcode : new short[] { Opcodes.FLOAT, Opcodes.INT, Opcodes.LONG, Opcodes.PERSID, Opcodes.STRING, Opcodes.UNICODE,
+				Opcodes.GET, Opcodes.PUT })
+			ARGUMENTS[opcode] = ONE_LINE;
+		for (short opcode : new short[] { Opcodes.GLOBAL, Opcodes.INST })
+			ARGUMENTS[opcode] = TWO_LINES;
+		for (short opcode : new short[] { Opcodes.SHORT_BINSTRING, Opcodes.SHORT_BINBYTES, Opcodes.SHORT_BINUNICODE, Opcodes.LONG1 })
+			ARGUMENTS[opcode] = LENGTH1;
+		for (short opcode : new short[] { Opcodes.BINSTRING, Opcodes.LONG4 })
+			ARGUMENTS[opcode] = LENGTH4;
+		for (short opcode : new short[] { Opcodes.BINUNICODE, Opcodes.BINBYTES })
+			ARGUMENTS[opcode] = ULENGTH4;
+		for (short opcode : new short[] { Opcodes.BINUNICODE8, Opcodes.BINBYTES8, Opcodes.BYTEARRAY8 })
+			ARGUMENTS[opcode] = LENGTH8;
+	}
+
+	/**
+	 * The buffer with the bytes that have been fed but not yet decoded.
+	 * Positions are continuous over all fed data, also when the buffer is compacted.
+	 */
+	static final class FeedInput extends UnpickleInput.ArrayInput {
+		FeedInput() {
+			super(new byte[INITIAL_BUFFER_SIZE], 0, 0);
+		}
+
+		void append(ByteBuffer chunk) {
+			int length = chunk.remaining();
+			if (buffer.length - limit < length) {
+				int available = limit - pos;
+				byte[] target = buffer;
+				if (available + length > buffer.length) {
+					if (available + length < 0)
+						throw new PickleException("pickle too large, can't buffer more than maxint");
+					target = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(available + (long) length, buffer.length * 2L))];
+				}
+				System.arraycopy(buffer, pos, target, 0, available);
+				buffer = target;
+				offset += pos;
+				limit = available;
+				pos = 0;
+			}
+			chunk.get(buffer, limit, length);
+			limit += length;
+		}
+
+		void release() {
+			if (pos == limit) {
+				offset += pos;
+				pos = limit = 0;
+				if (buffer.length > MAX_RETAINED_BUFFER_SIZE)
+					buffer = new byte[INITIAL_BUFFER_SIZE];
+			}
+		}
+
+		void clear() {
+			offset += pos;
+			pos = limit = 0;
+			frameEnd = -1;
+			if (buffer.length > MAX_RETAINED_BUFFER_SIZE)
+				buffer = new byte[INITIAL_BUFFER_SIZE];
+		}
+
+		@Override
+		public ByteBuffer readSlice(int length) throws IOException {
+			// the buffer is reused for the next chunks, so a slice can't share it
+			return ByteBuffer.wrap(readBytes(length)).asReadOnlyBuffer();
+		}
+	}
+
+	protected final Unpickler unpickler;
+	private final FeedInput input = new FeedInput();
+	private boolean started;		// the unpickler is in the middle of a pickle
+
+	/**
+	 * Create a decoder with a new unpickler with the default settings.
+	 */
+	public PickleDecoder() {
+		this(new Unpickler());
+	}
+
+	/**
+	 * Create a decoder that uses the given unpickler, so that it can be configured first
+	 * (constructor registry, limits, string cache, buffer provider).
+	 * The unpickler must not be used for anything else while the decoder is in use.
+	 */
+	public PickleDecoder(Unpickler unpickler) {
+		if (unpickler == null)
+			throw new IllegalArgumentException("unpickler is null");
+		this.unpickler = unpickler;
+	}
+
+	/**
+	 * Feed the next chunk of input to the decoder. All remaining bytes of the chunk are consumed.
+	 * Returns the objects of the pickles that were completed by this chunk, in order (an empty list if there were none).
+	 * If the input is not a valid pickle, or exceeds the limits of the unpickler, the exception is thrown and the
+	 * decoder is reset, discarding the rest of the buffered input (the stream can't be resynchronized after an error).
+	 */
+	public List<Object> feed(ByteBuffer chunk) throws PickleException, IOException {
+		input.append(chunk);
+		List<Object> values = Collections.emptyList();
+		try {
+			while (input.pos < input.limit) {
+				if (!started) {
+					unpickler.begin_load(input);
+					started = true;
+				}
+				if (!complete_opcode())
+					break;
+				Object value = unpickler.step(input.read());
+				if (value != Unpickler.NO_RETURN_VALUE) {
+					input.finish();
+					started = false;
+					if (values.isEmpty())
+						values = new ArrayList<>();
+					values.add(value);
+				}
+			}
+		} catch (IOException | RuntimeException x) {
+			reset();
+			throw x;
+		}
+		input.release();
+		return values;
+	}
+
+	/**
+	 * Same as {@link #feed(ByteBuffer)}, for a chunk in a byte array.
+	 */
+	public List<Object> feed(byte[] data, int offset, int length) throws PickleException, IOException {
+		return feed(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Whether the decoder is in the middle of a pickle, or has buffered bytes of one.
+	 * When this is false, the input so far consisted of complete pickles.
+	 */
+	public boolean isPending() {
+		return started || input.pos < input.limit;
+	}
+
+	/**
+	 * The number of bytes that have been fed but not yet decoded (the incomplete opcode at the end of the input).
+	 */
+	public int getBufferedBytes() {
+		return input.limit - input.pos;
+	}
+
+	/**
+	 * The total number of bytes that have been decoded.
+	 */
+	public long getPosition() {
+		return input.position();
+	}
+
+	/**
+	 * Signal the end of the input, for instance when the connection was closed.
+	 * Throws an IOException if the input ended in the middle of a pickle. The decoder is reset.
+	 */
+	public void finish() throws IOException {
+		boolean pending = isPending();
+		reset();
+		if (pending)
+			throw new IOException("premature end of file");
+	}
+
+	/**
+	 * Discard the partially decoded pickle and the buffered input, if any, to start with a fresh pickle.
+	 */
+	public void reset() {
+		input.clear();
+		if (started) {
+			started = false;
+			unpickler.reset();
+		}
+	}
+
+	/**
+	 * Whether the opcode at the current position has been received completely, with all of its arguments.
+	 * Lengths of payloads and lines are checked against the limits here, before they are buffered.
+	 */
+	private boolean complete_opcode() throws IOException {
+		byte[] b = input.buffer;
+		int p = input.pos;
+		int available = input.limit - p - 1;
+		int format = ARGUMENTS[b[p] & 0xff];
+		switch (format) {
+			case NO_ARGS:
+			case UNKNOWN:
+				return true;
+			case ONE_LINE:
+				return complete_lines(1);
+			case TWO_LINES:
+				return complete_lines(2);
+			case LENGTH1:
+				return available >= 1 && available - 1 >= (b[p+1] & 0xff);
+			case LENGTH4:
+			case ULENGTH4: {
+				if (available < 4)
+					return false;
+				long length = (b[p+1] & 0xff) | (b[p+2] & 0xff) << 8 | (b[p+3] & 0xff) << 16 | (b[p+4] & 0xffL) << 24;
+				if (format == LENGTH4 && length > Integer.MAX_VALUE)
+					return true;		// negative, the unpickler reports it
+				return complete_payload(length, available - 4);
+			}
+			case LENGTH8: {
+				if (available < 8)
+					return false;
+				long length = 0;
+				for (int i = 8; i > 0; i--)
+					length = length << 8 | (b[p+i] & 0xff);
+				if (length < 0)
+					return true;		// the unpickler reports it
+				return complete_payload(length, available - 8);
+			}
+			default:
+				return available >= format;
+		}
+	}
+
+	private boolean complete_payload(long length, int available) {
+		if (length <= available)
+			return true;
+		unpickler.check_length(length);
+		if (length > Integer.MAX_VALUE - 16)
+			throw new PickleException("pickle too large for the decoder, can't buffer more than maxint");
+		return false;
+	}
+
+	private boolean complete_lines(int lines) {
+		byte[] b = input.buffer;
+		int start = input.pos + 1;
+		for (int i = start; i < input.limit; i++) {
+			if (b[i] == '\n' && --lines == 0)
+				return true;
+		}
+		input.checkInputLimit(input.offset + input.limit);
+		return false;
+	}
+}
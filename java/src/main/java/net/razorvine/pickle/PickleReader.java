@@ -0,0 +1,495 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Low level pull parser for pickle data. Instead of building an object graph like the {@link Unpickler} does,
+ * it reports the structure of the pickle as a sequence of events, straight from the opcode stream.
+ * This allows you to pick a few values out of a pickle, gather statistics or transcode pickles,
+ * without having to construct all objects in it.
+ *
+ * The events follow the pickle virtual machine: values are pushed, containers are built from
+ * values that came before (possibly delimited by a MARK), and so on. Call {@link #next()} to advance
+ * to the next event and use the accessor methods to get the associated value. Accessors for values
+ * that don't belong to the current event return a default value (0, null...).
+ * The PROTO and FRAME opcodes are handled internally and are not reported.
+ * After the END event of a pickle, the reader continues with the next pickle in the input, if any.
+ *
+ * This class is NOT threadsafe!
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleReader {
+
+	/**
+	 * The events reported by the reader.
+	 */
+	public enum Event {
+		/** Python None. */
+		NONE,
+		/** A boolean, see {@link #booleanValue()}. */
+		BOOL,
+		/** An integer that fits in a long, see {@link #longValue()}. */
+		INT,
+		/** An integer that doesn't fit in a long, see {@link #bigIntegerValue()}. */
+		BIGINT,
+		/** A float, see {@link #doubleValue()}. */
+		FLOAT,
+		/** A (unicode or 8-bit) string, see {@link #stringValue()}. */
+		STRING,
+		/** A bytes or bytearray payload, see {@link #bytesValue()}. */
+		BYTES,
+		/** Start of a variable sized sequence of values (a MARK). */
+		MARK,
+		/** Discard the topmost value. */
+		POP,
+		/** Discard the values up to and including the topmost MARK. */
+		POP_MARK,
+		/** Duplicate the topmost value. */
+		DUP,
+		/** Start of a list; an empty list is pushed that values are appended to. */
+		START_LIST,
+		/** Start of a dict; an empty dict is pushed that items are set on. */
+		START_DICT,
+		/** Start of a set; an empty set is pushed that items are added to. */
+		START_SET,
+		/** A list is built from the values since the topmost MARK. */
+		LIST,
+		/** A tuple is built from the values since the topmost MARK, or from the last {@link #size()} values. */
+		TUPLE,
+		/** A dict is built from the key-value pairs since the topmost MARK. */
+		DICT,
+		/** A frozenset is built from the values since the topmost MARK. */
+		FROZENSET,
+		/** The topmost value is appended to the list below it. */
+		APPEND,
+		/** The values since the topmost MARK are appended to the list below the MARK. */
+		APPENDS,
+		/** The topmost key-value pair is set on the dict below it. */
+		SETITEM,
+		/** The key-value pairs since the topmost MARK are set on the dict below the MARK. */
+		SETITEMS,
+		/** The values since the topmost MARK are added to the set below the MARK. */
+		ADDITEMS,
+		/** A class or function reference, see {@link #module()} and {@link #name()}. */
+		GLOBAL,
+		/** A callable is called with the argument tuple on top of it. */
+		REDUCE,
+		/** A class is instantiated with the argument tuple on top of it. */
+		NEWOBJ,
+		/** A class is instantiated with the argument tuple and keyword dict on top of it. */
+		NEWOBJ_EX,
+		/** The state on top is applied to the object below it. */
+		BUILD,
+		/** A class instance is built from the values since the topmost MARK, see {@link #module()} and {@link #name()}. */
+		INST,
+		/** A class instance is built from the class and values since the topmost MARK. */
+		OBJ,
+		/** The topmost value is stored in the memo, see {@link #memoIndex()}. */
+		MEMO_PUT,
+		/** A value is fetched from the memo, see {@link #memoIndex()}. */
+		MEMO_GET,
+		/** A persistent id, given as a string, see {@link #stringValue()}. */
+		PERSID,
+		/** A persistent id, given by the topmost value. */
+		BINPERSID,
+		/** An out-of-band buffer is referenced (protocol 5). */
+		NEXT_BUFFER,
+		/** The topmost buffer is made read-only (protocol 5). */
+		READONLY_BUFFER,
+		/** End of the pickle. */
+		END
+	}
+
+	protected final UnpickleInput reader;
+	protected Event event;
+	protected long longValue;
+	protected double doubleValue;
+	protected BigInteger bigIntegerValue;
+	protected String stringValue;
+	protected ByteBuffer bytesValue;
+	protected String module;
+	protected String name;
+	protected int memoIndex;
+	protected int size;
+	protected int protocol;
+
+	private boolean inPickle;
+	private int memoCount;
+	private String previousString;	// last two string values, to be able to report the names for STACK_GLOBAL
+	private String lastString;
+
+	/**
+	 * Create a reader for the pickle data in the given unpickle input.
+	 */
+	public PickleReader(UnpickleInput source) {
+		this.reader = source;
+	}
+
+	/**
+	 * Create a reader for the pickle data in the given byte array.
+	 */
+	public PickleReader(byte[] pickledata) {
+		this(UnpickleInput.fromBytes(pickledata));
+	}
+
+	/**
+	 * Create a reader for the pickle data in the given stream.
+	 */
+	public PickleReader(InputStream stream) {
+		this(UnpickleInput.fromStream(stream));
+	}
+
+	/**
+	 * Advance to the next event.
+	 *
+	 * @return the next event, or null when the input ends after a complete pickle.
+	 * @throws IOException when the input ends halfway a pickle
+	 */
+	public Event next() throws PickleException, IOException {
+		clearValues();
+		while (true) {
+			int key = reader.read();
+			if (key == -1) {
+				if (inPickle)
+					throw new IOException("premature end of file");
+				event = null;
+				return null;
+			}
+			if (!inPickle) {
+				inPickle = true;
+				protocol = 0;
+			}
+			Event result = decode((short) key);
+			reader.checkFrame();
+			if (result != null) {
+				if (result == Event.STRING) {
+					previousString = lastString;
+					lastString = stringValue;
+				} else if (result != Event.MEMO_PUT) {
+					previousString = lastString = null;
+				}
+				if (result == Event.END) {
+					inPickle = false;
+					memoCount = 0;
+					reader.finish();
+				}
+				event = result;
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * The current event (the one that was last returned by {@link #next()}).
+	 */
+	public Event event() {
+		return event;
+	}
+
+	/**
+	 * The protocol version declared by the current pickle (0 if it didn't declare one).
+	 */
+	public int protocol() {
+		return protocol;
+	}
+
+	/**
+	 * The value of a BOOL event.
+	 */
+	public boolean booleanValue() {
+		return longValue != 0;
+	}
+
+	/**
+	 * The value of an INT or BOOL event.
+	 */
+	public long longValue() {
+		return longValue;
+	}
+
+	/**
+	 * The value of a FLOAT event.
+	 */
+	public double doubleValue() {
+		return doubleValue;
+	}
+
+	/**
+	 * The value of a BIGINT event (or of an INT event, converted).
+	 */
+	public BigInteger bigIntegerValue() {
+		if (bigIntegerValue == null && event == Event.INT)
+			return BigInteger.valueOf(longValue);
+		return bigIntegerValue;
+	}
+
+	/**
+	 * The value of a STRING or PERSID event.
+	 */
+	public String stringValue() {
+		return stringValue;
+	}
+
+	/**
+	 * The payload of a BYTES event, as a read-only buffer.
+	 * When reading from a byte array or a ByteBuffer this points directly into the source data.
+	 */
+	public ByteBuffer bytesValue() {
+		return bytesValue;
+	}
+
+	/**
+	 * The module of a GLOBAL or INST event.
+	 * For a GLOBAL that was encoded with STACK_GLOBAL, this is only known when the module name
+	 * was pushed as a literal string (and not fetched from the memo); otherwise it is null.
+	 */
+	public String module() {
+		return module;
+	}
+
+	/**
+	 * The name of a GLOBAL or INST event. See {@link #module()}.
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * The memo index of a MEMO_PUT or MEMO_GET event.
+	 */
+	public int memoIndex() {
+		return memoIndex;
+	}
+
+	/**
+	 * The number of values a TUPLE event is built from, or -1 if it is built from the values since the topmost MARK.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void clearValues() {
+		event = null;
+		longValue = 0;
+		doubleValue = 0.0;
+		bigIntegerValue = null;
+		stringValue = null;
+		bytesValue = null;
+		module = null;
+		name = null;
+		memoIndex = -1;
+		size = -1;
+	}
+
+	/**
+	 * Decode a single opcode. Returns null for opcodes that don't produce an event.
+	 */
+	protected Event decode(short key) throws PickleException, IOException {
+		switch (key) {
+		case Opcodes.MARK:
+			return Event.MARK;
+		case Opcodes.STOP:
+			return Event.END;
+		case Opcodes.POP:
+			return Event.POP;
+		case Opcodes.POP_MARK:
+			return Event.POP_MARK;
+		case Opcodes.DUP:
+			return Event.DUP;
+		case Opcodes.FLOAT:
+			doubleValue = Double.parseDouble(reader.readLine(true));
+			return Event.FLOAT;
+		case Opcodes.BINFLOAT:
+			doubleValue = reader.readDouble();
+			return Event.FLOAT;
+		case Opcodes.INT:
+			return number(Unpickler.parse_int(reader.readLine(true)));
+		case Opcodes.BININT:
+			longValue = reader.readInt4();
+			return Event.INT;
+		case Opcodes.BININT1:
+			longValue = reader.readUnsignedByte();
+			return Event.INT;
+		case Opcodes.BININT2:
+			longValue = reader.readInt2();
+			return Event.INT;
+		case Opcodes.LONG:
+			return number(Unpickler.parse_long(reader.readLine(false)));
+		case Opcodes.LONG1:
+			return number(PickleUtils.decode_long(reader.readBytes(reader.readUnsignedByte())));
+		case Opcodes.LONG4:
+			return number(PickleUtils.decode_long(reader.readBytes(checkLength(reader.readInt4()))));
+		case Opcodes.NONE:
+			return Event.NONE;
+		case Opcodes.NEWTRUE:
+			longValue = 1;
+			return Event.BOOL;
+		case Opcodes.NEWFALSE:
+			longValue = 0;
+			return Event.BOOL;
+		case Opcodes.STRING:
+			stringValue = Unpickler.parse_string(reader.readLine(false));
+			return Event.STRING;
+		case Opcodes.BINSTRING:
+			stringValue = PickleUtils.rawStringFromBytes(reader.readBytes(checkLength(reader.readInt4())));
+			return Event.STRING;
+		case Opcodes.SHORT_BINSTRING:
+			stringValue = PickleUtils.rawStringFromBytes(reader.readBytes(reader.readUnsignedByte()));
+			return Event.STRING;
+		case Opcodes.UNICODE:
+			stringValue = PickleUtils.decode_unicode_escaped(reader.readLine(false));
+			return Event.STRING;
+		case Opcodes.BINUNICODE:
+			stringValue = reader.readString(checkLength(reader.readInt4() & 0xffffffffL));		// unsigned
+			return Event.STRING;
+		case Opcodes.SHORT_BINUNICODE:
+			stringValue = reader.readString(reader.readUnsignedByte());
+			return Event.STRING;
+		case Opcodes.BINUNICODE8:
+			stringValue = reader.readString(checkLength(reader.readLong8()));
+			return Event.STRING;
+		case Opcodes.BINBYTES:
+			bytesValue = reader.readSlice(checkLength(reader.readInt4() & 0xffffffffL));		// unsigned
+			return Event.BYTES;
+		case Opcodes.SHORT_BINBYTES:
+			bytesValue = reader.readSlice(reader.readUnsignedByte());
+			return Event.BYTES;
+		case Opcodes.BINBYTES8:
+		case Opcodes.BYTEARRAY8:
+			bytesValue = reader.readSlice(checkLength(reader.readLong8()));
+			return Event.BYTES;
+		case Opcodes.EMPTY_LIST:
+			return Event.START_LIST;
+		case Opcodes.EMPTY_DICT:
+			return Event.START_DICT;
+		case Opcodes.EMPTY_SET:
+			return Event.START_SET;
+		case Opcodes.LIST:
+			return Event.LIST;
+		case Opcodes.DICT:
+			return Event.DICT;
+		case Opcodes.FROZENSET:
+			return Event.FROZENSET;
+		case Opcodes.TUPLE:
+			return Event.TUPLE;
+		case Opcodes.EMPTY_TUPLE:
+			size = 0;
+			return Event.TUPLE;
+		case Opcodes.TUPLE1:
+			size = 1;
+			return Event.TUPLE;
+		case Opcodes.TUPLE2:
+			size = 2;
+			return Event.TUPLE;
+		case Opcodes.TUPLE3:
+			size = 3;
+			return Event.TUPLE;
+		case Opcodes.APPEND:
+			return Event.APPEND;
+		case Opcodes.APPENDS:
+			return Event.APPENDS;
+		case Opcodes.SETITEM:
+			return Event.SETITEM;
+		case Opcodes.SETITEMS:
+			return Event.SETITEMS;
+		case Opcodes.ADDITEMS:
+			return Event.ADDITEMS;
+		case Opcodes.GLOBAL:
+			module = reader.readLine(false);
+			name = reader.readLine(false);
+			return Event.GLOBAL;
+		case Opcodes.STACK_GLOBAL:
+			module = previousString;
+			name = module != null ? lastString : null;
+			return Event.GLOBAL;
+		case Opcodes.INST:
+			module = reader.readLine(false);
+			name = reader.readLine(false);
+			return Event.INST;
+		case Opcodes.OBJ:
+			return Event.OBJ;
+		case Opcodes.REDUCE:
+			return Event.REDUCE;
+		case Opcodes.NEWOBJ:
+			return Event.NEWOBJ;
+		case Opcodes.NEWOBJ_EX:
+			return Event.NEWOBJ_EX;
+		case Opcodes.BUILD:
+			return Event.BUILD;
+		case Opcodes.GET:
+			memoIndex = Integer.parseInt(reader.readLine(false), 10);
+			return Event.MEMO_GET;
+		case Opcodes.BINGET:
+			memoIndex = reader.readUnsignedByte();
+			return Event.MEMO_GET;
+		case Opcodes.LONG_BINGET:
+			memoIndex = reader.readInt4();
+			return Event.MEMO_GET;
+		case Opcodes.PUT:
+			return memoPut(Integer.parseInt(reader.readLine(false), 10));
+		case Opcodes.BINPUT:
+			return memoPut(reader.readUnsignedByte());
+		case Opcodes.LONG_BINPUT:
+			return memoPut(reader.readInt4());
+		case Opcodes.MEMOIZE:
+			return memoPut(memoCount);
+		case Opcodes.PERSID:
+			stringValue = reader.readLine(false);
+			return Event.PERSID;
+		case Opcodes.BINPERSID:
+			return Event.BINPERSID;
+		case Opcodes.NEXT_BUFFER:
+			return Event.NEXT_BUFFER;
+		case Opcodes.READONLY_BUFFER:
+			return Event.READONLY_BUFFER;
+		case Opcodes.PROTO:
+			protocol = reader.readUnsignedByte();
+			if (protocol > Unpickler.HIGHEST_PROTOCOL)
+				throw new PickleException("unsupported pickle protocol: " + protocol);
+			return null;
+		case Opcodes.FRAME:
+			reader.startFrame(reader.readLong8());
+			return null;
+		case Opcodes.EXT1:
+		case Opcodes.EXT2:
+		case Opcodes.EXT4:
+			throw new PickleException("Unimplemented opcode EXT1/EXT2/EXT4 encountered. Don't use extension codes when pickling via copyreg.add_extension() to avoid this error.");
+		default:
+			throw new InvalidOpcodeException("invalid pickle opcode: " + key);
+		}
+	}
+
+	/**
+	 * Check a payload length read from the input, before the payload itself is read.
+	 */
+	private static int checkLength(long length) {
+		if (length < 0)
+			throw new PickleException("invalid negative length: " + length);
+		if (length > Integer.MAX_VALUE)
+			throw new PickleException("pickle too large, can't read more than maxint");
+		return (int) length;
+	}
+
+	private Event number(Object value) {
+		if (value instanceof Boolean) {
+			longValue = (Boolean) value ? 1 : 0;
+			return Event.BOOL;
+		}
+		if (value instanceof BigInteger) {
+			bigIntegerValue = (BigInteger) value;
+			return Event.BIGINT;
+		}
+		longValue = ((Number) value).longValue();
+		return Event.INT;
+	}
+
+	private Event memoPut(int index) {
+		memoIndex = index;
+		memoCount++;
+		return Event.MEMO_PUT;
+	}
+}
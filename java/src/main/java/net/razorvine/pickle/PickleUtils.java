@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Utility stuff for dealing with pickle data streams.
@@ -23,20 +26,24 @@ public abstract class PickleUtils {
 	 * read a line of text, possibly including the terminating LF char
 	 */
 	public static String readline(InputStream input, boolean includeLF) throws IOException {
-		StringBuilder sb = new StringBuilder();
+		byte[] line = new byte[64];
+		int length = 0;
 		while (true) {
 			int c = input.read();
 			if (c == -1) {
-				if (sb.length() == 0)
+				if (length == 0)
 					throw new IOException("premature end of file");
 				break;
 			}
-			if (c != '\n' || includeLF)
-				sb.append((char) c);
+			if (c != '\n' || includeLF) {
+				if (length == line.length)
+					line = Arrays.copyOf(line, length * 2);
+				line[length++] = (byte) c;
+			}
 			if (c == '\n')
 				break;
 		}
-		return sb.toString();
+		return new String(line, 0, length, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -78,6 +85,20 @@ public abstract class PickleUtils {
 		}
 	}
 
+	/**
+	 * Get the contents of a bytes object as a byte array. The object is either a byte[], which is returned as is,
+	 * or a ByteBuffer (when the unpickler returns zero-copy bytes), of which the remaining bytes are copied.
+	 */
+	public static byte[] toBytes(Object bytes) {
+		if(bytes instanceof ByteBuffer) {
+			ByteBuffer buffer = ((ByteBuffer) bytes).duplicate();
+			byte[] result = new byte[buffer.remaining()];
+			buffer.get(result);
+			return result;
+		}
+		return (byte[]) bytes;
+	}
+
 	/**
 	 * Convert a couple of bytes into the corresponding integer number.
 	 * Can deal with 2-bytes unsigned int and 4-bytes signed int.
@@ -287,11 +308,31 @@ public abstract class PickleUtils {
 	 * encoding
 	 */
 	public static String rawStringFromBytes(byte[] data) {
-		StringBuilder str = new StringBuilder(data.length);
-		for (byte b : data) {
-			str.append((char) (b & 0xff));
+		return new String(data, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Strings up to this many bytes are checked for pure ASCII, to be converted directly.
+	 * Longer strings go straight to the JDK's UTF-8 decoder, which has its own (vectorized) ASCII handling
+	 * that is faster than a byte by byte check for those.
+	 */
+	private static final int ASCII_CHECK_MAX_LENGTH = 24;
+
+	/**
+	 * Decode a String from UTF-8 encoded bytes.
+	 * Short strings that are pure ASCII, such as most dict keys, are converted directly
+	 * without going through the UTF-8 decoder.
+	 */
+	public static String decodeUtf8(byte[] data, int offset, int length) {
+		if (length <= ASCII_CHECK_MAX_LENGTH) {
+			int end = offset + length;
+			int i = offset;
+			while (i < end && data[i] >= 0)
+				i++;
+			if (i == end)
+				return new String(data, offset, length, StandardCharsets.ISO_8859_1);	// ASCII is the same in Latin-1
 		}
-		return str.toString();
+		return new String(data, offset, length, StandardCharsets.UTF_8);
 	}
 
 	/**
@@ -14,6 +14,7 @@ import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Pickle an object graph into a Python-compatible pickle stream. For
@@ -68,13 +69,18 @@ public class Pickler {
 	 * Registry of picklers for custom classes, to be able to not just pickle simple built in datatypes.
 	 * You can add to this via {@link Pickler#registerCustomPickler}
 	 */
-	protected static final Map<Class<?>, IObjectPickler> customPicklers= new HashMap<>();
+	protected static final Map<Class<?>, IObjectPickler> customPicklers= new ConcurrentHashMap<>();
 
 	/**
 	 * Registry of deconstructors for custom classes, to be able to pickle custom classes and also reconstruct.
 	 * them using {@link Unpickler#registerConstructor}. can add to this via {@link Pickler#registerCustomDeconstructor}
 	 */
-	protected static Map<Class<?>, IObjectDeconstructor> customDeconstructors =new HashMap<Class<?>, IObjectDeconstructor>();
+	protected static Map<Class<?>, IObjectDeconstructor> customDeconstructors =new ConcurrentHashMap<Class<?>, IObjectDeconstructor>();
+
+	/**
+	 * The custom picklers and deconstructors used by this pickler, null to use the static registry.
+	 */
+	protected PicklerRegistry picklerRegistry;
 
 	/**
 	 * Use memoization or not. This saves pickle size, but can only create pickles of objects that are hashable.
@@ -92,6 +98,31 @@ public class Pickler {
 	 */
 	protected HashMap<Integer, Memo> memo;  // maps object's identity hash to (object, memo index)
 
+	/**
+	 * Default for the number of memo entries whose allocated space is kept between dumps.
+	 */
+	public static final int DEFAULT_RETAINED_CAPACITY = 65536;
+
+	/**
+	 * Default for the size in bytes of the {@link #dumps} output buffer that is kept between dumps.
+	 */
+	public static final int DEFAULT_RETAINED_BUFFER_SIZE = 1024*1024;
+
+	/**
+	 * The number of memo entries whose allocated space is kept between dumps.
+	 */
+	protected int retainedCapacity = DEFAULT_RETAINED_CAPACITY;
+
+	/**
+	 * The size in bytes of the {@link #dumps} output buffer that is kept between dumps.
+	 */
+	protected int retainedBufferSize = DEFAULT_RETAINED_BUFFER_SIZE;
+
+	/**
+	 * Output buffer of {@link #dumps}, kept for reuse.
+	 */
+	private ByteArrayOutputStream dumpsBuffer;
+
 	/**
 	 * Create a Pickler.
 	 */
@@ -125,10 +156,44 @@ public class Pickler {
 	 */
 	public void close() throws IOException {
 		memo = null;
+		dumpsBuffer = null;
 		out.flush();
 		out.close();
 	}
 
+	/**
+	 * Set the high-water marks for the memory kept between dumps.
+	 * The memo table and the output buffer of {@link #dumps} keep their allocated space for reuse by the next dump,
+	 * unless they had grown beyond the given number of memo entries or buffer size in bytes; then they are released.
+	 */
+	public void setRetainedCapacity(int memoEntries, int bufferSize) {
+		this.retainedCapacity = memoEntries;
+		this.retainedBufferSize = bufferSize;
+	}
+
+	/**
+	 * Empty the memo table, so the pickler can be reused for another dump.
+	 * Its allocated space is kept, up to the retained capacity (see {@link #setRetainedCapacity(int, int)}).
+	 * This is done automatically at the start and at the end of every dump.
+	 */
+	public void reset() {
+		if(memo!=null) {
+			if(memo.size() > retainedCapacity)
+				memo = null;
+			else
+				memo.clear();
+		}
+		recurse = 0;
+	}
+
+	/**
+	 * Use the custom picklers and deconstructors of the given registry, instead of the ones in the static registry
+	 * of the Pickler ({@link #registerCustomPickler}, {@link #registerCustomDeconstructor}). Null to use the static registry again.
+	 */
+	public void setPicklerRegistry(PicklerRegistry registry) {
+		this.picklerRegistry = registry;
+	}
+
 	/**
 	 * Register additional object picklers for custom classes.
 	 * If you register an interface or abstract base class, it means the pickler is used for
@@ -153,10 +218,18 @@ public class Pickler {
 	 * Pickle a given object graph, returning the result as a byte array.
 	 */
 	public byte[] dumps(Object o) throws PickleException, IOException {
-		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ByteArrayOutputStream bo = dumpsBuffer;
+		dumpsBuffer = null;
+		if(bo==null)
+			bo = new ByteArrayOutputStream();
+		else
+			bo.reset();
 		dump(o, bo);
 		bo.flush();
-		return bo.toByteArray();
+		byte[] result = bo.toByteArray();
+		if(bo.size() <= retainedBufferSize)
+			dumpsBuffer = bo;
+		return result;
 	}
 
 	/**
@@ -164,17 +237,17 @@ public class Pickler {
 	 */
 	public void dump(Object o, OutputStream stream) throws IOException, PickleException {
 		out = stream;
-		recurse = 0;
-		if(useMemo)
+		reset();
+		if(useMemo && memo==null)
 			memo = new HashMap<>();
 		out.write(Opcodes.PROTO);
 		out.write(PROTOCOL);
 		save(o);
-		memo = null;  // get rid of the memo table
-		out.write(Opcodes.STOP);
-		out.flush();
 		if(recurse!=0)  // sanity check
 			throw new PickleException("recursive structure error, please report this problem");
+		reset();  // don't keep the pickled objects alive via the memo table
+		out.write(Opcodes.STOP);
+		out.flush();
 	}
 
 	/**
@@ -420,6 +493,9 @@ public class Pickler {
 	 * @return null (if no custom pickler found) or a pickler registered for this class (via {@link Pickler#registerCustomPickler})
 	 */
 	protected IObjectPickler getCustomPickler(Class<?> t) {
+		if(picklerRegistry!=null) {
+			return picklerRegistry.getPickler(t);
+		}
 		IObjectPickler pickler = customPicklers.get(t);
 		if(pickler!=null) {
 			return pickler;		// exact match
@@ -443,6 +519,9 @@ public class Pickler {
 	 * @return null (if no custom deconstructor found) or a deconstructor registered for this class (via {@link Pickler#registerCustomDeconstructor})
 	 */
 	protected IObjectDeconstructor getCustomDeconstructor(Class<?> t) {
+		if(picklerRegistry!=null) {
+			return picklerRegistry.getDeconstructor(t);
+		}
 		return customDeconstructors.get(t);
 	}
 
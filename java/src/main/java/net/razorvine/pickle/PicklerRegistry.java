@@ -0,0 +1,160 @@
+package net.razorvine.pickle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable registry of the custom picklers and deconstructors that a Pickler uses.
+ * Unlike the static registry of {@link Pickler#registerCustomPickler} and {@link Pickler#registerCustomDeconstructor},
+ * a registry is built once and then given to picklers ({@link Pickler#setPicklerRegistry}), so different picklers
+ * can use different mappings, and the registry can be shared by any number of threads without locking.
+ * Exact class matches are found in a frozen open addressing table.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public final class PicklerRegistry {
+
+	private final ClassTable picklers;
+	private final Class<?>[] picklerClasses;		// in registration order, to match interfaces and base classes
+	private final IObjectPickler[] picklerValues;
+	private final ClassTable deconstructors;
+
+	/**
+	 * Builds a registry. Not threadsafe, but the registries it builds are.
+	 */
+	public static final class Builder {
+		private final Map<Class<?>, IObjectPickler> picklers = new LinkedHashMap<>();
+		private final Map<Class<?>, IObjectDeconstructor> deconstructors = new LinkedHashMap<>();
+
+		private Builder(Map<Class<?>, IObjectPickler> picklers, Map<Class<?>, IObjectDeconstructor> deconstructors) {
+			this.picklers.putAll(picklers);
+			this.deconstructors.putAll(deconstructors);
+		}
+
+		/**
+		 * Register a pickler for a custom class, see {@link Pickler#registerCustomPickler} for how it is matched.
+		 */
+		public Builder registerCustomPickler(Class<?> clazz, IObjectPickler pickler) {
+			if (pickler == null)
+				throw new IllegalArgumentException("pickler is null");
+			picklers.put(clazz, pickler);
+			return this;
+		}
+
+		/**
+		 * Register a deconstructor for a custom class, see {@link Pickler#registerCustomDeconstructor}.
+		 */
+		public Builder registerCustomDeconstructor(Class<?> clazz, IObjectDeconstructor deconstructor) {
+			if (deconstructor == null)
+				throw new IllegalArgumentException("deconstructor is null");
+			deconstructors.put(clazz, deconstructor);
+			return this;
+		}
+
+		public PicklerRegistry build() {
+			return new PicklerRegistry(picklers, deconstructors);
+		}
+	}
+
+	/**
+	 * Frozen open addressing table with classes as keys.
+	 */
+	private static final class ClassTable {
+		private final Class<?>[] keys;
+		private final Object[] values;
+		private final int mask;
+
+		ClassTable(Map<Class<?>, ?> entries) {
+			int capacity = 2;
+			while (capacity < entries.size() * 2)
+				capacity *= 2;
+			keys = new Class<?>[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+			for (Map.Entry<Class<?>, ?> entry : entries.entrySet()) {
+				int i = spread(entry.getKey().hashCode()) & mask;
+				while (keys[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = entry.getKey();
+				values[i] = entry.getValue();
+			}
+		}
+
+		Object get(Class<?> key) {
+			for (int i = spread(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+				Class<?> k = keys[i];
+				if (k == key)
+					return values[i];
+				if (k == null)
+					return null;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		<V> void copyTo(Map<Class<?>, V> target) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != null)
+					target.put(keys[i], (V) values[i]);
+			}
+		}
+
+		private static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	private PicklerRegistry(Map<Class<?>, IObjectPickler> picklers, Map<Class<?>, IObjectDeconstructor> deconstructors) {
+		this.picklers = new ClassTable(picklers);
+		this.picklerClasses = picklers.keySet().toArray(new Class<?>[0]);
+		this.picklerValues = picklers.values().toArray(new IObjectPickler[0]);
+		this.deconstructors = new ClassTable(deconstructors);
+	}
+
+	/**
+	 * A builder that starts with no picklers and deconstructors at all.
+	 */
+	public static Builder builder() {
+		return new Builder(new LinkedHashMap<Class<?>, IObjectPickler>(), new LinkedHashMap<Class<?>, IObjectDeconstructor>());
+	}
+
+	/**
+	 * A builder that starts with the picklers and deconstructors of this registry.
+	 */
+	public Builder toBuilder() {
+		Map<Class<?>, IObjectPickler> picklerEntries = new LinkedHashMap<>();
+		for (int i = 0; i < picklerClasses.length; i++)
+			picklerEntries.put(picklerClasses[i], picklerValues[i]);
+		Map<Class<?>, IObjectDeconstructor> deconstructorEntries = new LinkedHashMap<>();
+		deconstructors.copyTo(deconstructorEntries);
+		return new Builder(picklerEntries, deconstructorEntries);
+	}
+
+	/**
+	 * A registry with the picklers and deconstructors that are currently in the static registry of the Pickler.
+	 */
+	public static PicklerRegistry defaults() {
+		return new PicklerRegistry(Pickler.customPicklers, Pickler.customDeconstructors);
+	}
+
+	/**
+	 * The pickler for the given class: one registered for exactly this class, or else the first registered one
+	 * for an interface or base class of it. Null if there is none.
+	 */
+	public IObjectPickler getPickler(Class<?> t) {
+		IObjectPickler pickler = (IObjectPickler) picklers.get(t);
+		if (pickler != null)
+			return pickler;
+		for (int i = 0; i < picklerClasses.length; i++) {
+			if (picklerClasses[i].isAssignableFrom(t))
+				return picklerValues[i];
+		}
+		return null;
+	}
+
+	/**
+	 * The deconstructor registered for exactly the given class, or null if there is none.
+	 */
+	public IObjectDeconstructor getDeconstructor(Class<?> t) {
+		return (IObjectDeconstructor) deconstructors.get(t);
+	}
+}
@@ -0,0 +1,141 @@
+package net.razorvine.pickle;
+
+import java.util.Arrays;
+
+/**
+ * Cache of decoded strings, keyed by their raw UTF-8 bytes, used by the {@link Unpickler} to
+ * return a single String instance for short strings that occur many times in the pickle data
+ * (such as the keys of dicts in a list of records). This saves both decoding time and memory.
+ * The cache is a fixed size hash table where a new entry simply replaces the one in its slot,
+ * so its memory use is bounded.
+ *
+ * This class is NOT threadsafe!
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class StringCache {
+
+	/**
+	 * How the unpickler uses the string cache.
+	 */
+	public enum Mode {
+		/** No string cache is used. */
+		OFF,
+		/** The cache is cleared at the start of every load. */
+		PER_LOAD,
+		/** The cache is kept across loads. */
+		SHARED
+	}
+
+	/**
+	 * Default number of entries in the cache.
+	 */
+	public static final int DEFAULT_SIZE = 1024;
+
+	/**
+	 * Default maximum length in bytes of the strings that are cached.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 64;
+
+	private final byte[][] keys;
+	private final String[] values;
+	private final int mask;
+	private final int maxLength;
+	private boolean empty = true;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create a string cache with the default size and maximum string length.
+	 */
+	public StringCache() {
+		this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Create a string cache with the given number of entries (rounded up to a power of two),
+	 * for strings up to the given length in bytes.
+	 */
+	public StringCache(int size, int maxLength) {
+		if (size < 1 || size > 1 << 30)
+			throw new IllegalArgumentException("invalid cache size");
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+			capacity <<= 1;
+		keys = new byte[capacity][];
+		values = new String[capacity];
+		mask = capacity - 1;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Maximum length in bytes of the strings that are cached.
+	 */
+	public int maxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Get the string for the given UTF-8 encoded bytes, decoding and caching it if it wasn't cached already.
+	 * Strings longer than the maximum length are simply decoded, and are not counted as hit or miss.
+	 */
+	public String get(byte[] data, int offset, int length) {
+		if (length > maxLength)
+			return PickleUtils.decodeUtf8(data, offset, length);
+		int hash = length;
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + data[i];
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		byte[] key = keys[slot];
+		if (key != null && key.length == length && equalBytes(key, data, offset)) {
+			hits++;
+			return values[slot];
+		}
+		misses++;
+		String value = PickleUtils.decodeUtf8(data, offset, length);
+		keys[slot] = Arrays.copyOfRange(data, offset, offset + length);
+		values[slot] = value;
+		empty = false;
+		return value;
+	}
+
+	private static boolean equalBytes(byte[] key, byte[] data, int offset) {
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != data[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove all cached strings. The hit and miss counters are not affected.
+	 */
+	public void clear() {
+		if (!empty) {
+			Arrays.fill(keys, null);
+			Arrays.fill(values, null);
+			empty = true;
+		}
+	}
+
+	/**
+	 * The number of strings that were returned from the cache.
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * The number of strings that had to be decoded because they were not in the cache.
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Set the hit and miss counters back to zero.
+	 */
+	public void resetCounters() {
+		hits = misses = 0;
+	}
+}
@@ -0,0 +1,746 @@
+package net.razorvine.pickle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source of pickle data for the {@link Unpickler}.
+ * The input keeps its own buffer and read position, so opcodes and their fixed-width
+ * arguments are decoded in place, without a stream call or a temporary array for every value.
+ * Use one of the static factory methods to create an input for a byte array, a stream,
+ * a ByteBuffer or a memory mapped file.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public abstract class UnpickleInput {
+
+	/**
+	 * Default size of the read buffer used for streams.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Default size of the regions of a file that are memory mapped at a time.
+	 */
+	public static final int DEFAULT_MAP_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * Frames up to this size are read from the underlying stream in one go.
+	 */
+	public static final int MAX_FRAME_PREFETCH = 16*1024*1024;
+
+	/**
+	 * Input position where the current protocol 4 frame ends, -1 when not in a frame.
+	 */
+	long frameEnd = -1;
+
+	/**
+	 * Cache for decoded strings, null if not used.
+	 */
+	StringCache stringCache;
+
+	/**
+	 * Input position that may not be read beyond (see {@link UnpicklerLimits#getMaxInputSize()}).
+	 */
+	long inputLimit = Long.MAX_VALUE;
+
+	/**
+	 * Frames up to this size are read ahead (see {@link UnpicklerLimits#getMaxAllocation()}).
+	 */
+	int maxPrefetch = MAX_FRAME_PREFETCH;
+
+	/**
+	 * Create an input that reads directly from the given byte array.
+	 */
+	public static UnpickleInput fromBytes(byte[] data) {
+		return new ArrayInput(data, 0, data.length);
+	}
+
+	/**
+	 * Create an input that reads directly from a region of the given byte array.
+	 */
+	public static UnpickleInput fromBytes(byte[] data, int offset, int length) {
+		if(offset<0 || length<0 || offset+length>data.length)
+			throw new IndexOutOfBoundsException("invalid offset/length");
+		return new ArrayInput(data, offset, length);
+	}
+
+	/**
+	 * Create a buffered input that reads from the given stream.
+	 */
+	public static UnpickleInput fromStream(InputStream stream) {
+		return new StreamInput(stream, DEFAULT_BUFFER_SIZE, stream.markSupported());
+	}
+
+	/**
+	 * Create a buffered input that reads from the given stream, using a read buffer of the given size.
+	 * If the stream supports mark/reset, data is read ahead in chunks of this size and the bytes
+	 * that were read beyond the end of the pickle are given back to the stream by {@link #finish()}.
+	 * Otherwise, only the exact number of bytes that is needed is read from the stream.
+	 */
+	public static UnpickleInput fromStream(InputStream stream, int bufferSize) {
+		if(bufferSize<8)
+			throw new IllegalArgumentException("buffer size must be at least 8");
+		return new StreamInput(stream, bufferSize, stream.markSupported());
+	}
+
+	/**
+	 * Create a buffered input that reads from the given stream, and always reads ahead in chunks of the buffer size,
+	 * also when the stream doesn't support mark/reset. This needs far fewer read calls on streams such as
+	 * FileInputStream and socket streams, but the bytes that are read beyond the end of a pickle can't be given
+	 * back to such a stream: they stay in this input. So use it only when all further pickles are read through
+	 * this same input, or when nothing else is read from the stream afterwards.
+	 */
+	public static UnpickleInput fromStreamReadAhead(InputStream stream, int bufferSize) {
+		if(bufferSize<8)
+			throw new IllegalArgumentException("buffer size must be at least 8");
+		return new StreamInput(stream, bufferSize, true);
+	}
+
+	/**
+	 * Create an input that decodes directly from the remaining bytes of the given buffer
+	 * (heap, direct or memory mapped). The position of the buffer is advanced past the pickle
+	 * once it has been read completely, its limit and byte order are left alone.
+	 */
+	public static UnpickleInput fromBuffer(ByteBuffer buffer) {
+		return new BufferInput(buffer);
+	}
+
+	/**
+	 * Create an input that decodes from the given file channel by memory mapping it, starting at its current position.
+	 * Files larger than the window size are mapped one region at a time.
+	 * The channel must stay open until the unpickling is done.
+	 */
+	public static UnpickleInput fromMappedFile(FileChannel channel) throws IOException {
+		return new MappedFileInput(channel, DEFAULT_MAP_WINDOW_SIZE);
+	}
+
+	/**
+	 * Create an input that decodes from the given file channel by memory mapping it, starting at its current position.
+	 * The file is mapped in regions of (at most) the given size.
+	 * The channel must stay open until the unpickling is done.
+	 */
+	public static UnpickleInput fromMappedFile(FileChannel channel, int windowSize) throws IOException {
+		if(windowSize<8)
+			throw new IllegalArgumentException("window size must be at least 8");
+		return new MappedFileInput(channel, windowSize);
+	}
+
+	/**
+	 * Read a single unsigned byte, returns -1 if the end of the input has been reached.
+	 */
+	public abstract int read() throws IOException;
+
+	/**
+	 * Read a single unsigned byte.
+	 */
+	public abstract int readUnsignedByte() throws IOException;
+
+	/**
+	 * Read a 2-byte unsigned int (little endian).
+	 */
+	public abstract int readInt2() throws IOException;
+
+	/**
+	 * Read a 4-byte signed int (little endian).
+	 */
+	public abstract int readInt4() throws IOException;
+
+	/**
+	 * Read an 8-byte signed long (little endian).
+	 */
+	public abstract long readLong8() throws IOException;
+
+	/**
+	 * Read an 8-byte double (big endian, as used by the BINFLOAT opcode).
+	 */
+	public abstract double readDouble() throws IOException;
+
+	/**
+	 * Read a number of bytes into the specified location in an existing byte array.
+	 */
+	public abstract void readInto(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Read a line of text, possibly including the terminating LF char.
+	 * Every byte is converted directly to the corresponding char, no character encoding is used.
+	 */
+	public abstract String readLine(boolean includeLF) throws IOException;
+
+	/**
+	 * Read a string of the given number of UTF-8 encoded bytes.
+	 */
+	public abstract String readString(int length) throws IOException;
+
+	/**
+	 * The number of bytes that have been consumed from this input so far.
+	 */
+	public abstract long position();
+
+	/**
+	 * Read a number of bytes.
+	 */
+	public byte[] readBytes(int length) throws IOException {
+		byte[] result = new byte[length];
+		readInto(result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Read a number of bytes, where the number is given as a long (from an 8-byte length field).
+	 */
+	public byte[] readBytes(long length) throws IOException {
+		if(length>Integer.MAX_VALUE)
+			throw new PickleException("pickle too large, can't read more than maxint");
+		return readBytes((int)length);
+	}
+
+	/**
+	 * Read a number of bytes as a read-only ByteBuffer.
+	 * Inputs that read from a byte array, a ByteBuffer or a mapped file return a slice that points
+	 * directly into the source, without copying the bytes. Other inputs return a copy.
+	 */
+	public ByteBuffer readSlice(int length) throws IOException {
+		return ByteBuffer.wrap(readBytes(length)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Read a number of bytes as a read-only ByteBuffer, where the number is given as a long (from an 8-byte length field).
+	 */
+	public ByteBuffer readSlice(long length) throws IOException {
+		if(length>Integer.MAX_VALUE)
+			throw new PickleException("pickle too large, can't read more than maxint");
+		return readSlice((int)length);
+	}
+
+	/**
+	 * Start a new frame (protocol 4 FRAME opcode) of the given length, that begins at the current position.
+	 * The whole frame is fetched from the underlying source at once, when it is not too large.
+	 */
+	public void startFrame(long length) throws IOException {
+		if(frameEnd >= 0)
+			throw new PickleException("beginning of a new frame before end of current frame");
+		if(length < 0)
+			throw new PickleException("invalid frame length: " + length);
+		frameEnd = position() + length;
+		if(length > 0 && length <= maxPrefetch)
+			prefetch((int)length);
+		else if(length == 0)
+			frameEnd = -1;
+	}
+
+	/**
+	 * Check that the opcode that was just read did not cross the end of the current frame.
+	 */
+	public final void checkFrame() {
+		if(frameEnd >= 0) {
+			long position = position();
+			if(position >= frameEnd) {
+				if(position > frameEnd)
+					throw new PickleException("pickle opcode crosses frame boundary");
+				frameEnd = -1;
+			}
+		}
+	}
+
+	/**
+	 * Try to make the given number of bytes available in memory, so they can be decoded without further reads.
+	 */
+	void prefetch(int length) throws IOException {
+	}
+
+	/**
+	 * Check that the input up to the given position may be read.
+	 */
+	final void checkInputLimit(long position) {
+		if(position > inputLimit)
+			throw new LimitExceededException("pickle exceeds the maximum input size");
+	}
+
+	/**
+	 * Decode a string from UTF-8 encoded bytes, via the string cache if it is used.
+	 */
+	final String decodeString(byte[] data, int offset, int length) {
+		if(stringCache != null)
+			return stringCache.get(data, offset, length);
+		return PickleUtils.decodeUtf8(data, offset, length);
+	}
+
+	/**
+	 * Called by the unpickler when it has read a complete pickle.
+	 * Buffered inputs use this to give back data that was read beyond the end of the pickle, where possible.
+	 */
+	public void finish() throws IOException {
+		frameEnd = -1;
+	}
+
+
+	/**
+	 * Input reading from a byte array. Also the base class for the buffered stream input.
+	 */
+	static class ArrayInput extends UnpickleInput {
+		byte[] buffer;
+		int pos;
+		int limit;
+		long offset;		// input position that corresponds to buffer index 0
+
+		ArrayInput(byte[] buffer, int pos, int length) {
+			this.buffer = buffer;
+			this.pos = pos;
+			this.limit = pos + length;
+			this.offset = -pos;
+		}
+
+		/**
+		 * Make at least n bytes available in the buffer, starting at pos.
+		 * Returns false if the input ends before that.
+		 */
+		boolean fill(int n) throws IOException {
+			return false;
+		}
+
+		final void require(int n) throws IOException {
+			if(limit-pos < n && !fill(n))
+				throw new IOException("expected more bytes in input stream");
+		}
+
+		@Override
+		void prefetch(int length) throws IOException {
+			if(limit-pos < length)
+				fill(length);
+		}
+
+		/**
+		 * Read bytes that are not in the buffer (the buffer has been fully consumed).
+		 */
+		void readRemaining(byte[] dest, int offset, int length) throws IOException {
+			throw new IOException("expected more bytes in input stream");
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(pos<limit || fill(1))
+				return buffer[pos++] & 0xff;
+			return -1;
+		}
+
+		@Override
+		public int readUnsignedByte() throws IOException {
+			require(1);
+			return buffer[pos++] & 0xff;
+		}
+
+		@Override
+		public int readInt2() throws IOException {
+			require(2);
+			byte[] b = buffer;
+			int p = pos;
+			pos = p+2;
+			return (b[p] & 0xff) | (b[p+1] & 0xff) << 8;
+		}
+
+		@Override
+		public int readInt4() throws IOException {
+			require(4);
+			byte[] b = buffer;
+			int p = pos;
+			pos = p+4;
+			return (b[p] & 0xff) | (b[p+1] & 0xff) << 8 | (b[p+2] & 0xff) << 16 | b[p+3] << 24;
+		}
+
+		@Override
+		public long readLong8() throws IOException {
+			require(8);
+			byte[] b = buffer;
+			int p = pos;
+			pos = p+8;
+			long low = (b[p] & 0xff) | (b[p+1] & 0xff) << 8 | (b[p+2] & 0xff) << 16 | (b[p+3] & 0xffL) << 24;
+			long high = (b[p+4] & 0xff) | (b[p+5] & 0xff) << 8 | (b[p+6] & 0xff) << 16 | (b[p+7] & 0xffL) << 24;
+			return low | high << 32;
+		}
+
+		@Override
+		public double readDouble() throws IOException {
+			require(8);
+			byte[] b = buffer;
+			int p = pos;
+			pos = p+8;
+			long high = (b[p] & 0xffL) << 24 | (b[p+1] & 0xff) << 16 | (b[p+2] & 0xff) << 8 | (b[p+3] & 0xff);
+			long low = (b[p+4] & 0xffL) << 24 | (b[p+5] & 0xff) << 16 | (b[p+6] & 0xff) << 8 | (b[p+7] & 0xff);
+			return Double.longBitsToDouble(high << 32 | low);
+		}
+
+		@Override
+		public void readInto(byte[] dest, int offset, int length) throws IOException {
+			int available = limit-pos;
+			if(available >= length) {
+				System.arraycopy(buffer, pos, dest, offset, length);
+				pos += length;
+				return;
+			}
+			System.arraycopy(buffer, pos, dest, offset, available);
+			pos = limit;
+			readRemaining(dest, offset+available, length-available);
+		}
+
+		@Override
+		public String readLine(boolean includeLF) throws IOException {
+			int scanned = 0;
+			while(true) {
+				byte[] b = buffer;
+				for(int i=pos+scanned; i<limit; ++i) {
+					if(b[i]=='\n') {
+						checkInputLimit(offset+i+1);
+						String line = new String(b, pos, includeLF ? i-pos+1 : i-pos, StandardCharsets.ISO_8859_1);
+						pos = i+1;
+						return line;
+					}
+				}
+				scanned = limit-pos;
+				checkInputLimit(offset+limit);
+				if(!fill(scanned+1)) {
+					if(scanned==0)
+						throw new IOException("premature end of file");
+					String line = new String(buffer, pos, scanned, StandardCharsets.ISO_8859_1);
+					pos = limit;
+					return line;
+				}
+			}
+		}
+
+		@Override
+		public String readString(int length) throws IOException {
+			if(limit-pos >= length || (length <= buffer.length && fill(length))) {
+				String str = decodeString(buffer, pos, length);
+				pos += length;
+				return str;
+			}
+			return decodeString(readBytes(length), 0, length);
+		}
+
+		@Override
+		public ByteBuffer readSlice(int length) throws IOException {
+			require(length);
+			ByteBuffer slice = ByteBuffer.wrap(buffer, pos, length).slice().asReadOnlyBuffer();
+			pos += length;
+			return slice;
+		}
+
+		@Override
+		public long position() {
+			return offset + pos;
+		}
+	}
+
+
+	/**
+	 * Buffered input reading from an InputStream.
+	 */
+	static class StreamInput extends ArrayInput {
+		final InputStream stream;
+		final boolean readAhead;
+		final boolean markSupported;
+		int markedAt = -1;		// buffer index that corresponds to the current stream mark
+
+		StreamInput(InputStream stream, int bufferSize, boolean readAhead) {
+			super(new byte[bufferSize], 0, 0);
+			this.stream = stream;
+			this.markSupported = stream.markSupported();
+			this.readAhead = readAhead;
+		}
+
+		@Override
+		boolean fill(int n) throws IOException {
+			checkInputLimit(offset+pos+n);
+			int available = limit-pos;
+			if(buffer.length-pos < n) {
+				// not enough room after pos: compact the buffer, or grow it if it is too small
+				byte[] target = n > buffer.length ? new byte[Math.max(n, buffer.length*2)] : buffer;
+				System.arraycopy(buffer, pos, target, 0, available);
+				buffer = target;
+				offset += pos;
+				if(markedAt>=0)
+					markedAt -= pos;
+				limit = available;
+				pos = 0;
+			}
+			while(limit-pos < n) {
+				int size;
+				if(readAhead) {
+					size = buffer.length-limit;
+					if(markSupported) {
+						stream.mark(size);
+						markedAt = limit;
+					}
+				} else {
+					size = n-(limit-pos);
+				}
+				int read = stream.read(buffer, limit, size);
+				if(read<0)
+					return false;
+				limit += read;
+			}
+			return true;
+		}
+
+		@Override
+		void readRemaining(byte[] dest, int offset, int length) throws IOException {
+			if(length > buffer.length) {
+				// large payloads are read straight into their destination
+				markedAt = -1;
+				this.offset += limit;
+				pos = limit = 0;
+				PickleUtils.readbytes_into(stream, dest, offset, length);
+				this.offset += length;
+			} else {
+				require(length);
+				System.arraycopy(buffer, pos, dest, offset, length);
+				pos += length;
+			}
+		}
+
+		@Override
+		public ByteBuffer readSlice(int length) throws IOException {
+			// the read buffer is reused, so the bytes have to be copied
+			return ByteBuffer.wrap(readBytes(length)).asReadOnlyBuffer();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			super.finish();
+			if(markSupported && pos<limit && markedAt>=0 && pos>=markedAt) {
+				// give back the bytes that were read beyond the end of the pickle
+				stream.reset();
+				long skip = pos-markedAt;
+				while(skip>0) {
+					long skipped = stream.skip(skip);
+					if(skipped<=0)
+						throw new IOException("could not reposition the input stream");
+					skip -= skipped;
+				}
+				offset += pos;
+				pos = limit = 0;
+				markedAt = -1;
+			}
+		}
+	}
+
+
+	/**
+	 * Input reading from a ByteBuffer, without copying it to the heap first.
+	 */
+	static class BufferInput extends UnpickleInput {
+		final ByteBuffer source;
+		ByteBuffer buffer;
+		long offset;		// input position that corresponds to buffer index 0
+		byte[] scratch = new byte[64];
+
+		BufferInput(ByteBuffer source) {
+			this.source = source;
+			this.buffer = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			this.offset = -source.position();
+		}
+
+		/**
+		 * Make at least n bytes available in the buffer, starting at its position.
+		 * Returns false if the input ends before that.
+		 */
+		boolean fill(int n) throws IOException {
+			return false;
+		}
+
+		final void require(int n) throws IOException {
+			if(buffer.remaining() < n && !fill(n))
+				throw new IOException("expected more bytes in input stream");
+		}
+
+		@Override
+		void prefetch(int length) throws IOException {
+			if(buffer.remaining() < length)
+				fill(length);
+		}
+
+		byte[] scratch(int size) {
+			if(scratch.length < size)
+				scratch = new byte[Math.max(size, scratch.length*2)];
+			return scratch;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(buffer.hasRemaining() || fill(1))
+				return buffer.get() & 0xff;
+			return -1;
+		}
+
+		@Override
+		public int readUnsignedByte() throws IOException {
+			require(1);
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int readInt2() throws IOException {
+			require(2);
+			return buffer.getShort() & 0xffff;
+		}
+
+		@Override
+		public int readInt4() throws IOException {
+			require(4);
+			return buffer.getInt();
+		}
+
+		@Override
+		public long readLong8() throws IOException {
+			require(8);
+			return buffer.getLong();
+		}
+
+		@Override
+		public double readDouble() throws IOException {
+			require(8);
+			return Double.longBitsToDouble(Long.reverseBytes(buffer.getLong()));
+		}
+
+		@Override
+		public void readInto(byte[] dest, int offset, int length) throws IOException {
+			while(length > 0) {
+				if(!buffer.hasRemaining() && !fill(1))
+					throw new IOException("expected more bytes in input stream");
+				int chunk = Math.min(length, buffer.remaining());
+				buffer.get(dest, offset, chunk);
+				offset += chunk;
+				length -= chunk;
+			}
+		}
+
+		@Override
+		public String readLine(boolean includeLF) throws IOException {
+			int scanned = 0;
+			while(true) {
+				int start = buffer.position();
+				int end = buffer.limit();
+				for(int i=start+scanned; i<end; ++i) {
+					if(buffer.get(i)=='\n') {
+						checkInputLimit(offset+i+1);
+						int length = i-start;
+						String line = decodeLatin1(includeLF ? length+1 : length);
+						((Buffer) buffer).position(i+1);
+						return line;
+					}
+				}
+				scanned = end-start;
+				checkInputLimit(offset+end);
+				if(!fill(scanned+1)) {
+					if(scanned==0)
+						throw new IOException("premature end of file");
+					return decodeLatin1(scanned);
+				}
+			}
+		}
+
+		private String decodeLatin1(int length) {
+			byte[] bytes = scratch(length);
+			buffer.get(bytes, 0, length);
+			return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public String readString(int length) throws IOException {
+			if(buffer.remaining() >= length || fill(length)) {
+				if(buffer.hasArray()) {
+					int start = buffer.position();
+					((Buffer) buffer).position(start+length);
+					return decodeString(buffer.array(), buffer.arrayOffset()+start, length);
+				}
+				byte[] bytes = scratch(length);
+				buffer.get(bytes, 0, length);
+				return decodeString(bytes, 0, length);
+			}
+			return decodeString(readBytes(length), 0, length);
+		}
+
+		@Override
+		public ByteBuffer readSlice(int length) throws IOException {
+			require(length);
+			ByteBuffer slice = buffer.slice();
+			((Buffer) slice).limit(length);
+			((Buffer) buffer).position(buffer.position()+length);
+			return slice.asReadOnlyBuffer();
+		}
+
+		@Override
+		public long position() {
+			return offset + buffer.position();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			super.finish();
+			((Buffer) source).position(buffer.position());
+		}
+	}
+
+
+	/**
+	 * Input reading from a file channel, that maps one region of the file in memory at a time.
+	 */
+	static class MappedFileInput extends BufferInput {
+		static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+		final FileChannel channel;
+		final int windowSize;
+		final long size;
+
+		MappedFileInput(FileChannel channel, int windowSize) throws IOException {
+			super(map(channel, channel.position(), windowSize));
+			this.channel = channel;
+			this.windowSize = windowSize;
+			this.size = channel.size();
+			this.offset = channel.position();
+		}
+
+		static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+			length = Math.min(length, channel.size()-position);
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(length, 0));
+		}
+
+		@Override
+		boolean fill(int n) throws IOException {
+			long position = position();
+			if(size-position < n)
+				return false;
+			// grow geometrically for a request that doesn't fit in a window, such as a long text line that is scanned
+			// in increasing steps, so the number of mappings stays logarithmic in its length
+			long length = n <= windowSize ? windowSize : Math.max(n, 2L*buffer.capacity());
+			buffer = map(channel, position, length).order(ByteOrder.LITTLE_ENDIAN);
+			offset = position;
+			return true;
+		}
+
+		@Override
+		public ByteBuffer readSlice(int length) throws IOException {
+			if(buffer.remaining() >= length)
+				return super.readSlice(length);
+			// map the payload as a region of its own
+			long position = position();
+			if(size-position < length)
+				throw new IOException("expected more bytes in input stream");
+			ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			buffer = EMPTY;
+			offset = position+length;
+			return slice.asReadOnlyBuffer();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			frameEnd = -1;
+			channel.position(position());
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package net.razorvine.pickle;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Helper type that represents the unpickler memo table.
+ * Memo indexes are nearly always dense and sequential (MEMOIZE assigns them that way), so the values
+ * are stored in an array indexed by the memo index. Negative or very large indexes, that would
+ * make the array too sparse, are stored in a map instead.
+ * Code that used the memo of the Unpickler as a map (it used to be a HashMap) can use the {@link #asMap()} view.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpickleMemo implements Serializable {
+	private static final long serialVersionUID = -3176291047458342870L;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final Object NULL = new NullValue();	// placeholder for a memoized None
+
+	/**
+	 * The placeholder is compared by identity, so deserialization must give back the same instance.
+	 */
+	private static final class NullValue implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private Object readResolve() {
+			return NULL;
+		}
+	}
+
+	private Object[] table;
+	private HashMap<Integer, Object> sparse;
+	private int size;
+	private int used;	// highest dense index in use, plus one
+
+	public UnpickleMemo() {
+		table = new Object[INITIAL_CAPACITY];
+	}
+
+	public void put(int index, Object value) {
+		if (value == null)
+			value = NULL;
+		if (index >= 0 && index >= table.length && index < 2 * table.length + INITIAL_CAPACITY && size >= table.length / 2) {
+			// only grow the array when that keeps it reasonably dense
+			table = Arrays.copyOf(table, Math.max(2 * table.length, index + 1));
+			if (sparse != null)
+				moveSparseEntries();
+		}
+		if (index >= 0 && index < table.length) {
+			if (table[index] == null)
+				size++;
+			table[index] = value;
+			if (index >= used)
+				used = index + 1;
+		} else {
+			if (sparse == null)
+				sparse = new HashMap<>();
+			if (sparse.put(index, value) == null)
+				size++;
+		}
+	}
+
+	private void moveSparseEntries() {
+		Iterator<Map.Entry<Integer, Object>> it = sparse.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Object> entry = it.next();
+			int index = entry.getKey();
+			if (index >= 0 && index < table.length) {
+				table[index] = entry.getValue();
+				if (index >= used)
+					used = index + 1;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the value stored at the given memo index.
+	 *
+	 * @throws PickleException if there is nothing stored at the index
+	 */
+	public Object get(int index) {
+		Object value = lookup(index);
+		if (value == null)
+			throw new PickleException("invalid memo key");
+		return value == NULL ? null : value;
+	}
+
+	/**
+	 * The value stored at the given memo index, masked as NULL if it is null. Null if there is no such entry.
+	 */
+	private Object lookup(int index) {
+		Object value = null;
+		if (index >= 0 && index < table.length)
+			value = table[index];
+		if (value == null && sparse != null)
+			value = sparse.get(index);
+		return value;
+	}
+
+	public boolean containsKey(int index) {
+		if (index >= 0 && index < table.length && table[index] != null)
+			return true;
+		return sparse != null && sparse.containsKey(index);
+	}
+
+	/**
+	 * The number of entries in the memo.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * A live view of the memo as a Map from memo index to value. Changes to the view change the memo.
+	 */
+	public Map<Integer, Object> asMap() {
+		return new MapView();
+	}
+
+	private final class MapView extends AbstractMap<Integer, Object> {
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Object get(Object key) {
+			if (!(key instanceof Integer))
+				return null;
+			Object value = lookup((Integer) key);
+			return value == NULL ? null : value;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Integer && UnpickleMemo.this.containsKey(((Integer) key).intValue());
+		}
+
+		@Override
+		public Object put(Integer key, Object value) {
+			Object previous = get(key);
+			UnpickleMemo.this.put(key.intValue(), value);
+			return previous;
+		}
+
+		@Override
+		public Object remove(Object key) {
+			if (!(key instanceof Integer))
+				return null;
+			int index = (Integer) key;
+			Object previous = lookup(index);
+			if (previous == null)
+				return null;
+			if (index >= 0 && index < table.length && table[index] != null)
+				table[index] = null;
+			else
+				sparse.remove(index);
+			size--;
+			return previous == NULL ? null : previous;
+		}
+
+		@Override
+		public void clear() {
+			UnpickleMemo.this.clear();
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Object>>() {
+				@Override
+				public Iterator<Map.Entry<Integer, Object>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public void clear() {
+					UnpickleMemo.this.clear();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Iterates over the dense entries first, then over the sparse ones.
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<Integer, Object>> {
+		private final Object[] dense = table;
+		private final int denseEnd = Math.min(used, table.length);
+		private final Iterator<Map.Entry<Integer, Object>> sparseEntries =
+				sparse != null ? sparse.entrySet().iterator() : Collections.<Map.Entry<Integer, Object>>emptyIterator();
+		private int next = advance(0);
+		private int current = -1;
+		private boolean currentSparse;
+
+		private int advance(int i) {
+			while (i < denseEnd && dense[i] == null)
+				i++;
+			return i;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < denseEnd || sparseEntries.hasNext();
+		}
+
+		@Override
+		public Map.Entry<Integer, Object> next() {
+			if (next < denseEnd) {
+				current = next;
+				currentSparse = false;
+				next = advance(next + 1);
+				Object value = dense[current];
+				return new AbstractMap.SimpleImmutableEntry<Integer, Object>(current, value == NULL ? null : value);
+			}
+			if (!sparseEntries.hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<Integer, Object> entry = sparseEntries.next();
+			current = -1;
+			currentSparse = true;
+			Object value = entry.getValue();
+			return new AbstractMap.SimpleImmutableEntry<Integer, Object>(entry.getKey(), value == NULL ? null : value);
+		}
+
+		@Override
+		public void remove() {
+			if (currentSparse) {
+				sparseEntries.remove();
+				currentSparse = false;
+			} else if (current >= 0 && dense[current] != null) {
+				dense[current] = null;
+				current = -1;
+			} else {
+				throw new IllegalStateException();
+			}
+			size--;
+		}
+	}
+
+	public void clear() {
+		table = new Object[INITIAL_CAPACITY];
+		sparse = null;
+		size = used = 0;
+	}
+
+	/**
+	 * Empty the memo, but keep its allocated capacity for reuse.
+	 */
+	public void reset() {
+		if (size > 0) {
+			Arrays.fill(table, 0, used, null);
+			sparse = null;
+			size = used = 0;
+		}
+	}
+
+	/**
+	 * Empty the memo, and keep its allocated capacity for reuse unless it is larger than the given capacity.
+	 */
+	public void reset(int retainedCapacity) {
+		if (table.length > Math.max(retainedCapacity, INITIAL_CAPACITY))
+			clear();
+		else
+			reset();
+	}
+}
@@ -2,65 +2,213 @@ package net.razorvine.pickle;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Helper type that represents the unpickler working stack.
+ * The values are kept in an array, the positions of the MARKs are kept in a separate array,
+ * so that the values since the topmost mark can be taken off the stack as a single slice.
  *
  * @author Irmen de Jong (irmen@razorvine.net)
  */
 public class UnpickleStack implements Serializable {
-	private static final long serialVersionUID = 5032718425413805422L;
-	private final ArrayList<Object> stack;
-	protected final Object MARKER;
+	private static final long serialVersionUID = 5032718425413805423L;
+	private static final int INITIAL_CAPACITY = 16;
+	private Object[] stack;
+	private int size;
+	private int[] marks;
+	private int markCount;
+	private int maxSize = Integer.MAX_VALUE;
+	private int maxMarks = Integer.MAX_VALUE;
 
 	public UnpickleStack() {
-		stack = new ArrayList<>();
-		MARKER = new Object(); // any new unique object
+		stack = new Object[INITIAL_CAPACITY];
+		marks = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Limit the number of values and the number of marks on the stack. Adding more throws a {@link LimitExceededException}.
+	 * The limits are only checked when the stack grows, so they cost nothing for the values that fit.
+	 */
+	public void setLimits(int maxSize, int maxMarks) {
+		this.maxSize = maxSize;
+		this.maxMarks = maxMarks;
+		if (stack.length > maxSize && size <= maxSize)
+			stack = Arrays.copyOf(stack, maxSize);
+		if (marks.length > maxMarks && markCount <= maxMarks)
+			marks = Arrays.copyOf(marks, maxMarks);
 	}
 
 	public void add(Object o) {
-		this.stack.add(o);
+		if (size == stack.length)
+			grow();
+		stack[size++] = o;
+	}
+
+	private void grow() {
+		if (size >= maxSize)
+			throw new LimitExceededException("unpickling stack exceeds the maximum size of " + maxSize);
+		stack = Arrays.copyOf(stack, (int) Math.min(Math.max(2L * size, INITIAL_CAPACITY), maxSize));
 	}
 
 	public void add_mark() {
-		this.stack.add(this.MARKER);
+		if (markCount == marks.length)
+			growMarks();
+		marks[markCount++] = size;
+	}
+
+	private void growMarks() {
+		if (markCount >= maxMarks)
+			throw new LimitExceededException("containers nested deeper than the maximum of " + maxMarks);
+		marks = Arrays.copyOf(marks, (int) Math.min(Math.max(2L * markCount, INITIAL_CAPACITY), maxMarks));
 	}
 
 	public Object pop() {
-		int size = this.stack.size();
-		Object result = this.stack.get(size - 1);
-		this.stack.remove(size - 1);
+		if (size == 0 || (markCount > 0 && marks[markCount - 1] == size))
+			throw new IndexOutOfBoundsException("unpickling stack underflow");
+		Object result = stack[--size];
+		stack[size] = null;
 		return result;
 	}
 
-	public List<Object> pop_all_since_marker() {
-		ArrayList<Object> result = new ArrayList<>();
-		Object o = pop();
-		while (o != this.MARKER) {
-			result.add(o);
-			o = pop();
-		}
-		result.trimToSize();
-		Collections.reverse(result);
+	/**
+	 * Remove the topmost mark. Returns the stack position of the first value after it.
+	 */
+	private int remove_mark() {
+		if (markCount == 0)
+			throw new PickleException("could not find MARK");
+		return marks[--markCount];
+	}
+
+	/**
+	 * Shrink the stack to the given position, releasing the values above it.
+	 */
+	private void truncate(int position) {
+		Arrays.fill(stack, position, size, null);
+		size = position;
+	}
+
+	/**
+	 * Take the values since the topmost mark off the stack, as a list.
+	 */
+	public ArrayList<Object> pop_all_since_marker() {
+		int start = remove_mark();
+		ArrayList<Object> result = new ArrayList<>(size - start);
+		for (int i = start; i < size; i++)
+			result.add(stack[i]);
+		truncate(start);
 		return result;
 	}
 
+	/**
+	 * Take the values since the topmost mark off the stack, as an array.
+	 */
+	public Object[] pop_array_since_marker() {
+		int start = remove_mark();
+		Object[] result = new Object[size - start];
+		System.arraycopy(stack, start, result, 0, result.length);
+		truncate(start);
+		return result;
+	}
+
+	/**
+	 * Take the values since the topmost mark off the stack, adding them to the given collection.
+	 */
+	public void pop_all_since_marker_into(Collection<Object> target) {
+		int start = remove_mark();
+		for (int i = start; i < size; i++)
+			target.add(stack[i]);
+		truncate(start);
+	}
+
+	/**
+	 * Take the key-value pairs since the topmost mark off the stack, putting them in the given map.
+	 * An odd number of values is an error.
+	 */
+	public void pop_pairs_since_marker_into(Map<Object, Object> target) {
+		if ((size_since_marker() & 1) != 0)
+			throw new PickleException("odd number of items for dict");
+		int start = remove_mark();
+		for (int i = start; i < size - 1; i += 2)
+			target.put(stack[i], stack[i + 1]);
+		truncate(start);
+	}
+
+	/**
+	 * Discard the values since the topmost mark, and the mark itself.
+	 */
+	public void pop_mark() {
+		truncate(remove_mark());
+	}
+
+	/**
+	 * Whether there is a mark on the stack.
+	 */
+	public boolean has_mark() {
+		return markCount > 0;
+	}
+
+	/**
+	 * The number of values since the topmost mark.
+	 */
+	public int size_since_marker() {
+		if (markCount == 0)
+			throw new PickleException("could not find MARK");
+		return size - marks[markCount - 1];
+	}
+
 	public Object peek() {
-		return this.stack.get(this.stack.size() - 1);
+		if (size == 0)
+			throw new IndexOutOfBoundsException("unpickling stack underflow");
+		return stack[size - 1];
+	}
+
+	/**
+	 * The value just below the topmost mark.
+	 */
+	public Object peek_below_marker() {
+		if (markCount == 0)
+			throw new PickleException("could not find MARK");
+		return stack[marks[markCount - 1] - 1];
 	}
 
 	public void trim() {
-		this.stack.trimToSize();
+		if (stack.length > Math.max(size, INITIAL_CAPACITY))
+			stack = Arrays.copyOf(stack, Math.max(size, INITIAL_CAPACITY));
+		if (marks.length > Math.max(markCount, INITIAL_CAPACITY))
+			marks = Arrays.copyOf(marks, Math.max(markCount, INITIAL_CAPACITY));
 	}
 
+	/**
+	 * The number of values on the stack (marks are not counted).
+	 */
 	public int size() {
-		return this.stack.size();
+		return size;
 	}
 
 	public void clear() {
-		this.stack.clear();
-		this.stack.trimToSize();
+		stack = new Object[Math.min(INITIAL_CAPACITY, maxSize)];
+		marks = new int[Math.min(INITIAL_CAPACITY, maxMarks)];
+		size = markCount = 0;
+	}
+
+	/**
+	 * Empty the stack, but keep its allocated capacity for reuse.
+	 */
+	public void reset() {
+		truncate(0);
+		markCount = 0;
+	}
+
+	/**
+	 * Empty the stack, and keep its allocated capacity for reuse unless it is larger than the given capacity.
+	 */
+	public void reset(int retainedCapacity) {
+		if (stack.length > Math.max(retainedCapacity, INITIAL_CAPACITY) || marks.length > Math.max(retainedCapacity, INITIAL_CAPACITY))
+			clear();
+		else
+			reset();
 	}
 }
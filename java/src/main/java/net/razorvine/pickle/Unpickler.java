@@ -2,14 +2,20 @@ package net.razorvine.pickle;
 
 import net.razorvine.pickle.objects.*;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -31,12 +37,13 @@ public class Unpickler {
 	/**
 	 * The highest Python Pickle protocol version supported by this library.
 	 */
-	protected final int HIGHEST_PROTOCOL = 5;
+	protected static final int HIGHEST_PROTOCOL = 5;
 
 	/**
 	 * Internal cache of memoized objects.
+	 * This used to be a Map; subclasses that need one can use {@link UnpickleMemo#asMap()}.
 	 */
-	protected Map<Integer, Object> memo;
+	protected UnpickleMemo memo;
 
 	/**
 	 * The stack that is used for building the resulting object graph.
@@ -44,17 +51,106 @@ public class Unpickler {
 	protected UnpickleStack stack;
 
 	/**
-	 * The stream where the pickle data is read from.
+	 * The stream where the pickle data is read from (null when unpickling from a byte array).
 	 */
 	protected InputStream input;
 
+	/**
+	 * The buffered input that the opcodes and their arguments are decoded from.
+	 */
+	protected UnpickleInput reader;
+
+	/**
+	 * Return bytes payloads as read-only ByteBuffers instead of byte arrays. See {@link #setZeroCopyBytes(boolean)}.
+	 */
+	protected boolean zeroCopyBytes = false;
+
+	/**
+	 * Bytes and string payloads larger than this are returned as LargeBytes. See {@link #setLargeBytesThreshold(long)}.
+	 */
+	protected long largeBytesThreshold = LargeBytes.MAX_ARRAY_SIZE;
+
+	/**
+	 * The size of the chunks of a LargeBytes payload.
+	 */
+	protected int largeBytesChunkSize = LargeBytes.DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Default for the number of stack and memo entries whose allocated space is kept between loads.
+	 */
+	public static final int DEFAULT_RETAINED_CAPACITY = 65536;
+
+	/**
+	 * The number of stack and memo entries whose allocated space is kept between loads.
+	 */
+	protected int retainedCapacity = DEFAULT_RETAINED_CAPACITY;
+
+	/**
+	 * Cache to deduplicate decoded strings, null if not used.
+	 */
+	protected StringCache stringCache;
+
+	/**
+	 * How the string cache is used.
+	 */
+	protected StringCache.Mode stringCacheMode = StringCache.Mode.OFF;
+
+	/**
+	 * Create lists and dicts that store numbers and int keys in primitive arrays. See {@link #setPrimitiveCollections(boolean)}.
+	 */
+	protected boolean primitiveCollections = false;
+
+	/**
+	 * Source of the out-of-band buffers of protocol 5 pickles, null if not used.
+	 */
+	protected IBufferProvider bufferProvider;
+
+	/**
+	 * Resource limits, see {@link #setLimits(UnpicklerLimits)}.
+	 */
+	protected UnpicklerLimits limits = UnpicklerLimits.NONE;
+
+	/**
+	 * Input position where the current pickle must end according to the limits.
+	 */
+	private long inputEnd = Long.MAX_VALUE;
+
+	/**
+	 * Statistics that the loads are added to, null if not collected. See {@link #setStats(UnpicklerStats)}.
+	 */
+	protected UnpicklerStats stats;
+
+	// counters of the current load, only used when statistics are collected
+	private long[] loadOpcodes;
+	private Map<String, Long> loadConstructions;
+	private Map<IObjectConstructor, String> globalNames;	// the GLOBAL name that each constructor was obtained by
+
+	/**
+	 * Maximum number of resolved globals that are cached by an unpickler.
+	 */
+	static final int MAX_RESOLVED_GLOBALS = 4096;
+
+	/**
+	 * The constructors that the GLOBAL and STACK_GLOBAL opcodes resolved to, by module and by name.
+	 * Kept across loads, until the registered constructors change.
+	 */
+	private final Map<String, Map<String, IObjectConstructor>> resolvedGlobals = new HashMap<>();
+	private int resolvedGlobalsCount;
+	private int resolvedGlobalsVersion;
+	private static volatile int registryVersion;
+
 	/**
 	 * Registry of object constructors that are used to create the appropriate Java objects for the given Python module.typename references.
 	 */
 	protected static final Map<String, IObjectConstructor> objectConstructors;
 
+	/**
+	 * The object constructors used by this unpickler, null to use the static registry.
+	 */
+	protected ConstructorRegistry constructorRegistry;
+
 	static {
-		objectConstructors = new HashMap<>();
+		objectConstructors = new ConcurrentHashMap<>();
 		objectConstructors.put("__builtin__.complex", new AnyClassConstructor(ComplexNumber.class));
 		objectConstructors.put("builtins.complex", new AnyClassConstructor(ComplexNumber.class));
 		objectConstructors.put("array.array", new ArrayConstructor());
@@ -79,13 +175,171 @@ public class Unpickler {
 		objectConstructors.put("copy_reg._reconstructor", new Reconstructor());
 		objectConstructors.put("operator.attrgetter", new OperatorAttrGetterForCalendarTz());
 		objectConstructors.put("_codecs.encode", new ByteArrayConstructor());   // we're lucky, the bytearray constructor is also able to mimic codecs.encode()
+		objectConstructors.put("numpy.dtype", new NumpyConstructor(NumpyConstructor.DTYPE));
+		objectConstructors.put("numpy.core.multiarray._reconstruct", new NumpyConstructor(NumpyConstructor.RECONSTRUCT));
+		objectConstructors.put("numpy._core.multiarray._reconstruct", new NumpyConstructor(NumpyConstructor.RECONSTRUCT));
+		objectConstructors.put("numpy.core.multiarray.scalar", new NumpyConstructor(NumpyConstructor.SCALAR));
+		objectConstructors.put("numpy._core.multiarray.scalar", new NumpyConstructor(NumpyConstructor.SCALAR));
+		objectConstructors.put("numpy.core.numeric._frombuffer", new NumpyConstructor(NumpyConstructor.FROMBUFFER));
+		objectConstructors.put("numpy._core.numeric._frombuffer", new NumpyConstructor(NumpyConstructor.FROMBUFFER));
 	}
 
 	/**
 	 * Create an unpickler.
 	 */
 	public Unpickler() {
-		memo = new HashMap<>();
+		memo = new UnpickleMemo();
+	}
+
+	/**
+	 * Create an unpickler that uses the object constructors of the given registry,
+	 * instead of the ones in the static registry of the Unpickler ({@link #registerConstructor}).
+	 */
+	public Unpickler(ConstructorRegistry registry) {
+		this();
+		this.constructorRegistry = registry;
+	}
+
+	/**
+	 * Use the object constructors of the given registry, instead of the ones in the static registry
+	 * of the Unpickler ({@link #registerConstructor}). Null to use the static registry again.
+	 */
+	public void setConstructorRegistry(ConstructorRegistry registry) {
+		this.constructorRegistry = registry;
+		resolvedGlobals.clear();
+		resolvedGlobalsCount = 0;
+	}
+
+	/**
+	 * Return the payloads of bytes and bytearray objects (opcodes BINBYTES, SHORT_BINBYTES, BINBYTES8 and BYTEARRAY8)
+	 * as read-only ByteBuffers instead of byte arrays. When unpickling from a byte array, a ByteBuffer or a file,
+	 * these buffers are slices that point directly into the source data, so large payloads are not copied.
+	 * The slices keep the source data in memory as long as they are referenced.
+	 * When unpickling from a stream, the buffers wrap a copy of the payload.
+	 * This is off by default.
+	 */
+	public void setZeroCopyBytes(boolean zeroCopyBytes) {
+		this.zeroCopyBytes = zeroCopyBytes;
+	}
+
+	/**
+	 * Payloads of bytes, bytearray and string objects (opcodes BINBYTES, BINBYTES8, BYTEARRAY8, BINUNICODE and BINUNICODE8)
+	 * that are larger than this number of bytes are returned as {@link LargeBytes} instead of a byte array,
+	 * ByteBuffer or String. For a string, that holds its UTF-8 encoding. The default is the largest payload
+	 * that still fits in a byte array, so payloads above 2 GB can be unpickled at all; a lower threshold keeps
+	 * large payloads of a mapped file (see {@link #load(Path)}) off the heap.
+	 */
+	public void setLargeBytesThreshold(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("threshold must not be negative");
+		this.largeBytesThreshold = Math.min(bytes, LargeBytes.MAX_ARRAY_SIZE);
+	}
+
+	/**
+	 * The size of the chunks of a {@link LargeBytes} payload, default {@link LargeBytes#DEFAULT_CHUNK_SIZE}.
+	 */
+	public void setLargeBytesChunkSize(int bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("chunk size must be positive");
+		this.largeBytesChunkSize = bytes;
+	}
+
+	/**
+	 * Set the high-water mark for the memory kept between loads.
+	 * The working stack and memo table keep their allocated space for reuse by the next load,
+	 * unless they had grown beyond this number of entries; then they are released.
+	 */
+	public void setRetainedCapacity(int retainedCapacity) {
+		this.retainedCapacity = retainedCapacity;
+	}
+
+	/**
+	 * Use a string cache, so that equal short strings in the pickle data result in the same String instance.
+	 * This saves time and memory when many strings are repeated, such as the keys of dicts in a list of records.
+	 * The cache can be cleared at the start of every load (PER_LOAD) or kept across loads (SHARED).
+	 * Off by default.
+	 */
+	public void setStringCache(StringCache.Mode mode) {
+		setStringCache(mode, mode == StringCache.Mode.OFF ? null : new StringCache());
+	}
+
+	/**
+	 * Use the given string cache, see {@link #setStringCache(StringCache.Mode)}.
+	 */
+	public void setStringCache(StringCache.Mode mode, StringCache cache) {
+		if (mode != StringCache.Mode.OFF && cache == null)
+			throw new IllegalArgumentException("a string cache is required");
+		this.stringCacheMode = mode;
+		this.stringCache = mode == StringCache.Mode.OFF ? null : cache;
+	}
+
+	/**
+	 * The string cache that is used, to inspect its hit and miss counters. Null if not used.
+	 */
+	public StringCache getStringCache() {
+		return stringCache;
+	}
+
+	/**
+	 * Create lists as {@link PrimitiveList} and dicts as {@link IntKeyMap}. These store lists of ints, longs or floats
+	 * and dicts with int keys in primitive arrays, which takes a lot less memory and avoids boxing when
+	 * their getInt/getDouble/etc methods are used. When an element of another type is added, they widen
+	 * themselves internally, so they can contain anything and references to them remain valid.
+	 * This is off by default (lists are ArrayLists and dicts are HashMaps).
+	 */
+	public void setPrimitiveCollections(boolean primitiveCollections) {
+		this.primitiveCollections = primitiveCollections;
+	}
+
+	/**
+	 * Set the source of the out-of-band buffers that protocol 5 pickles refer to with the NEXT_BUFFER opcode.
+	 * Each buffer is returned as a ByteBuffer view of the provided buffer's data, it is not copied.
+	 * When the pickle marks the buffer as read-only, the view is read-only.
+	 * The provider is used for all following loads, set it to null to stop using it.
+	 * See also {@link #load(InputStream, Iterable)}.
+	 */
+	public void setBufferProvider(IBufferProvider bufferProvider) {
+		this.bufferProvider = bufferProvider;
+	}
+
+	/**
+	 * Limit the resources that a pickle may use: the input size, the size of single values,
+	 * the memo table, the working stack and the nesting of containers.
+	 * A pickle that exceeds them is rejected with a {@link LimitExceededException}, before the memory is allocated.
+	 * The limits are used for all following loads, use {@link UnpicklerLimits#NONE} to remove them.
+	 */
+	public void setLimits(UnpicklerLimits limits) {
+		if (limits == null)
+			throw new IllegalArgumentException("limits can't be null, use UnpicklerLimits.NONE");
+		this.limits = limits;
+	}
+
+	/**
+	 * Collect statistics of the following loads in the given object, null to stop collecting them.
+	 * The same statistics object can be used by many unpicklers. When no statistics are collected,
+	 * the unpickler doesn't count anything, so this costs nothing.
+	 */
+	public void setStats(UnpicklerStats stats) {
+		this.stats = stats;
+		if (stats != null && loadOpcodes == null) {
+			loadOpcodes = new long[256];
+			loadConstructions = new HashMap<>();
+			globalNames = new IdentityHashMap<>();
+		}
+	}
+
+	/**
+	 * Empty the working stack and memo table, so the unpickler can be reused for another load.
+	 * Their allocated space is kept, up to the retained capacity (see {@link #setRetainedCapacity(int)}).
+	 * This is done automatically at the start and at the end of every load.
+	 */
+	public void reset() {
+		if (stack == null)
+			stack = new UnpickleStack();
+		else
+			stack.reset(retainedCapacity);
+		stack.setLimits(limits.getMaxStackSize(), limits.getMaxNesting());
+		memo.reset(retainedCapacity);
 	}
 
 	/**
@@ -93,6 +347,7 @@ public class Unpickler {
 	 */
 	public static void registerConstructor(String module, String classname, IObjectConstructor constructor) {
 		objectConstructors.put(module + "." + classname, constructor);
+		registryVersion++;
 	}
 
 	/**
@@ -101,26 +356,289 @@ public class Unpickler {
 	 * @return the reconstituted object hierarchy specified in the file.
 	 */
 	public Object load(InputStream stream) throws PickleException, IOException {
-		stack = new UnpickleStack();
 		input = stream;
+		return load(UnpickleInput.fromStream(stream));
+	}
+
+	/**
+	 * Read a pickled object representation from the given input stream,
+	 * using the given out-of-band buffers for its NEXT_BUFFER opcodes (protocol 5).
+	 * This is the equivalent of Python's pickle.load(file, buffers=buffers).
+	 *
+	 * @return the reconstituted object hierarchy specified in the file.
+	 */
+	public Object load(InputStream stream, Iterable<ByteBuffer> buffers) throws PickleException, IOException {
+		input = stream;
+		return load(UnpickleInput.fromStream(stream), buffers);
+	}
+
+	/**
+	 * Read a pickled object representation from the given pickle data bytes,
+	 * using the given out-of-band buffers for its NEXT_BUFFER opcodes (protocol 5).
+	 * This is the equivalent of Python's pickle.loads(data, buffers=buffers).
+	 *
+	 * @return the reconstituted object hierarchy specified in the data.
+	 */
+	public Object loads(byte[] pickledata, Iterable<ByteBuffer> buffers) throws PickleException, IOException {
+		input = null;
+		return load(UnpickleInput.fromBytes(pickledata), buffers);
+	}
+
+	/**
+	 * Read a pickled object representation from the given unpickle input,
+	 * using the given out-of-band buffers for its NEXT_BUFFER opcodes (protocol 5).
+	 * The buffers are only used for this load, afterwards the buffer provider that was set before is used again.
+	 *
+	 * @return the reconstituted object hierarchy specified in the input.
+	 */
+	public Object load(UnpickleInput source, Iterable<ByteBuffer> buffers) throws PickleException, IOException {
+		IBufferProvider previous = bufferProvider;
+		bufferProvider = IBufferProvider.of(buffers);
+		try {
+			return load(source);
+		} finally {
+			bufferProvider = previous;
+		}
+	}
+
+	/**
+	 * Read a pickled object representation from the given unpickle input.
+	 *
+	 * @return the reconstituted object hierarchy specified in the file.
+	 */
+	public Object load(UnpickleInput source) throws PickleException, IOException {
+		reset();
+		setReader(source);
+		Object value = run(reader.read());
+		reader.finish();
+		return value;
+	}
+
+	private void setReader(UnpickleInput source) {
+		reader = source;
+		reader.stringCache = stringCache;
+		if (stringCacheMode == StringCache.Mode.PER_LOAD)
+			stringCache.clear();
+		long start = reader.position();
+		inputEnd = limits.getMaxInputSize() > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + limits.getMaxInputSize();
+		reader.inputLimit = inputEnd;
+		reader.maxPrefetch = (int) Math.min(UnpickleInput.MAX_FRAME_PREFETCH, limits.getMaxAllocation());
+	}
+
+	/**
+	 * Check the length of a value that is about to be read from the input against the limits,
+	 * so that a pickle announcing a huge value is rejected before the memory for it is allocated.
+	 * A negative length is always rejected.
+	 */
+	void check_length(long length) {
+		if (length < 0)
+			throw new PickleException("invalid negative length: " + length);
+		if (length > limits.getMaxAllocation())
+			throw new LimitExceededException("pickle value of " + length + " bytes exceeds the maximum of " + limits.getMaxAllocation());
+		if (length > inputEnd - reader.position())
+			throw new LimitExceededException("pickle exceeds the maximum input size of " + limits.getMaxInputSize() + " bytes");
+	}
+
+	/**
+	 * Process opcodes from the reader, starting with the given one, until a complete object has been read.
+	 */
+	private Object run(int key) throws PickleException, IOException {
+		if (stats != null)
+			return run_counted(key);
 		while (true) {
-			short key = PickleUtils.readbyte(input);
 			if (key == -1)
 				throw new IOException("premature end of file");
-			Object value = dispatch(key);
+			Object value = dispatch((short) key);
+			check_position();
 			if (value != NO_RETURN_VALUE) {
 				return value;
 			}
+			key = reader.read();
+		}
+	}
+
+	/**
+	 * Start unpickling a pickle from the given input, to be fed one opcode at a time to {@link #step(int)}.
+	 * This is how the {@link PickleDecoder} drives the unpickler.
+	 */
+	void begin_load(UnpickleInput source) {
+		input = null;
+		reset();
+		setReader(source);
+	}
+
+	/**
+	 * Process a single opcode of the pickle that was started with {@link #begin_load(UnpickleInput)}.
+	 * Returns the unpickled object when the pickle is complete, otherwise NO_RETURN_VALUE.
+	 */
+	Object step(int key) throws PickleException, IOException {
+		Object value = dispatch((short) key);
+		check_position();
+		return value;
+	}
+
+	/**
+	 * Same as {@link #run(int)}, but also counts the opcodes and the high-water marks of the memo and stack,
+	 * and adds them to the statistics at the end of the load.
+	 */
+	private Object run_counted(int key) throws PickleException, IOException {
+		long started = System.nanoTime();
+		long startPosition = reader.position() - (key == -1 ? 0 : 1);
+		int memoSize = 0;
+		int stackSize = 0;
+		boolean failed = true;
+		try {
+			while (true) {
+				if (key == -1)
+					throw new IOException("premature end of file");
+				loadOpcodes[key]++;
+				Object value = dispatch((short) key);
+				check_position();
+				if (value != NO_RETURN_VALUE) {
+					failed = false;
+					return value;
+				}
+				stackSize = Math.max(stackSize, stack.size());
+				memoSize = memo.size();
+				key = reader.read();
+			}
+		} finally {
+			stats.record(loadOpcodes, loadConstructions, reader.position() - startPosition, memoSize, stackSize, System.nanoTime() - started, failed);
+			Arrays.fill(loadOpcodes, 0);
+			loadConstructions.clear();
 		}
 	}
 
+	/**
+	 * Checks after every opcode: frame boundaries, and the input size limit.
+	 */
+	private void check_position() {
+		reader.checkFrame();
+		if (inputEnd != Long.MAX_VALUE)
+			reader.checkInputLimit(reader.position());
+	}
+
+	private void count_construction(IObjectConstructor constructor) {
+		String name = globalNames.get(constructor);
+		count_construction(name != null ? name : constructor.getClass().getName());
+	}
+
+	private void count_construction(String name) {
+		loadConstructions.merge(name, 1L, Long::sum);
+	}
+
+	/**
+	 * Iterate over the pickled objects that have been written back to back in the given stream,
+	 * such as the records written by repeated pickle.dump() calls in Python.
+	 * The objects are read lazily, one record at a time. The iteration ends cleanly when the
+	 * stream ends at a record boundary; a stream that ends halfway a record results in an error.
+	 * The working stack and memo are reused between records.
+	 * IO errors are thrown as {@link UncheckedIOException}. After an error the iteration ends,
+	 * because the position in the stream is no longer at a record boundary.
+	 * The iterator reads ahead from the stream, so when the iteration is not run to the end,
+	 * the stream may have been read beyond the last record that was returned.
+	 */
+	public Iterator<Object> iterate(InputStream stream) {
+		input = stream;
+		return iterate(UnpickleInput.fromStreamReadAhead(stream, UnpickleInput.DEFAULT_BUFFER_SIZE));
+	}
+
+	/**
+	 * Iterate over the pickled objects that have been written back to back in the given input.
+	 * See {@link #iterate(InputStream)}.
+	 */
+	public Iterator<Object> iterate(final UnpickleInput source) {
+		return new Iterator<Object>() {
+			private Object next;
+			private boolean fetched;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (!fetched && !done) {
+					try {
+						reset();
+						setReader(source);
+						int key = source.read();
+						if (key == -1) {
+							done = true;
+							source.finish();
+						} else {
+							next = run(key);
+							fetched = true;
+						}
+					} catch (IOException x) {
+						done = true;
+						throw new UncheckedIOException(x);
+					} catch (RuntimeException | Error x) {
+						done = true;
+						throw x;
+					}
+				}
+				return fetched;
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				Object result = next;
+				next = null;
+				fetched = false;
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * A spliterator over the pickled objects that have been written back to back in the given stream.
+	 * See {@link #iterate(InputStream)}.
+	 */
+	public Spliterator<Object> spliterator(InputStream stream) {
+		return Spliterators.spliteratorUnknownSize(iterate(stream), Spliterator.ORDERED);
+	}
+
+	/**
+	 * A sequential Stream of the pickled objects that have been written back to back in the given stream.
+	 * See {@link #iterate(InputStream)}.
+	 */
+	public Stream<Object> stream(InputStream stream) {
+		return StreamSupport.stream(spliterator(stream), false);
+	}
+
 	/**
 	 * Read a pickled object representation from the given pickle data bytes.
 	 *
 	 * @return the reconstituted object hierarchy specified in the file.
 	 */
 	public Object loads(byte[] pickledata) throws PickleException, IOException {
-		return load(new ByteArrayInputStream(pickledata));
+		input = null;
+		return load(UnpickleInput.fromBytes(pickledata));
+	}
+
+	/**
+	 * Read a pickled object representation from the given buffer (heap, direct or memory mapped),
+	 * starting at its position. The data is decoded straight from the buffer, it is not copied first.
+	 * Afterwards, the position of the buffer is just after the pickle.
+	 *
+	 * @return the reconstituted object hierarchy specified in the buffer.
+	 */
+	public Object load(ByteBuffer buffer) throws PickleException, IOException {
+		input = null;
+		return load(UnpickleInput.fromBuffer(buffer));
+	}
+
+	/**
+	 * Read a pickled object representation from the given file, by memory mapping it.
+	 * The file contents are decoded straight from the mapped memory, they are not copied to the heap first.
+	 *
+	 * @return the reconstituted object hierarchy specified in the file.
+	 */
+	public Object load(Path file) throws PickleException, IOException {
+		input = null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return load(UnpickleInput.fromMappedFile(channel));
+		}
 	}
 
 	/**
@@ -129,6 +647,8 @@ public class Unpickler {
 	public void close() {
 		if(stack!=null)	stack.clear();
 		if(memo!=null) memo.clear();
+		resolvedGlobals.clear();
+		resolvedGlobalsCount = 0;
 		if(input!=null)
 			try {
 				input.close();
@@ -138,12 +658,17 @@ public class Unpickler {
 
 
 	/**
-	 * Buffer support for protocol 5 out of band data
-	 * If you want to unpickle such pickles, you'll have to subclass the unpickler
-	 * and override this method to return the buffer data you want.
+	 * Buffer support for protocol 5 out of band data.
+	 * Returns a view of the next buffer of the buffer provider (see {@link #setBufferProvider(IBufferProvider)}).
+	 * You can also subclass the unpickler and override this method to return the buffer data you want.
 	 */
 	protected Object next_buffer() throws PickleException, IOException {
-		throw new PickleException("pickle stream refers to out-of-band data but no user-overridden next_buffer() method is used\n");
+		if (bufferProvider == null)
+			throw new PickleException("pickle stream refers to out-of-band data but no buffer provider or user-overridden next_buffer() method is used\n");
+		ByteBuffer buffer = bufferProvider.nextBuffer();
+		if (buffer == null)
+			throw new PickleException("not enough out-of-band buffers");
+		return buffer.slice();
 	}
 
 
@@ -157,8 +682,7 @@ public class Unpickler {
 			break;
 		case Opcodes.STOP:
 			Object value = stack.pop();
-			stack.clear();
-			memo.clear();
+			reset();
 			return value;		// final result value
 		case Opcodes.POP:
 			load_pop();
@@ -372,7 +896,12 @@ public class Unpickler {
 
 
 	void load_readonly_buffer() {
-		// this opcode is ignored, we don't distinguish between readonly and read/write buffers
+		// only buffer views can be made readonly, other objects are left alone
+		Object value = stack.peek();
+		if (value instanceof ByteBuffer && !((ByteBuffer) value).isReadOnly()) {
+			stack.pop();
+			stack.add(((ByteBuffer) value).asReadOnlyBuffer());
+		}
 	}
 
 	void load_next_buffer() throws PickleException, IOException {
@@ -382,23 +911,63 @@ public class Unpickler {
 	void load_bytearray8() throws IOException {
 		// this is the same as load_binbytes8 because we make no distinction
 		// here between the bytes and bytearray python types
-		long len = PickleUtils.bytes_to_long(PickleUtils.readbytes(input, 8),0);
-		stack.add(PickleUtils.readbytes(input, len));
+		long len = reader.readLong8();
+		stack.add(readBytesPayload(len));
 	}
 
+	/**
+	 * A __setstate__ method that was found for a class and state type.
+	 */
+	private static final class SetState {
+		final Method method;
+		final boolean copyToHashMap;	// the state dict is not a HashMap (see setPrimitiveCollections), pass a copy that is
+
+		SetState(Method method, boolean copyToHashMap) {
+			this.method = method;
+			this.copyToHashMap = copyToHashMap;
+		}
+	}
+
+	/**
+	 * The __setstate__ methods per target class, by state class.
+	 */
+	private static final ClassValue<Map<Class<?>, SetState>> setStateMethods = new ClassValue<Map<Class<?>, SetState>>() {
+		@Override
+		protected Map<Class<?>, SetState> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
 	void load_build() {
 		Object args=stack.pop();
 		Object target=stack.peek();
 		try {
-			Method setStateMethod=target.getClass().getMethod("__setstate__", args.getClass());
-			setStateMethod.invoke(target, args);
+			Map<Class<?>, SetState> methods = setStateMethods.get(target.getClass());
+			SetState setState = methods.get(args.getClass());
+			if(setState==null) {
+				setState = find_setstate(target.getClass(), args);
+				methods.put(args.getClass(), setState);
+			}
+			if(setState.copyToHashMap)
+				args=new HashMap<>((Map<?, ?>) args);
+			setState.method.invoke(target, args);
 		} catch (Exception e) {
 			throw new PickleException("failed to __setstate__()",e);
 		}
 	}
 
+	private static SetState find_setstate(Class<?> type, Object args) throws NoSuchMethodException {
+		try {
+			return new SetState(type.getMethod("__setstate__", args.getClass()), false);
+		} catch (NoSuchMethodException x) {
+			if(!(args instanceof Map) || args instanceof HashMap)
+				throw x;
+			return new SetState(type.getMethod("__setstate__", HashMap.class), true);
+		}
+	}
+
 	void load_proto() throws IOException {
-		short proto = PickleUtils.readbyte(input);
+		int proto = reader.readUnsignedByte();
 		if (proto < 0 || proto > HIGHEST_PROTOCOL)
 			throw new PickleException("unsupported pickle protocol: " + proto);
 	}
@@ -416,71 +985,86 @@ public class Unpickler {
 	}
 
 	void load_int() throws IOException {
-		String data = PickleUtils.readline(input, true);
-		Object val;
+		stack.add(parse_int(reader.readLine(true)));
+	}
+
+	/**
+	 * Parse the argument line of the INT opcode (including the LF), into a Boolean, Integer or Long.
+	 */
+	static Object parse_int(String data) {
 		if (data.equals(Opcodes.FALSE.substring(1)))
-			val = false;
+			return false;
 		else if (data.equals(Opcodes.TRUE.substring(1)))
-			val = true;
-		else {
-			String number=data.substring(0, data.length() - 1);
-			try {
-				val = Integer.parseInt(number, 10);
-			} catch (NumberFormatException x) {
-				// hmm, integer didn't work.. is it perhaps an int from a 64-bit python? so try long:
-				val = Long.parseLong(number, 10);
-			}
+			return true;
+		String number=data.substring(0, data.length() - 1);
+		try {
+			return Integer.parseInt(number, 10);
+		} catch (NumberFormatException x) {
+			// hmm, integer didn't work.. is it perhaps an int from a 64-bit python? so try long:
+			return Long.parseLong(number, 10);
 		}
-		stack.add(val);
 	}
 
 	void load_binint() throws IOException {
-		int integer = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
+		int integer = reader.readInt4();
 		stack.add(integer);
 	}
 
 	void load_binint1() throws IOException {
-		stack.add((int)PickleUtils.readbyte(input));
+		stack.add(reader.readUnsignedByte());
 	}
 
 	void load_binint2() throws IOException {
-		int integer = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 2));
+		int integer = reader.readInt2();
 		stack.add(integer);
 	}
 
 	void load_long() throws IOException {
-		String val = PickleUtils.readline(input);
+		stack.add(parse_long(reader.readLine(false)));
+	}
+
+	/**
+	 * Parse the argument line of the LONG opcode into a Long or BigInteger.
+	 */
+	static Number parse_long(String val) {
 		if (val != null && val.endsWith("L")) {
 			val = val.substring(0, val.length() - 1);
 		}
 		BigInteger bi = new BigInteger(val);
-		stack.add(PickleUtils.optimizeBigint(bi));
+		return PickleUtils.optimizeBigint(bi);
 	}
 
 	void load_long1() throws IOException {
-		short n = PickleUtils.readbyte(input);
-		byte[] data = PickleUtils.readbytes(input, n);
+		int n = reader.readUnsignedByte();
+		byte[] data = reader.readBytes(n);
 		stack.add(PickleUtils.decode_long(data));
 	}
 
 	void load_long4() throws IOException {
-		int n = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		byte[] data = PickleUtils.readbytes(input, n);
+		int n = reader.readInt4();
+		check_length(n);
+		byte[] data = reader.readBytes(n);
 		stack.add(PickleUtils.decode_long(data));
 	}
 
 	void load_float() throws IOException {
-		String val = PickleUtils.readline(input, true);
+		String val = reader.readLine(true);
 		stack.add(Double.parseDouble(val));
 	}
 
 	void load_binfloat() throws IOException {
-		double val = PickleUtils.bytes_to_double(PickleUtils.readbytes(input, 8),0);
+		double val = reader.readDouble();
 		stack.add(val);
 	}
 
 	void load_string() throws IOException {
-		String rep = PickleUtils.readline(input);
+		stack.add(parse_string(reader.readLine(false)));
+	}
+
+	/**
+	 * Parse the quoted and escaped argument line of the STRING opcode.
+	 */
+	static String parse_string(String rep) {
 		boolean quotesOk = false;
 		for (String q : new String[] { "\"", "'" }) // double or single quote
 		{
@@ -497,62 +1081,78 @@ public class Unpickler {
 		if (!quotesOk)
 			throw new PickleException("insecure string pickle");
 
-		stack.add(PickleUtils.decode_escaped(rep));
+		return PickleUtils.decode_escaped(rep);
 	}
 
 	void load_binstring() throws IOException {
-		int len = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		byte[] data = PickleUtils.readbytes(input, len);
+		int len = reader.readInt4();
+		check_length(len);
+		byte[] data = reader.readBytes(len);
 		stack.add(PickleUtils.rawStringFromBytes(data));
 	}
 
 	void load_binbytes() throws IOException {
-		int len = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		stack.add(PickleUtils.readbytes(input, len));
+		long len = reader.readInt4() & 0xffffffffL;		// unsigned
+		stack.add(readBytesPayload(len));
 	}
 
 	void load_binbytes8() throws IOException {
-		long len = PickleUtils.bytes_to_long(PickleUtils.readbytes(input, 8),0);
-		stack.add(PickleUtils.readbytes(input, len));
+		long len = reader.readLong8();
+		stack.add(readBytesPayload(len));
+	}
+
+	/**
+	 * Read the payload of a bytes opcode. This is a byte[], or a read-only ByteBuffer when zero-copy bytes are enabled,
+	 * or LargeBytes when it is larger than the threshold.
+	 */
+	protected Object readBytesPayload(long len) throws IOException {
+		check_length(len);
+		if (len > largeBytesThreshold)
+			return LargeBytes.read(reader, len, largeBytesChunkSize);
+		return zeroCopyBytes ? reader.readSlice(len) : reader.readBytes(len);
 	}
 
 	void load_unicode() throws IOException {
-		String str=PickleUtils.decode_unicode_escaped(PickleUtils.readline(input));
+		String str=PickleUtils.decode_unicode_escaped(reader.readLine(false));
 		stack.add(str);
 	}
 
 	void load_binunicode() throws IOException {
-		int len = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		byte[] data = PickleUtils.readbytes(input, len);
-		stack.add(new String(data, StandardCharsets.UTF_8));
+		long len = reader.readInt4() & 0xffffffffL;		// unsigned
+		check_length(len);
+		if(len>largeBytesThreshold)
+			stack.add(LargeBytes.read(reader, len, largeBytesChunkSize));
+		else
+			stack.add(reader.readString((int)len));
 	}
 
 	void load_binunicode8() throws IOException {
-		long len = PickleUtils.bytes_to_long(PickleUtils.readbytes(input, 8),0);
-		byte[] data = PickleUtils.readbytes(input, len);
-		stack.add(new String(data, StandardCharsets.UTF_8));
+		long len = reader.readLong8();
+		check_length(len);
+		if(len>largeBytesThreshold)
+			stack.add(LargeBytes.read(reader, len, largeBytesChunkSize));
+		else
+			stack.add(reader.readString((int)len));
 	}
 
 	void load_short_binunicode() throws IOException {
-		int len = PickleUtils.readbyte(input);
-		byte[] data = PickleUtils.readbytes(input, len);
-		stack.add(new String(data, StandardCharsets.UTF_8));
+		int len = reader.readUnsignedByte();
+		stack.add(reader.readString(len));
 	}
 
 	void load_short_binstring() throws IOException {
-		short len = PickleUtils.readbyte(input);
-		byte[] data = PickleUtils.readbytes(input, len);
+		int len = reader.readUnsignedByte();
+		byte[] data = reader.readBytes(len);
 		stack.add(PickleUtils.rawStringFromBytes(data));
 	}
 
 	void load_short_binbytes() throws IOException {
-		short len = PickleUtils.readbyte(input);
-		stack.add(PickleUtils.readbytes(input, len));
+		int len = reader.readUnsignedByte();
+		stack.add(readBytesPayload(len));
 	}
 
 	void load_tuple() {
-		List<Object> top = stack.pop_all_since_marker();
-		stack.add(top.toArray());
+		stack.add(stack.pop_array_since_marker());
 	}
 
 	void load_empty_tuple() {
@@ -577,11 +1177,11 @@ public class Unpickler {
 	}
 
 	void load_empty_list() {
-		stack.add(new ArrayList<>(0));
+		stack.add(primitiveCollections ? new PrimitiveList() : new ArrayList<>(0));
 	}
 
 	void load_empty_dictionary() {
-		stack.add(new HashMap<>(0));
+		stack.add(primitiveCollections ? new IntKeyMap() : new HashMap<>(0));
 	}
 
 	void load_empty_set() {
@@ -589,38 +1189,44 @@ public class Unpickler {
 	}
 
 	void load_list() {
-		List<Object> top = stack.pop_all_since_marker();
-		stack.add(top); // simply add the top items as a list to the stack again
+		if (primitiveCollections) {
+			PrimitiveList list = new PrimitiveList(stack.size_since_marker());
+			stack.pop_all_since_marker_into(list);
+			stack.add(list);
+		} else {
+			stack.add(stack.pop_all_since_marker()); // simply add the top items as a list to the stack again
+		}
 	}
 
 	void load_dict() {
-		List<Object> top = stack.pop_all_since_marker();
-		HashMap<Object, Object> map = new HashMap<>(top.size());
-		for (int i = 0; i < top.size(); i += 2) {
-			Object key = top.get(i);
-			Object value = top.get(i + 1);
-			map.put(key, value);
-		}
+		int size = stack.size_since_marker() / 2;
+		Map<Object, Object> map = primitiveCollections ? new IntKeyMap(size) : new HashMap<>(capacityFor(size));
+		stack.pop_pairs_since_marker_into(map);
 		stack.add(map);
 	}
 
 	void load_frozenset() {
-		List<Object> top = stack.pop_all_since_marker();
-        HashSet<Object> set = new HashSet<>(top);
+		HashSet<Object> set = new HashSet<>(capacityFor(stack.size_since_marker()));
+		stack.pop_all_since_marker_into(set);
 		stack.add(set);
 	}
 
 	void load_additems() {
-		List<Object> top = stack.pop_all_since_marker();
 		@SuppressWarnings("unchecked")
-		HashSet<Object> set = (HashSet<Object>) stack.pop();
-		set.addAll(top);
-		stack.add(set);
+		HashSet<Object> set = (HashSet<Object>) stack.peek_below_marker();
+		stack.pop_all_since_marker_into(set);
+	}
+
+	/**
+	 * Initial capacity for a hash based collection that is to hold the given number of items without rehashing.
+	 */
+	static int capacityFor(int items) {
+		return items < 3 ? items + 1 : (int) (items / 0.75f) + 1;
 	}
 
 	void load_global() throws IOException {
-		String module = PickleUtils.readline(input);
-		String name = PickleUtils.readline(input);
+		String module = reader.readLine(false);
+		String name = reader.readLine(false);
 		load_global_sub(module, name);
 	}
 
@@ -631,7 +1237,45 @@ public class Unpickler {
 	}
 
 	void load_global_sub(String module, String name) {
-		IObjectConstructor constructor = objectConstructors.get(module + "." + name);
+		if (resolvedGlobalsVersion != registryVersion || resolvedGlobalsCount >= MAX_RESOLVED_GLOBALS) {
+			resolvedGlobals.clear();
+			resolvedGlobalsCount = 0;
+			resolvedGlobalsVersion = registryVersion;
+		}
+		Map<String, IObjectConstructor> names = resolvedGlobals.get(module);
+		if (names == null) {
+			names = new HashMap<>();
+			resolvedGlobals.put(module, names);
+		}
+		IObjectConstructor constructor = names.get(name);
+		if (constructor == null) {
+			constructor = resolve_global(module, name);
+			names.put(name, constructor);
+			resolvedGlobalsCount++;
+		}
+		if (stats != null && !globalNames.containsKey(constructor)) {
+			if (globalNames.size() >= MAX_RESOLVED_GLOBALS)
+				globalNames.clear();
+			globalNames.put(constructor, module + "." + name);
+		}
+		stack.add(constructor);
+	}
+
+	/**
+	 * The registered constructor for the given class, from the registry of this unpickler or else the static registry.
+	 */
+	IObjectConstructor get_constructor(String module, String name) {
+		if (constructorRegistry != null)
+			return constructorRegistry.get(module, name);
+		return objectConstructors.get(module + "." + name);
+	}
+
+	/**
+	 * Find the constructor for the given global. Unregistered classes get a new constructor
+	 * that creates ClassDicts or PythonExceptions. The result is cached by the unpickler.
+	 */
+	IObjectConstructor resolve_global(String module, String name) {
+		IObjectConstructor constructor = get_constructor(module, name);
 		if (constructor == null) {
 			// check if it is an exception
 			if(module.equals("exceptions")) {
@@ -655,20 +1299,20 @@ public class Unpickler {
 				constructor=new ClassDictConstructor(module, name);
 			}
 		}
-		stack.add(constructor);
+		return constructor;
 	}
 
 
 	void load_pop() {
-		stack.pop();
+		// like CPython, a POP right after a MARK discards the mark (protocol 0 uses this for recursive tuples)
+		if (stack.has_mark() && stack.size_since_marker() == 0)
+			stack.pop_mark();
+		else
+			stack.pop();
 	}
 
 	void load_pop_mark() {
-		Object o = null;
-		do {
-			o = stack.pop();
-		} while (o != stack.MARKER);
-		stack.trim();
+		stack.pop_mark();
 	}
 
 	void load_dup() {
@@ -676,55 +1320,60 @@ public class Unpickler {
 	}
 
 	void load_get() throws IOException {
-		int i = Integer.parseInt(PickleUtils.readline(input), 10);
-		if(!memo.containsKey(i)) throw new PickleException("invalid memo key");
+		int i = Integer.parseInt(reader.readLine(false), 10);
 		stack.add(memo.get(i));
 	}
 
 	void load_binget() throws IOException {
-		int i = PickleUtils.readbyte(input);
-		if(!memo.containsKey(i)) throw new PickleException("invalid memo key");
+		int i = reader.readUnsignedByte();
 		stack.add(memo.get(i));
 	}
 
 	void load_long_binget() throws IOException {
-		int i = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		if(!memo.containsKey(i)) throw new PickleException("invalid memo key");
+		int i = reader.readInt4();
 		stack.add(memo.get(i));
 	}
 
 	void load_put() throws IOException {
-		int i = Integer.parseInt(PickleUtils.readline(input), 10);
-		memo.put(i, stack.peek());
+		int i = Integer.parseInt(reader.readLine(false), 10);
+		memo_put(i, stack.peek());
 	}
 
 	void load_binput() throws IOException {
-		int i = PickleUtils.readbyte(input);
-		memo.put(i, stack.peek());
+		int i = reader.readUnsignedByte();
+		memo_put(i, stack.peek());
 	}
 
 	void load_long_binput() throws IOException {
-		int i = PickleUtils.bytes_to_integer(PickleUtils.readbytes(input, 4));
-		memo.put(i, stack.peek());
+		int i = reader.readInt4();
+		memo_put(i, stack.peek());
 	}
 
 	void load_memoize() {
-		memo.put(memo.size(), stack.peek());
+		memo_put(memo.size(), stack.peek());
+	}
+
+	void memo_put(int index, Object value) {
+		if (memo.size() >= limits.getMaxMemoEntries() && !memo.containsKey(index))
+			throw new LimitExceededException("memo exceeds the maximum of " + limits.getMaxMemoEntries() + " entries");
+		memo.put(index, value);
 	}
 
 	void load_append() {
 		Object value = stack.pop();
 		@SuppressWarnings("unchecked")
-		ArrayList<Object> list = (ArrayList<Object>) stack.peek();
+		List<Object> list = (List<Object>) stack.peek();
 		list.add(value);
 	}
 
 	void load_appends() {
-		List<Object> top = stack.pop_all_since_marker();
 		@SuppressWarnings("unchecked")
-		ArrayList<Object> list = (ArrayList<Object>) stack.peek();
-		list.addAll(top);
-		list.trimToSize();
+		List<Object> list = (List<Object>) stack.peek_below_marker();
+		if (list instanceof ArrayList)
+			((ArrayList<Object>) list).ensureCapacity(list.size() + stack.size_since_marker());
+		else if (list instanceof PrimitiveList)
+			((PrimitiveList) list).ensureCapacity(list.size() + stack.size_since_marker());
+		stack.pop_all_since_marker_into(list);
 	}
 
 	void load_setitem() {
@@ -736,17 +1385,9 @@ public class Unpickler {
 	}
 
 	void load_setitems() {
-		HashMap<Object, Object> newitems = new HashMap<>();
-		Object value = stack.pop();
-		while (value != stack.MARKER) {
-			Object key = stack.pop();
-			newitems.put(key, value);
-			value = stack.pop();
-		}
-
 		@SuppressWarnings("unchecked")
-		Map<Object, Object> dict = (Map<Object, Object>) stack.peek();
-		dict.putAll(newitems);
+		Map<Object, Object> dict = (Map<Object, Object>) stack.peek_below_marker();
+		stack.pop_pairs_since_marker_into(dict);
 	}
 
 	void load_mark() {
@@ -756,6 +1397,8 @@ public class Unpickler {
 	void load_reduce() {
 		Object[] args = (Object[]) stack.pop();
 		IObjectConstructor constructor = (IObjectConstructor) stack.pop();
+		if (stats != null)
+			count_construction(constructor);
 		stack.add(constructor.construct(args));
 	}
 
@@ -764,9 +1407,11 @@ public class Unpickler {
 	}
 
 	void load_newobj_ex() {
-		HashMap<?, ?> kwargs = (HashMap<?, ?>) stack.pop();
+		Map<?, ?> kwargs = (Map<?, ?>) stack.pop();
 		Object[] args = (Object[]) stack.pop();
 		IObjectConstructor constructor = (IObjectConstructor) stack.pop();
+		if (stats != null)
+			count_construction(constructor);
 		if(kwargs.isEmpty())
 			stack.add(constructor.construct(args));
 		else
@@ -774,13 +1419,16 @@ public class Unpickler {
 	}
 
 	void load_frame() throws IOException {
-		// for now we simply skip the frame opcode and its length
-		PickleUtils.readbytes(input, 8);
+		// the frame length tells us how many bytes the next opcodes need, so they can be fetched in one go
+		long length = reader.readLong8();
+		if (length > inputEnd - reader.position())
+			throw new LimitExceededException("pickle exceeds the maximum input size of " + limits.getMaxInputSize() + " bytes");
+		reader.startFrame(length);
 	}
 
 	void load_persid() throws IOException {
 		// the persistent id is taken from the argument
-		String pid = PickleUtils.readline(input);
+		String pid = reader.readLine(false);
 		stack.add(persistentLoad(pid));
 	}
 
@@ -791,23 +1439,26 @@ public class Unpickler {
 	}
 
 	void load_obj() throws IOException {
-		List<Object> args = stack.pop_all_since_marker();
-		IObjectConstructor constructor = (IObjectConstructor)args.get(0);
-		args = args.subList(1, args.size());
-		Object object = constructor.construct(args.toArray());
+		Object[] args = stack.pop_array_since_marker();
+		IObjectConstructor constructor = (IObjectConstructor)args[0];
+		if (stats != null)
+			count_construction(constructor);
+		Object object = constructor.construct(Arrays.copyOfRange(args, 1, args.length));
 		stack.add(object);
 	}
 
 	void load_inst() throws IOException {
-		String module = PickleUtils.readline(input);
-		String classname = PickleUtils.readline(input);
-		List<Object> args = stack.pop_all_since_marker();
-		IObjectConstructor constructor = objectConstructors.get(module + "." + classname);
+		String module = reader.readLine(false);
+		String classname = reader.readLine(false);
+		Object[] args = stack.pop_array_since_marker();
+		IObjectConstructor constructor = get_constructor(module, classname);
 		if (constructor == null) {
 			constructor = new ClassDictConstructor(module, classname);
-			args.clear();  // classdict doesn't have constructor args... so we may lose info here, hmm.
+			args = new Object[0];  // classdict doesn't have constructor args... so we may lose info here, hmm.
 		}
-		Object object = constructor.construct(args.toArray());
+		if (stats != null)
+			count_construction(module + "." + classname);
+		Object object = constructor.construct(args);
 		stack.add(object);
 	}
 
@@ -0,0 +1,144 @@
+package net.razorvine.pickle;
+
+/**
+ * Resource limits for the {@link Unpickler}, to unpickle untrusted or very large pickles with predictable memory use.
+ * The limits are checked before the memory is allocated: a pickle that announces a string of 2 gigabytes
+ * is rejected when the length is read, not after the unpickler ran out of memory.
+ * A pickle that exceeds a limit results in a {@link LimitExceededException}.
+ * Limits are immutable and can be shared; use {@link #builder()} to create them.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public final class UnpicklerLimits {
+
+	/**
+	 * No limits at all, this is the default.
+	 */
+	public static final UnpicklerLimits NONE = builder().build();
+
+	private final long maxInputSize;
+	private final long maxAllocation;
+	private final int maxMemoEntries;
+	private final int maxStackSize;
+	private final int maxNesting;
+
+	/**
+	 * Builds limits. Every limit that is not set is unlimited.
+	 */
+	public static final class Builder {
+		private long maxInputSize = Long.MAX_VALUE;
+		private long maxAllocation = Long.MAX_VALUE;
+		private int maxMemoEntries = Integer.MAX_VALUE;
+		private int maxStackSize = Integer.MAX_VALUE;
+		private int maxNesting = Integer.MAX_VALUE;
+
+		private Builder() {
+		}
+
+		/**
+		 * Maximum number of bytes a single pickle may take in the input.
+		 */
+		public Builder maxInputSize(long bytes) {
+			this.maxInputSize = checkLimit(bytes);
+			return this;
+		}
+
+		/**
+		 * Maximum size in bytes of a single value in the pickle: a string, bytes, a long integer, or a frame that is read ahead.
+		 */
+		public Builder maxAllocation(long bytes) {
+			this.maxAllocation = checkLimit(bytes);
+			return this;
+		}
+
+		/**
+		 * Maximum number of entries in the memo table.
+		 */
+		public Builder maxMemoEntries(int entries) {
+			this.maxMemoEntries = (int) checkLimit(entries);
+			return this;
+		}
+
+		/**
+		 * Maximum number of values on the unpickler's working stack.
+		 */
+		public Builder maxStackSize(int values) {
+			this.maxStackSize = (int) checkLimit(values);
+			return this;
+		}
+
+		/**
+		 * Maximum nesting depth of the containers (lists, tuples, dicts, sets and constructor arguments)
+		 * that are being built at the same time. In the pickle this is the number of MARKs that are open.
+		 * Containers that are nested without MARKs, one item at a time, are bounded by the stack size.
+		 */
+		public Builder maxNesting(int depth) {
+			this.maxNesting = (int) checkLimit(depth);
+			return this;
+		}
+
+		public UnpicklerLimits build() {
+			return new UnpicklerLimits(this);
+		}
+
+		private static long checkLimit(long limit) {
+			if (limit < 0)
+				throw new IllegalArgumentException("limit can't be negative");
+			return limit;
+		}
+	}
+
+	private UnpicklerLimits(Builder builder) {
+		this.maxInputSize = builder.maxInputSize;
+		this.maxAllocation = builder.maxAllocation;
+		this.maxMemoEntries = builder.maxMemoEntries;
+		this.maxStackSize = builder.maxStackSize;
+		this.maxNesting = builder.maxNesting;
+	}
+
+	/**
+	 * A builder that starts with no limits.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * A builder that starts with these limits.
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.maxInputSize = maxInputSize;
+		builder.maxAllocation = maxAllocation;
+		builder.maxMemoEntries = maxMemoEntries;
+		builder.maxStackSize = maxStackSize;
+		builder.maxNesting = maxNesting;
+		return builder;
+	}
+
+	public long getMaxInputSize() {
+		return maxInputSize;
+	}
+
+	public long getMaxAllocation() {
+		return maxAllocation;
+	}
+
+	public int getMaxMemoEntries() {
+		return maxMemoEntries;
+	}
+
+	public int getMaxStackSize() {
+		return maxStackSize;
+	}
+
+	public int getMaxNesting() {
+		return maxNesting;
+	}
+
+	@Override
+	public String toString() {
+		return "UnpicklerLimits(maxInputSize=" + maxInputSize + ", maxAllocation=" + maxAllocation + ", maxMemoEntries=" + maxMemoEntries
+				+ ", maxStackSize=" + maxStackSize + ", maxNesting=" + maxNesting + ")";
+	}
+}
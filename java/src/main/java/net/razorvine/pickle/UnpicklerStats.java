@@ -0,0 +1,231 @@
+package net.razorvine.pickle;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects statistics of the loads done by one or more unpicklers (see {@link Unpickler#setStats(UnpicklerStats)}):
+ * the number of times every opcode was executed, the bytes consumed, the high-water marks of the memo and the
+ * working stack, the number of objects constructed per Python class (GLOBAL name), and the wall time of the loads.
+ * An unpickler counts the events of a load by itself and adds them to the statistics when the load is done,
+ * so a statistics object can be shared by many unpicklers (in different threads) at little cost.
+ * Take a {@link #snapshot()} to read the numbers, for instance to export them to a metrics system.
+ * When no statistics are set on an unpickler, it doesn't count anything.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpicklerStats {
+
+	private static final String[] OPCODE_NAMES = new String[256];
+
+	static {
+		for (Field field : Opcodes.class.getFields()) {
+			if (field.getType() == short.class && Modifier.isStatic(field.getModifiers())) {
+				try {
+					OPCODE_NAMES[field.getShort(null)] = field.getName();
+				} catch (IllegalAccessException x) {
+					throw new IllegalStateException(x);
+				}
+			}
+		}
+	}
+
+	private final long[] opcodes = new long[256];
+	private final Map<String, Long> constructions = new HashMap<>();
+	private long loads;
+	private long failedLoads;
+	private long bytes;
+	private long totalNanos;
+	private long maxNanos;
+	private int memoHighWater;
+	private int stackHighWater;
+
+	/**
+	 * Immutable copy of the statistics at some point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] opcodes;
+		private final Map<String, Long> constructions;
+		private final long loads;
+		private final long failedLoads;
+		private final long bytes;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final int memoHighWater;
+		private final int stackHighWater;
+
+		private Snapshot(UnpicklerStats stats) {
+			this.opcodes = stats.opcodes.clone();
+			this.constructions = Collections.unmodifiableMap(new HashMap<>(stats.constructions));
+			this.loads = stats.loads;
+			this.failedLoads = stats.failedLoads;
+			this.bytes = stats.bytes;
+			this.totalNanos = stats.totalNanos;
+			this.maxNanos = stats.maxNanos;
+			this.memoHighWater = stats.memoHighWater;
+			this.stackHighWater = stats.stackHighWater;
+		}
+
+		/**
+		 * The number of loads, including the ones that failed.
+		 */
+		public long getLoads() {
+			return loads;
+		}
+
+		/**
+		 * The number of loads that ended with an exception.
+		 */
+		public long getFailedLoads() {
+			return failedLoads;
+		}
+
+		/**
+		 * The number of bytes of pickle data consumed.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * The total wall time of the loads, in nanoseconds.
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * The wall time of the slowest load, in nanoseconds.
+		 */
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * The average wall time of a load, in nanoseconds.
+		 */
+		public long getAverageNanos() {
+			return loads == 0 ? 0 : totalNanos / loads;
+		}
+
+		/**
+		 * The largest number of memo entries of a load.
+		 */
+		public int getMemoHighWater() {
+			return memoHighWater;
+		}
+
+		/**
+		 * The largest number of values on the working stack during a load.
+		 */
+		public int getStackHighWater() {
+			return stackHighWater;
+		}
+
+		/**
+		 * The number of times the given opcode was executed.
+		 */
+		public long getOpcodeCount(int opcode) {
+			return opcodes[opcode & 0xff];
+		}
+
+		/**
+		 * The number of times every opcode was executed, by opcode name (see {@link Opcodes}), most frequent first.
+		 * Opcodes that were not executed are left out.
+		 */
+		public Map<String, Long> getOpcodeCounts() {
+			Map<String, Long> counts = new HashMap<>();
+			for (int i = 0; i < opcodes.length; i++) {
+				if (opcodes[i] > 0)
+					counts.put(opcodeName(i), opcodes[i]);
+			}
+			return sortedByCount(counts);
+		}
+
+		/**
+		 * The number of objects constructed (by REDUCE, NEWOBJ, OBJ and INST) per Python class "module.name",
+		 * most frequent first. Objects made by constructors that weren't obtained through a GLOBAL are counted
+		 * under the Java class name of the constructor.
+		 */
+		public Map<String, Long> getConstructorCounts() {
+			return sortedByCount(constructions);
+		}
+
+		@Override
+		public String toString() {
+			return "UnpicklerStats(loads=" + loads + ", failed=" + failedLoads + ", bytes=" + bytes + ", averageNanos=" + getAverageNanos()
+					+ ", maxNanos=" + maxNanos + ", memoHighWater=" + memoHighWater + ", stackHighWater=" + stackHighWater
+					+ ", opcodes=" + getOpcodeCounts() + ", constructors=" + getConstructorCounts() + ")";
+		}
+	}
+
+	/**
+	 * The name of the given opcode (see {@link Opcodes}), or its hex value if it's not a known opcode.
+	 */
+	public static String opcodeName(int opcode) {
+		String name = OPCODE_NAMES[opcode & 0xff];
+		return name != null ? name : String.format("0x%02x", opcode & 0xff);
+	}
+
+	private static Map<String, Long> sortedByCount(Map<String, Long> counts) {
+		Map<String, Long> sorted = new LinkedHashMap<>();
+		counts.entrySet().stream()
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+				.forEachOrdered(e -> sorted.put(e.getKey(), e.getValue()));
+		return Collections.unmodifiableMap(sorted);
+	}
+
+	/**
+	 * Add the statistics of a single load. This is called by the unpickler at the end of every load,
+	 * subclasses can override it to also observe the individual loads.
+	 *
+	 * @param opcodes the number of times every opcode was executed in this load, indexed by opcode
+	 * @param constructions the number of objects constructed per Python class in this load
+	 */
+	protected synchronized void record(long[] opcodes, Map<String, Long> constructions, long bytes, int memoSize, int stackSize, long nanos, boolean failed) {
+		for (int i = 0; i < opcodes.length; i++)
+			this.opcodes[i] += opcodes[i];
+		for (Map.Entry<String, Long> entry : constructions.entrySet())
+			this.constructions.merge(entry.getKey(), entry.getValue(), Long::sum);
+		loads++;
+		if (failed)
+			failedLoads++;
+		this.bytes += bytes;
+		totalNanos += nanos;
+		maxNanos = Math.max(maxNanos, nanos);
+		memoHighWater = Math.max(memoHighWater, memoSize);
+		stackHighWater = Math.max(stackHighWater, stackSize);
+	}
+
+	/**
+	 * A copy of the current statistics.
+	 */
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * A copy of the current statistics, and reset them, as one atomic step.
+	 * Use this to export the numbers per interval.
+	 */
+	public synchronized Snapshot snapshotAndReset() {
+		Snapshot snapshot = new Snapshot(this);
+		reset();
+		return snapshot;
+	}
+
+	/**
+	 * Reset all statistics to zero.
+	 */
+	public synchronized void reset() {
+		Arrays.fill(opcodes, 0);
+		constructions.clear();
+		loads = failedLoads = bytes = totalNanos = maxNanos = 0;
+		memoHighWater = stackHighWater = 0;
+	}
+}
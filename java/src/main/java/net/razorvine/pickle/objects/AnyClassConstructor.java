@@ -5,15 +5,41 @@ import net.razorvine.pickle.PickleException;
 
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This object constructor uses reflection to create instances of any given class.
+ * The constructors that are found are cached per argument signature.
  *
  * @author Irmen de Jong (irmen@razorvine.net)
  */
 public class AnyClassConstructor implements IObjectConstructor {
 
 	private final Class<?> type;
+	private final ConcurrentHashMap<List<Class<?>>, Constructor<?>> constructors = new ConcurrentHashMap<>();
+	private volatile Signature lastSignature;	// the signature used most recently, checked without allocating
+
+	private static final class Signature {
+		final Class<?>[] paramtypes;
+		final Constructor<?> constructor;
+
+		Signature(Class<?>[] paramtypes, Constructor<?> constructor) {
+			this.paramtypes = paramtypes;
+			this.constructor = constructor;
+		}
+
+		boolean matches(Object[] args) {
+			if (args.length != paramtypes.length)
+				return false;
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i].getClass() != paramtypes[i])
+					return false;
+			}
+			return true;
+		}
+	}
 
 	public AnyClassConstructor(Class<?> type) {
 		this.type = type;
@@ -21,14 +47,10 @@ public class AnyClassConstructor implements IObjectConstructor {
 
 	public Object construct(Object[] args) {
 		try {
-			Class<?>[] paramtypes = new Class<?>[args.length];
-			for (int i = 0; i < args.length; ++i) {
-				paramtypes[i] = args[i].getClass();
-			}
-			Constructor<?> cons = type.getConstructor(paramtypes);
+			Constructor<?> cons = getConstructor(args);
 
 			// special case BigDecimal("NaN") which is not supported in Java, return this as Double.NaN
-			if(type == BigDecimal.class && args.length==1) {
+			if(type == BigDecimal.class && args.length==1 && args[0] instanceof String) {
 				String nan = (String) args[0];
 				if(nan.equalsIgnoreCase("nan"))
 					return Double.NaN;
@@ -39,4 +61,22 @@ public class AnyClassConstructor implements IObjectConstructor {
 			throw new PickleException("problem construction object: " + x);
 		}
 	}
+
+	private Constructor<?> getConstructor(Object[] args) throws NoSuchMethodException {
+		Signature signature = lastSignature;
+		if (signature != null && signature.matches(args))
+			return signature.constructor;
+		Class<?>[] paramtypes = new Class<?>[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			paramtypes[i] = args[i].getClass();
+		}
+		List<Class<?>> key = Arrays.asList(paramtypes);
+		Constructor<?> cons = constructors.get(key);
+		if (cons == null) {
+			cons = type.getConstructor(paramtypes);
+			constructors.put(key, cons);
+		}
+		lastSignature = new Signature(paramtypes, cons);
+		return cons;
+	}
 }
@@ -4,7 +4,13 @@ import net.razorvine.pickle.IObjectConstructor;
 import net.razorvine.pickle.PickleException;
 import net.razorvine.pickle.PickleUtils;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Creates arrays of objects. Returns a primitive type array such as int[] if
@@ -15,14 +21,47 @@ import java.util.ArrayList;
  */
 public class ArrayConstructor implements IObjectConstructor {
 
+	/**
+	 * Size in bytes of the chunks that are decoded by a single task, when decoding in parallel.
+	 */
+	public static final int PARALLEL_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private final long parallelThreshold;
+	private final ForkJoinPool parallelPool;
+
+	/**
+	 * Create an array constructor that decodes arrays on the calling thread.
+	 */
+	public ArrayConstructor() {
+		this(Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Create an array constructor that decodes machine code arrays of at least parallelThreshold bytes
+	 * in parallel, in chunks of {@link #PARALLEL_CHUNK_SIZE} bytes, using the common ForkJoinPool.
+	 * To use it, register it for both "array.array" and "array._array_reconstructor" with {@link net.razorvine.pickle.Unpickler#registerConstructor}.
+	 */
+	public ArrayConstructor(long parallelThreshold) {
+		this(parallelThreshold, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create an array constructor that decodes machine code arrays of at least parallelThreshold bytes
+	 * in parallel using the given ForkJoinPool.
+	 */
+	public ArrayConstructor(long parallelThreshold, ForkJoinPool pool) {
+		this.parallelThreshold = parallelThreshold;
+		this.parallelPool = pool;
+	}
+
 	public Object construct(Object[] args) throws PickleException {
-		// args for array constructor: [ String typecode, ArrayList<Object> values ]
+		// args for array constructor: [ String typecode, List<Object> values ]
 		// or: [ constructor_class, typecode, machinecode_type, byte[] ]
 		if (args.length == 4) {
 			ArrayConstructor constructor = (ArrayConstructor) args[0];
 			char typecode = ((String) args[1]).charAt(0);
 			int machinecodeType = (Integer) args[2];
-			byte[] data = (byte[]) args[3];
+			byte[] data = PickleUtils.toBytes(args[3]);
 			return constructor.construct(typecode, machinecodeType, data);
 		}
 		if (args.length != 2) {
@@ -36,7 +75,9 @@ public class ArrayConstructor implements IObjectConstructor {
 			throw new PickleException("unsupported Python 2.6 array pickle format");
 		}
 		@SuppressWarnings("unchecked")
-		ArrayList<Object> values = (ArrayList<Object>) args[1];
+		List<Object> values = (List<Object>) args[1];
+		if (values instanceof PrimitiveList)
+			return construct(typecode.charAt(0), (PrimitiveList) values);
 
 		switch (typecode.charAt(0)) {
 		case 'c':// character 1 -> char[]
@@ -112,6 +153,49 @@ public class ArrayConstructor implements IObjectConstructor {
 		}
 	}
 
+	/**
+	 * Create an array from values that the unpickler has collected in a primitive list,
+	 * without boxing them again.
+	 */
+	protected Object construct(char typecode, PrimitiveList values) throws PickleException {
+		int size = values.size();
+		switch (typecode) {
+		case 'b':// signed integer 1 -> byte[]
+		{
+			byte[] result = new byte[size];
+			for (int i = 0; i < size; i++)
+				result[i] = (byte) values.getInt(i);
+			return result;
+		}
+		case 'B':// unsigned integer 1 -> short[]
+		case 'h':// signed integer 2 -> short[]
+		{
+			short[] result = new short[size];
+			for (int i = 0; i < size; i++)
+				result[i] = (short) values.getInt(i);
+			return result;
+		}
+		case 'H':// unsigned integer 2 -> int[]
+		case 'i':// signed integer 2 -> int[]
+		case 'l':// signed integer 4 -> int[]
+			return values.toIntArray();
+		case 'I':// unsigned integer 4 -> long[]
+		case 'L':// unsigned integer 4 -> long[]
+			return values.toLongArray();
+		case 'f':// floating point 4 -> float[]
+		{
+			float[] result = new float[size];
+			for (int i = 0; i < size; i++)
+				result[i] = (float) values.getDouble(i);
+			return result;
+		}
+		case 'd':// floating point 8 -> double[]
+			return values.toDoubleArray();
+		default:
+			return construct(new Object[] { String.valueOf(typecode), new ArrayList<Object>(values) });
+		}
+	}
+
 	/**
 	 * Create an object based on machine code type
 	 */
@@ -261,39 +345,82 @@ public class ArrayConstructor implements IObjectConstructor {
 		}
 	}
 
-	protected int[] constructIntArrayFromInt32(int machinecode, byte[] data) {
-		int[] result=new int[data.length/4];
-		byte[] bigendian=new byte[4];
-		for(int i=0; i<data.length/4; i++) {
-			if(machinecode==8) {
-				result[i]=PickleUtils.bytes_to_integer(data, i*4, 4);
+	/**
+	 * Decodes a range of elements of the source data into the result array.
+	 */
+	protected interface RangeDecoder {
+		void decode(ByteBuffer source, int index, int count);
+	}
+
+	/**
+	 * Decode count elements of itemsize bytes each, from the start of the source.
+	 * Large arrays are split in chunks that are decoded in parallel, if a parallel threshold is set.
+	 */
+	protected void decode(ByteBuffer source, int itemsize, int count, RangeDecoder decoder) {
+		if (parallelPool == null || (long) count * itemsize < parallelThreshold)
+			decoder.decode(source, 0, count);
+		else
+			parallelPool.invoke(new ParallelDecode(source, itemsize, 0, count, decoder));
+	}
+
+	private static class ParallelDecode extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ByteBuffer source;
+		private final int itemsize;
+		private final int from;
+		private final int to;
+		private final RangeDecoder decoder;
+
+		ParallelDecode(ByteBuffer source, int itemsize, int from, int to, RangeDecoder decoder) {
+			this.source = source;
+			this.itemsize = itemsize;
+			this.from = from;
+			this.to = to;
+			this.decoder = decoder;
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) (to - from) * itemsize <= PARALLEL_CHUNK_SIZE) {
+				decoder.decode(source, from, to - from);
 			} else {
-				// big endian, swap
-				bigendian[0]=data[3+i*4];
-				bigendian[1]=data[2+i*4];
-				bigendian[2]=data[1+i*4];
-				bigendian[3]=data[0+i*4];
-				result[i]=PickleUtils.bytes_to_integer(bigendian);
+				int middle = (from + to) >>> 1;
+				invokeAll(new ParallelDecode(source, itemsize, from, middle, decoder),
+						new ParallelDecode(source, itemsize, middle, to, decoder));
 			}
 		}
+	}
+
+	/**
+	 * A view of the source data that starts at the given element, in the byte order of the machine code.
+	 */
+	private static ByteBuffer view(ByteBuffer source, int machinecode, int offset) {
+		ByteBuffer view = source.duplicate();
+		((Buffer) view).position(offset);
+		return view.order(byteOrder(machinecode));
+	}
+
+	/**
+	 * Even machine codes are little endian, odd ones are big endian.
+	 */
+	private static ByteOrder byteOrder(int machinecode) {
+		return machinecode % 2 == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	protected int[] constructIntArrayFromInt32(final int machinecode, byte[] data) {
+		final int[] result = new int[data.length / 4];
+		decode(ByteBuffer.wrap(data), 4, result.length,
+				(source, index, count) -> view(source, machinecode, index * 4).asIntBuffer().get(result, index, count));
 		return result;
 	}
 
-	protected long[] constructLongArrayFromUInt32(int machinecode, byte[] data) {
-		long[] result=new long[data.length/4];
-		byte[] bigendian=new byte[4];
-		for(int i=0; i<data.length/4; i++) {
-			if(machinecode==6) {
-				result[i]=PickleUtils.bytes_to_uint(data, i*4);
-			} else {
-				// big endian, swap
-				bigendian[0]=data[3+i*4];
-				bigendian[1]=data[2+i*4];
-				bigendian[2]=data[1+i*4];
-				bigendian[3]=data[0+i*4];
-				result[i]=PickleUtils.bytes_to_uint(bigendian, 0);
-			}
-		}
+	protected long[] constructLongArrayFromUInt32(final int machinecode, byte[] data) {
+		final long[] result = new long[data.length / 4];
+		decode(ByteBuffer.wrap(data), 4, result.length, (source, index, count) -> {
+			ByteBuffer buffer = view(source, machinecode, 0);
+			for (int i = index; i < index + count; i++)
+				result[i] = buffer.getInt(i * 4) & 0xffffffffL;
+		});
 		return result;
 	}
 
@@ -302,148 +429,72 @@ public class ArrayConstructor implements IObjectConstructor {
 		throw new PickleException("unsupported datatype: 64-bits unsigned long");
 	}
 
-	protected long[] constructLongArrayFromInt64(int machinecode, byte[] data) {
-		long[] result=new long[data.length/8];
-		byte[] bigendian=new byte[8];
-		for(int i=0; i<data.length/8; i++) {
-			if(machinecode==12) {
-				// little endian can go
-				result[i]=PickleUtils.bytes_to_long(data, i*8);
-			} else {
-				// 13=big endian, swap
-				bigendian[0]=data[7+i*8];
-				bigendian[1]=data[6+i*8];
-				bigendian[2]=data[5+i*8];
-				bigendian[3]=data[4+i*8];
-				bigendian[4]=data[3+i*8];
-				bigendian[5]=data[2+i*8];
-				bigendian[6]=data[1+i*8];
-				bigendian[7]=data[0+i*8];
-				result[i]=PickleUtils.bytes_to_long(bigendian, 0);
-			}
-		}
+	protected long[] constructLongArrayFromInt64(final int machinecode, byte[] data) {
+		final long[] result = new long[data.length / 8];
+		decode(ByteBuffer.wrap(data), 8, result.length,
+				(source, index, count) -> view(source, machinecode, index * 8).asLongBuffer().get(result, index, count));
 		return result;
 	}
 
-	protected double[] constructDoubleArray(int machinecode, byte[] data) {
-		double[] result = new double[data.length / 8];
-		byte[] bigendian=new byte[8];
-		for (int i = 0; i < data.length / 8; ++i) {
-			if(machinecode == 17) {
-				result[i] = PickleUtils.bytes_to_double(data, i * 8);
-			} else {
-				// 16=little endian, flip the bytes
-				bigendian[0]=data[7+i*8];
-				bigendian[1]=data[6+i*8];
-				bigendian[2]=data[5+i*8];
-				bigendian[3]=data[4+i*8];
-				bigendian[4]=data[3+i*8];
-				bigendian[5]=data[2+i*8];
-				bigendian[6]=data[1+i*8];
-				bigendian[7]=data[0+i*8];
-				result[i] = PickleUtils.bytes_to_double(bigendian, 0);
-			}
-		}
+	protected double[] constructDoubleArray(final int machinecode, byte[] data) {
+		final double[] result = new double[data.length / 8];
+		decode(ByteBuffer.wrap(data), 8, result.length,
+				(source, index, count) -> view(source, machinecode, index * 8).asDoubleBuffer().get(result, index, count));
 		return result;
 	}
 
-	protected float[] constructFloatArray(int machinecode, byte[] data) {
-		float[] result = new float[data.length / 4];
-		byte[] bigendian=new byte[4];
-		for (int i = 0; i < data.length / 4; ++i) {
-			if (machinecode == 15) {
-				result[i] = PickleUtils.bytes_to_float(data, i * 4);
-			} else {
-				// 14=little endian, flip the bytes
-				bigendian[0]=data[3+i*4];
-				bigendian[1]=data[2+i*4];
-				bigendian[2]=data[1+i*4];
-				bigendian[3]=data[0+i*4];
-				result[i] = PickleUtils.bytes_to_float(bigendian, 0);
-			}
-		}
+	protected float[] constructFloatArray(final int machinecode, byte[] data) {
+		final float[] result = new float[data.length / 4];
+		decode(ByteBuffer.wrap(data), 4, result.length,
+				(source, index, count) -> view(source, machinecode, index * 4).asFloatBuffer().get(result, index, count));
 		return result;
 	}
 
-	protected int[] constructIntArrayFromUShort(int machinecode, byte[] data) {
-		int[] result = new int[data.length / 2];
-		for(int i=0; i<data.length/2; ++i) {
-			int b1=data[0+i*2] & 0xff;
-			int b2=data[1+i*2] & 0xff;
-			if(machinecode==2) {
-				result[i] = (b2<<8) | b1;
-			} else {
-				// big endian
-				result[i] = (b1<<8) | b2;
-			}
-		}
+	protected int[] constructIntArrayFromUShort(final int machinecode, byte[] data) {
+		final int[] result = new int[data.length / 2];
+		decode(ByteBuffer.wrap(data), 2, result.length, (source, index, count) -> {
+			ByteBuffer buffer = view(source, machinecode, 0);
+			for (int i = index; i < index + count; i++)
+				result[i] = buffer.getShort(i * 2) & 0xffff;
+		});
 		return result;
 	}
 
-	protected short[] constructShortArraySigned(int machinecode, byte[] data) {
-		short[] result = new short[data.length / 2];
-		for(int i=0; i<data.length/2; ++i) {
-			byte b1=data[0+i*2];
-			byte b2=data[1+i*2];
-			if(machinecode==4) {
-				result[i] = (short) ((b2<<8) | (b1&0xff));
-			} else {
-				// big endian
-				result[i] = (short) ((b1<<8) | (b2&0xff));
-			}
-		}
+	protected short[] constructShortArraySigned(final int machinecode, byte[] data) {
+		final short[] result = new short[data.length / 2];
+		decode(ByteBuffer.wrap(data), 2, result.length,
+				(source, index, count) -> view(source, machinecode, index * 2).asShortBuffer().get(result, index, count));
 		return result;
 	}
 
-	protected short[] constructShortArrayFromUByte(byte[] data) {
-		short[] result = new short[data.length];
-		for(int i=0; i<data.length; ++i) {
-			result[i] = (short) (data[i]&0xff);
-		}
+	protected short[] constructShortArrayFromUByte(final byte[] data) {
+		final short[] result = new short[data.length];
+		decode(ByteBuffer.wrap(data), 1, result.length, (source, index, count) -> {
+			for (int i = index; i < index + count; i++)
+				result[i] = (short) (data[i] & 0xff);
+		});
 		return result;
 	}
 
-	protected char[] constructCharArrayUTF32(int machinecode, byte[] data) {
-		char[] result = new char[data.length / 4];
-		byte[] bigendian=new byte[4];
-		for (int index = 0; index < data.length / 4; ++index) {
-			if (machinecode == 20) {
-				int codepoint=PickleUtils.bytes_to_integer(data, index*4, 4);
-				char[] cc=Character.toChars(codepoint);
-				if(cc.length>1)
-					throw new PickleException("cannot process UTF-32 character codepoint "+codepoint);
-				result[index] = cc[0];
+	protected char[] constructCharArrayUTF32(final int machinecode, byte[] data) {
+		final char[] result = new char[data.length / 4];
+		decode(ByteBuffer.wrap(data), 4, result.length, (source, index, count) -> {
+			ByteBuffer buffer = view(source, machinecode, 0);
+			for (int i = index; i < index + count; i++) {
+				int codepoint = buffer.getInt(i * 4);
+				char[] cc = Character.toChars(codepoint);
+				if (cc.length > 1)
+					throw new PickleException("cannot process UTF-32 character codepoint " + codepoint);
+				result[i] = cc[0];
 			}
-			else {
-				// big endian, swap
-				bigendian[0]=data[3+index*4];
-				bigendian[1]=data[2+index*4];
-				bigendian[2]=data[1+index*4];
-				bigendian[3]=data[index*4];
-				int codepoint=PickleUtils.bytes_to_integer(bigendian);
-				char[] cc=Character.toChars(codepoint);
-				if(cc.length>1)
-					throw new PickleException("cannot process UTF-32 character codepoint "+codepoint);
-				result[index] = cc[0];
-			}
-		}
+		});
 		return result;
 	}
 
-	protected char[] constructCharArrayUTF16(int machinecode, byte[] data) {
-		char[] result = new char[data.length / 2];
-		byte[] bigendian=new byte[2];
-		for (int index = 0; index < data.length / 2; ++index) {
-			if (machinecode == 18) {
-				result[index] = (char) PickleUtils.bytes_to_integer(data, index*2, 2);
-			}
-			else {
-				// big endian, swap
-				bigendian[0]=data[1+index*2];
-				bigendian[1]=data[0+index*2];
-				result[index] = (char) PickleUtils.bytes_to_integer(bigendian);
-			}
-		}
+	protected char[] constructCharArrayUTF16(final int machinecode, byte[] data) {
+		final char[] result = new char[data.length / 2];
+		decode(ByteBuffer.wrap(data), 2, result.length,
+				(source, index, count) -> view(source, machinecode, index * 2).asCharBuffer().get(result, index, count));
 		return result;
 	}
 }
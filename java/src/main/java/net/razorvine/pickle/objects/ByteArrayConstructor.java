@@ -4,7 +4,8 @@ import net.razorvine.pickle.IObjectConstructor;
 import net.razorvine.pickle.PickleException;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Creates byte arrays (byte[]).
@@ -15,7 +16,7 @@ public class ByteArrayConstructor implements IObjectConstructor {
 
 	public Object construct(Object[] args) throws PickleException {
 		// args for bytearray constructor: [ String string, String encoding ]
-		// args for bytearray constructor (from python3 bytes): [ ArrayList<Number> ] or just [byte[]] (when it uses BINBYTES opcode)
+		// args for bytearray constructor (from python3 bytes): [ List<Number> ] or just [byte[]] (when it uses BINBYTES opcode), or [ByteBuffer] (zero-copy bytes)
 		// or, zero arguments: empty bytearray.
 		if (args.length>2)
 			throw new PickleException("invalid pickle data for bytearray; expected 0, 1 or 2 args, got "+args.length);
@@ -24,11 +25,11 @@ public class ByteArrayConstructor implements IObjectConstructor {
 			return new byte[0];
 
 		if(args.length==1) {
-			if(args[0] instanceof byte[]) {
+			if(args[0] instanceof byte[] || args[0] instanceof ByteBuffer) {
 				return args[0];
 			}
 			@SuppressWarnings("unchecked")
-			ArrayList<Number>values=(ArrayList<Number>)args[0];
+			List<Number>values=(List<Number>)args[0];
 			byte[] data=new byte[values.size()];
 			for(int i=0; i<data.length; ++i) {
 				data[i] = values.get(i).byteValue();
@@ -2,6 +2,7 @@ package net.razorvine.pickle.objects;
 
 import net.razorvine.pickle.IObjectConstructor;
 import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -91,7 +92,7 @@ public class DateTimeConstructor implements IObjectConstructor {
 			int ms3 = params.charAt(9);
 			microsec = ((ms1 << 8) | ms2) << 8 | ms3;
 		} else {
-			byte[] params=(byte[])args[0];
+			byte[] params=PickleUtils.toBytes(args[0]);
 			if (params.length != 10)
 				throw new PickleException("invalid pickle data for datetime; expected arg of length 10, got length "+params.length);
 			yhi=params[0]&0xff;
@@ -148,7 +149,7 @@ public class DateTimeConstructor implements IObjectConstructor {
 			int ms3 = params.charAt(5);
 			microsec = ((ms1 << 8) | ms2) << 8 | ms3;
 		} else {
-			byte[] params=(byte[])args[0];
+			byte[] params=PickleUtils.toBytes(args[0]);
 			if (params.length != 6)
 				throw new PickleException("invalid pickle data for datetime; expected arg of length 6, got length "+params.length);
 			hour=params[0]&0xff;
@@ -184,7 +185,7 @@ public class DateTimeConstructor implements IObjectConstructor {
 			month = params.charAt(2) - 1; // blargh: months start at 0 in Java
 			day = params.charAt(3);
 		} else {
-			byte[] params=(byte[])args[0];
+			byte[] params=PickleUtils.toBytes(args[0]);
 			if (params.length != 4)
 				throw new PickleException("invalid pickle data for date; expected arg of length 4, got length "+params.length);
 			yhi=params[0]&0xff;
@@ -0,0 +1,302 @@
+package net.razorvine.pickle.objects;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map that stores Integer keys as primitive ints in an open addressing hash table, as long as all keys are Integers.
+ * When a key of another type is put in the map, it widens itself to a regular HashMap internally,
+ * so it can hold anything a HashMap can. Use {@link #get(int)}, {@link #containsKey(int)} and
+ * {@link #put(int, Object)} to work with int keys without boxing.
+ *
+ * Used by the Unpickler for dicts, when primitive collections are enabled.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class IntKeyMap extends AbstractMap<Object, Object> implements Serializable {
+	private static final long serialVersionUID = -4403297380911707541L;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final Object NULL = new NullValue(false);		// placeholder for a null value
+	private static final Object DELETED = new NullValue(true);	// placeholder for a removed entry
+
+	/**
+	 * The placeholders are compared by identity, so deserialization must give back the same instances.
+	 */
+	private static final class NullValue implements Serializable {
+		private static final long serialVersionUID = 2L;
+		private final boolean deleted;
+
+		NullValue(boolean deleted) {
+			this.deleted = deleted;
+		}
+
+		private Object readResolve() {
+			return deleted ? DELETED : NULL;
+		}
+	}
+
+	private int[] keys;
+	private Object[] values;	// null means the slot is free
+	private int size;
+	private int used;			// slots that are in use or deleted
+	private HashMap<Object, Object> widened;	// once a non-int key is added, this holds all entries
+	private int modCount;
+
+	public IntKeyMap() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public IntKeyMap(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity * 3 < expectedSize * 4)
+			capacity <<= 1;
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * Whether the map is still storing its keys as primitive ints.
+	 */
+	public boolean isIntKeyed() {
+		return widened == null;
+	}
+
+	private int slot(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Find the slot of the given key, or -1 if it is not in the table.
+	 */
+	private int find(int key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			Object value = values[i];
+			if (value == null)
+				return -1;
+			if (value != DELETED && keys[i] == key)
+				return i;
+		}
+	}
+
+	private static Object unmask(Object value) {
+		return value == NULL ? null : value;
+	}
+
+	public Object get(int key) {
+		if (widened != null)
+			return widened.get(key);
+		int i = find(key);
+		return i < 0 ? null : unmask(values[i]);
+	}
+
+	public boolean containsKey(int key) {
+		if (widened != null)
+			return widened.containsKey(key);
+		return find(key) >= 0;
+	}
+
+	public Object put(int key, Object value) {
+		if (widened != null)
+			return widened.put(key, value);
+		int i = find(key);
+		if (i >= 0) {
+			Object previous = unmask(values[i]);
+			values[i] = value == null ? NULL : value;
+			return previous;
+		}
+		if ((used + 1) * 4 > keys.length * 3)
+			rehash(size + 1 > keys.length / 2 ? keys.length * 2 : keys.length);
+		int mask = keys.length - 1;
+		i = slot(key);
+		while (values[i] != null && values[i] != DELETED)
+			i = (i + 1) & mask;
+		if (values[i] == null)
+			used++;
+		keys[i] = key;
+		values[i] = value == null ? NULL : value;
+		size++;
+		modCount++;
+		return null;
+	}
+
+	public Object remove(int key) {
+		if (widened != null)
+			return widened.remove(key);
+		int i = find(key);
+		if (i < 0)
+			return null;
+		Object previous = unmask(values[i]);
+		values[i] = DELETED;
+		size--;
+		modCount++;
+		return previous;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		used = 0;
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			Object value = oldValues[j];
+			if (value != null && value != DELETED) {
+				int i = slot(oldKeys[j]);
+				while (values[i] != null)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				values[i] = value;
+				used++;
+			}
+		}
+	}
+
+	/**
+	 * Move all entries to a regular HashMap, to be able to store keys that are not Integers.
+	 */
+	private void widen() {
+		widened = new HashMap<>(Math.max(INITIAL_CAPACITY, size * 2));
+		for (int i = 0; i < keys.length; i++) {
+			Object value = values[i];
+			if (value != null && value != DELETED)
+				widened.put(keys[i], unmask(value));
+		}
+		keys = null;
+		values = null;
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return widened != null ? widened.size() : size;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (widened != null)
+			return widened.get(key);
+		return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (widened != null)
+			return widened.containsKey(key);
+		return key instanceof Integer && containsKey(((Integer) key).intValue());
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		if (widened == null) {
+			if (key instanceof Integer)
+				return put(((Integer) key).intValue(), value);
+			widen();
+		}
+		return widened.put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (widened != null)
+			return widened.remove(key);
+		return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+	}
+
+	@Override
+	public void clear() {
+		if (widened != null) {
+			widened.clear();
+		} else {
+			Arrays.fill(values, null);
+			size = used = 0;
+			modCount++;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<Object, Object>>() {
+			@Override
+			public Iterator<Map.Entry<Object, Object>> iterator() {
+				if (widened != null)
+					return widened.entrySet().iterator();
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return IntKeyMap.this.size();
+			}
+
+			@Override
+			public void clear() {
+				IntKeyMap.this.clear();
+			}
+		};
+	}
+
+	private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+		private final int[] tableKeys = keys;
+		private final Object[] tableValues = values;
+		private int expectedModCount = modCount;
+		private int next = advance(0);
+		private int current = -1;
+
+		private int advance(int i) {
+			while (i < tableValues.length && (tableValues[i] == null || tableValues[i] == DELETED))
+				i++;
+			return i;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < tableValues.length;
+		}
+
+		@Override
+		public Map.Entry<Object, Object> next() {
+			if (modCount != expectedModCount || widened != null)
+				throw new ConcurrentModificationException();
+			if (next >= tableValues.length)
+				throw new NoSuchElementException();
+			current = next;
+			next = advance(next + 1);
+			final int slot = current;
+			return new AbstractMap.SimpleEntry<Object, Object>(tableKeys[slot], unmask(tableValues[slot])) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Object setValue(Object value) {
+					if (widened != null || values != tableValues)
+						throw new ConcurrentModificationException();
+					tableValues[slot] = value == null ? NULL : value;
+					return super.setValue(value);
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			if (current < 0)
+				throw new IllegalStateException();
+			if (modCount != expectedModCount || widened != null)
+				throw new ConcurrentModificationException();
+			tableValues[current] = DELETED;
+			size--;
+			modCount++;
+			expectedModCount = modCount;
+			current = -1;
+		}
+	}
+}
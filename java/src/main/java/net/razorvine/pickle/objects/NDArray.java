@@ -0,0 +1,141 @@
+package net.razorvine.pickle.objects;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import net.razorvine.pickle.PickleException;
+
+/**
+ * A numpy ndarray: its shape, dtype and element data.
+ * The data of numeric dtypes is a primitive array (see {@link NumpyDType#decode}), in C (row-major) order
+ * or in Fortran (column-major) order if {@link #isFortranOrder()}. When the pickle provides the data as a ByteBuffer
+ * (out-of-band buffers of protocol 5, or zero-copy bytes) the data is a view of that buffer instead, in the
+ * byte order of the dtype, so it is not copied. Object arrays have an Object[] as data,
+ * other dtypes (strings, structured types, ...) a ByteBuffer with the raw element data.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class NDArray {
+	private int[] shape = new int[] { 0 };
+	private NumpyDType dtype;
+	private boolean fortranOrder;
+	private Object data;
+
+	/**
+	 * Create an empty array, the contents are set later by {@link #__setstate__(Object[])}.
+	 */
+	public NDArray() {
+	}
+
+	/**
+	 * Create an array from the raw element data (a byte[], ByteBuffer, String or List).
+	 */
+	public NDArray(NumpyDType dtype, int[] shape, boolean fortranOrder, Object rawdata) {
+		setContents(dtype, shape, fortranOrder, rawdata);
+	}
+
+	/**
+	 * Set the state of the array; the state tuple is (version, shape, dtype, is_fortran, rawdata).
+	 */
+	public void __setstate__(Object[] state) {
+		int offset = state.length == 5 ? 1 : 0;		// old pickles don't have the version field
+		if (state.length - offset != 4)
+			throw new PickleException("unsupported numpy ndarray state");
+		setContents((NumpyDType) state[offset + 1], toShape(state[offset]), (Boolean) state[offset + 2], state[offset + 3]);
+	}
+
+	static int[] toShape(Object shape) {
+		Object[] dimensions = (Object[]) shape;
+		int[] result = new int[dimensions.length];
+		for (int i = 0; i < dimensions.length; i++)
+			result[i] = ((Number) dimensions[i]).intValue();
+		return result;
+	}
+
+	private void setContents(NumpyDType dtype, int[] shape, boolean fortranOrder, Object rawdata) {
+		this.dtype = dtype;
+		this.shape = shape;
+		this.fortranOrder = fortranOrder;
+		int count = size();
+		if (rawdata instanceof List) {
+			data = ((List<?>) rawdata).toArray();	// object arrays are pickled as a list of the elements
+		} else if (rawdata instanceof ByteBuffer) {
+			ByteBuffer buffer = ((ByteBuffer) rawdata).duplicate().order(dtype.getByteOrder());
+			if ((long) count * dtype.getItemsize() > buffer.remaining())
+				throw new PickleException("numpy array data too small");
+			data = buffer;
+		} else {
+			ByteBuffer buffer = toBuffer(rawdata);
+			data = dtype.isNumeric() ? dtype.decode(buffer, count) : buffer.order(dtype.getByteOrder());
+		}
+	}
+
+	/**
+	 * Wrap raw data (bytes, a ByteBuffer, or a Python 2 str) in a ByteBuffer.
+	 */
+	static ByteBuffer toBuffer(Object rawdata) {
+		if (rawdata instanceof ByteBuffer)
+			return (ByteBuffer) rawdata;
+		if (rawdata instanceof String)
+			return ByteBuffer.wrap(((String) rawdata).getBytes(StandardCharsets.ISO_8859_1));
+		if (rawdata instanceof byte[])
+			return ByteBuffer.wrap((byte[]) rawdata);
+		throw new PickleException("invalid numpy data");
+	}
+
+	/**
+	 * The dimensions of the array.
+	 */
+	public int[] getShape() {
+		return shape;
+	}
+
+	/**
+	 * The data type of the elements.
+	 */
+	public NumpyDType getDType() {
+		return dtype;
+	}
+
+	/**
+	 * Whether the data is in Fortran (column-major) order instead of C (row-major) order.
+	 */
+	public boolean isFortranOrder() {
+		return fortranOrder;
+	}
+
+	/**
+	 * The element data: a primitive array, a ByteBuffer or an Object[], see the class documentation.
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	/**
+	 * The number of elements.
+	 */
+	public int size() {
+		long size = 1;
+		for (int dimension : shape)
+			size *= dimension;
+		if (size > Integer.MAX_VALUE)
+			throw new PickleException("numpy array too large");
+		return (int) size;
+	}
+
+	/**
+	 * The element data as a primitive array, decoding it from the ByteBuffer if the data is a buffer.
+	 */
+	public Object toArray() {
+		if (data instanceof ByteBuffer && dtype.isNumeric())
+			return dtype.decode((ByteBuffer) data, size());
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return "NDArray(shape=" + Arrays.toString(shape) + ", dtype=" + dtype + ")";
+	}
+}
@@ -0,0 +1,52 @@
+package net.razorvine.pickle.objects;
+
+import net.razorvine.pickle.IObjectConstructor;
+import net.razorvine.pickle.PickleException;
+
+/**
+ * This object constructor creates numpy dtypes, ndarrays and scalars.
+ * Arrays are pickled either as numpy.core.multiarray._reconstruct followed by a BUILD with the array state,
+ * or (protocol 5) as numpy.core.numeric._frombuffer(buffer, dtype, shape, order). See {@link NDArray}.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class NumpyConstructor implements IObjectConstructor {
+	public static final int DTYPE = 1;
+	public static final int RECONSTRUCT = 2;
+	public static final int FROMBUFFER = 3;
+	public static final int SCALAR = 4;
+
+	private final int pythontype;
+
+	public NumpyConstructor(int pythontype) {
+		this.pythontype = pythontype;
+	}
+
+	public Object construct(Object[] args) throws PickleException {
+		switch (pythontype) {
+		case DTYPE:
+			// args: (typestr, align, copy)
+			if (args.length < 1)
+				throw new PickleException("invalid pickle data for numpy dtype");
+			return new NumpyDType((String) args[0]);
+		case RECONSTRUCT:
+			// args: (subtype, shape, dtype); the actual contents are set by BUILD
+			return new NDArray();
+		case FROMBUFFER: {
+			// args: (buffer, dtype, shape, order)
+			if (args.length != 4)
+				throw new PickleException("invalid pickle data for numpy array; expected 4 args, got " + args.length);
+			return new NDArray((NumpyDType) args[1], NDArray.toShape(args[2]), "F".equals(args[3]), args[0]);
+		}
+		case SCALAR: {
+			// args: (dtype, rawdata)
+			if (args.length != 2)
+				throw new PickleException("invalid pickle data for numpy scalar; expected 2 args, got " + args.length);
+			NumpyDType dtype = (NumpyDType) args[0];
+			return dtype.isNumeric() ? dtype.decodeScalar(NDArray.toBuffer(args[1])) : args[1];
+		}
+		default:
+			throw new PickleException("invalid object type");
+		}
+	}
+}
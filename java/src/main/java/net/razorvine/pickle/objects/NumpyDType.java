@@ -0,0 +1,261 @@
+package net.razorvine.pickle.objects;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.razorvine.pickle.PickleException;
+
+/**
+ * A numpy dtype (data type of the elements of an array or of a numpy scalar).
+ * Knows how to decode the raw data of the standard numeric types:
+ * bool, (unsigned) integers, floats and complex numbers, and datetime64/timedelta64 as their int64 value.
+ * Other types (strings, structured types, ...) are not decoded, their raw data is kept in a ByteBuffer.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class NumpyDType implements Serializable {
+	private static final long serialVersionUID = -2370155530036218812L;
+	private final char kind;
+	private final int itemsize;
+	private char byteorder = '|';
+	private boolean structured;
+
+	/**
+	 * Create a dtype from its type string, such as "f8" or "i4" (without byte order).
+	 */
+	public NumpyDType(String typestr) {
+		if (typestr.isEmpty())
+			throw new PickleException("invalid numpy dtype");
+		kind = typestr.charAt(0);
+		int size = 0;
+		for (int i = 1; i < typestr.length() && Character.isDigit(typestr.charAt(i)); i++)
+			size = size * 10 + (typestr.charAt(i) - '0');
+		itemsize = size;
+		if (itemsize > 1 && isNumeric())
+			byteorder = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? '<' : '>';
+	}
+
+	/**
+	 * Set the state of the dtype; the state tuple is (version, byteorder, subarray, names, fields, elsize, alignment, flags[, metadata]).
+	 */
+	public void __setstate__(Object[] state) {
+		if (state.length < 4)
+			throw new PickleException("unsupported numpy dtype state");
+		char order = ((String) state[1]).charAt(0);
+		if (order == '=')
+			order = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? '<' : '>';
+		byteorder = order;
+		structured = state[2] != null || state[3] != null;
+	}
+
+	/**
+	 * The kind of the type: 'b' bool, 'i' signed integer, 'u' unsigned integer, 'f' float, 'c' complex,
+	 * 'M' datetime, 'm' timedelta, 'O' object, 'S' bytes, 'U' unicode, 'V' void.
+	 */
+	public char getKind() {
+		return kind;
+	}
+
+	/**
+	 * Size of an element in bytes.
+	 */
+	public int getItemsize() {
+		return itemsize;
+	}
+
+	/**
+	 * The byte order of the element data.
+	 */
+	public ByteOrder getByteOrder() {
+		return byteorder == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/**
+	 * Whether elements of this type are decoded into a Java primitive array (see {@link #decode}).
+	 */
+	public boolean isNumeric() {
+		if (structured)
+			return false;
+		switch (kind) {
+		case 'b':
+			return itemsize == 1;
+		case 'i':
+		case 'u':
+			return itemsize == 1 || itemsize == 2 || itemsize == 4 || itemsize == 8;
+		case 'f':
+			return itemsize == 2 || itemsize == 4 || itemsize == 8;
+		case 'c':
+			return itemsize == 8 || itemsize == 16;
+		case 'M':
+		case 'm':
+			return itemsize == 8;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Decode count elements from the buffer (from its position, in the byte order of this dtype) into a primitive array:
+	 * bool -&gt; boolean[], int8 -&gt; byte[], uint8/int16 -&gt; short[], uint16/int32 -&gt; int[],
+	 * uint32/int64/uint64 -&gt; long[] (uint64 as the raw bits), float16/float32 -&gt; float[], float64 -&gt; double[],
+	 * complex64/complex128 -&gt; float[]/double[] with the real and imaginary parts interleaved,
+	 * datetime64/timedelta64 -&gt; long[].
+	 * The buffer's position is not changed.
+	 */
+	public Object decode(ByteBuffer data, int count) {
+		if (!isNumeric())
+			throw new PickleException("numpy dtype can't be decoded to a primitive array: " + this);
+		if ((long) count * itemsize > data.remaining())
+			throw new PickleException("numpy array data too small");
+		ByteBuffer buffer = data.duplicate().order(getByteOrder());
+		switch (kind) {
+		case 'b': {
+			boolean[] result = new boolean[count];
+			int position = buffer.position();
+			for (int i = 0; i < count; i++)
+				result[i] = buffer.get(position + i) != 0;
+			return result;
+		}
+		case 'i':
+		case 'M':
+		case 'm':
+			switch (itemsize) {
+			case 1: {
+				byte[] result = new byte[count];
+				buffer.get(result);
+				return result;
+			}
+			case 2: {
+				short[] result = new short[count];
+				buffer.asShortBuffer().get(result);
+				return result;
+			}
+			case 4: {
+				int[] result = new int[count];
+				buffer.asIntBuffer().get(result);
+				return result;
+			}
+			default: {
+				long[] result = new long[count];
+				buffer.asLongBuffer().get(result);
+				return result;
+			}
+			}
+		case 'u':
+			switch (itemsize) {
+			case 1: {
+				short[] result = new short[count];
+				int position = buffer.position();
+				for (int i = 0; i < count; i++)
+					result[i] = (short) (buffer.get(position + i) & 0xff);
+				return result;
+			}
+			case 2: {
+				int[] result = new int[count];
+				int position = buffer.position();
+				for (int i = 0; i < count; i++)
+					result[i] = buffer.getShort(position + i * 2) & 0xffff;
+				return result;
+			}
+			case 4: {
+				long[] result = new long[count];
+				int position = buffer.position();
+				for (int i = 0; i < count; i++)
+					result[i] = buffer.getInt(position + i * 4) & 0xffffffffL;
+				return result;
+			}
+			default: {
+				long[] result = new long[count];
+				buffer.asLongBuffer().get(result);
+				return result;
+			}
+			}
+		case 'f':
+			if (itemsize == 2) {
+				float[] result = new float[count];
+				int position = buffer.position();
+				for (int i = 0; i < count; i++)
+					result[i] = halfToFloat(buffer.getShort(position + i * 2));
+				return result;
+			} else if (itemsize == 4) {
+				float[] result = new float[count];
+				buffer.asFloatBuffer().get(result);
+				return result;
+			} else {
+				double[] result = new double[count];
+				buffer.asDoubleBuffer().get(result);
+				return result;
+			}
+		default:	// complex
+			if (itemsize == 8) {
+				float[] result = new float[count * 2];
+				buffer.asFloatBuffer().get(result);
+				return result;
+			} else {
+				double[] result = new double[count * 2];
+				buffer.asDoubleBuffer().get(result);
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Decode a single element (a numpy scalar) into the corresponding Java object:
+	 * bool -&gt; Boolean, int8/uint8/int16/uint16/int32 -&gt; Integer, uint32/int64 -&gt; Long, uint64 -&gt; Long or BigInteger,
+	 * float16/float32 -&gt; Float, float64 -&gt; Double, complex -&gt; ComplexNumber, datetime64/timedelta64 -&gt; Long.
+	 */
+	public Object decodeScalar(ByteBuffer data) {
+		Object array = decode(data, 1);
+		switch (kind) {
+		case 'b':
+			return ((boolean[]) array)[0];
+		case 'i':
+		case 'u':
+			if (array instanceof byte[])
+				return (int) ((byte[]) array)[0];
+			if (array instanceof short[])
+				return (int) ((short[]) array)[0];
+			if (array instanceof int[])
+				return ((int[]) array)[0];
+			long value = ((long[]) array)[0];
+			if (kind == 'u' && itemsize == 8 && value < 0)
+				return new BigInteger(Long.toUnsignedString(value));
+			return value;
+		case 'M':
+		case 'm':
+			return ((long[]) array)[0];
+		case 'f':
+			if (array instanceof float[])
+				return ((float[]) array)[0];
+			return ((double[]) array)[0];
+		default:	// complex
+			if (array instanceof float[])
+				return new ComplexNumber(((float[]) array)[0], ((float[]) array)[1]);
+			return new ComplexNumber(((double[]) array)[0], ((double[]) array)[1]);
+		}
+	}
+
+	/**
+	 * Convert an IEEE 754 half precision float to a float.
+	 */
+	static float halfToFloat(short half) {
+		int bits = half & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if (exponent == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));	// inf or nan
+		if (exponent == 0) {
+			float value = mantissa * (1.0f / (1 << 24));	// subnormal (or zero)
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	@Override
+	public String toString() {
+		return "" + byteorder + kind + itemsize;
+	}
+}
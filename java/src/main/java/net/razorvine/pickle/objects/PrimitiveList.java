@@ -0,0 +1,344 @@
+package net.razorvine.pickle.objects;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * List that stores its elements in a primitive array as long as they are all of the same
+ * numeric type (all Integer, all Long or all Double), and in an Object array otherwise.
+ * Integers and Longs are stored together in a long array, because the ints of a Python list
+ * are unpickled as a mix of both when their values cross 2^31; get() then returns all of them as Long.
+ * When an element of another type is added, the list widens itself to an Object array,
+ * so it can hold anything an ArrayList can. Those elements keep their original type: get()
+ * returns the same (boxed) values that were added.
+ * Use {@link #getInt}, {@link #getLong}, {@link #getDouble} or the toXXXArray methods
+ * to access the values without boxing.
+ *
+ * Used by the Unpickler for lists, when primitive collections are enabled.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PrimitiveList extends AbstractList<Object> implements RandomAccess, Serializable {
+	private static final long serialVersionUID = 6160843702616584412L;
+	private static final int INITIAL_CAPACITY = 10;
+
+	/**
+	 * The type of storage used by the list.
+	 */
+	public enum Kind {
+		/** int[] storage, all elements are Integers */
+		INT,
+		/** long[] storage, all elements are Longs (Integers are stored as longs too) */
+		LONG,
+		/** double[] storage, all elements are Doubles */
+		DOUBLE,
+		/** Object[] storage, for mixed or non-numeric elements */
+		OBJECT
+	}
+
+	private Kind kind;
+	private Object data;	// int[], long[], double[] or Object[] depending on the kind
+	private int size;
+	private int capacity;
+
+	public PrimitiveList() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PrimitiveList(int capacity) {
+		kind = Kind.INT;
+		data = new int[capacity];
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The type of storage currently used.
+	 */
+	public Kind kind() {
+		return kind;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object get(int index) {
+		checkIndex(index);
+		switch (kind) {
+		case INT:
+			return ((int[]) data)[index];
+		case LONG:
+			return ((long[]) data)[index];
+		case DOUBLE:
+			return ((double[]) data)[index];
+		default:
+			return ((Object[]) data)[index];
+		}
+	}
+
+	/**
+	 * Get an element as int, without boxing if the list stores numbers in a primitive array.
+	 */
+	public int getInt(int index) {
+		checkIndex(index);
+		switch (kind) {
+		case INT:
+			return ((int[]) data)[index];
+		case LONG:
+			return (int) ((long[]) data)[index];
+		case DOUBLE:
+			return (int) ((double[]) data)[index];
+		default:
+			return ((Number) ((Object[]) data)[index]).intValue();
+		}
+	}
+
+	/**
+	 * Get an element as long, without boxing if the list stores ints or longs.
+	 */
+	public long getLong(int index) {
+		checkIndex(index);
+		if (kind == Kind.INT)
+			return ((int[]) data)[index];
+		if (kind == Kind.LONG)
+			return ((long[]) data)[index];
+		return ((Number) get(index)).longValue();
+	}
+
+	/**
+	 * Get an element as double, without boxing if the list stores numbers in a primitive array.
+	 */
+	public double getDouble(int index) {
+		checkIndex(index);
+		switch (kind) {
+		case INT:
+			return ((int[]) data)[index];
+		case LONG:
+			return ((long[]) data)[index];
+		case DOUBLE:
+			return ((double[]) data)[index];
+		default:
+			return ((Number) ((Object[]) data)[index]).doubleValue();
+		}
+	}
+
+	/**
+	 * Copy the elements to an int array. The elements must all be numbers.
+	 */
+	public int[] toIntArray() {
+		if (kind == Kind.INT)
+			return Arrays.copyOf((int[]) data, size);
+		int[] result = new int[size];
+		for (int i = 0; i < size; i++)
+			result[i] = getInt(i);
+		return result;
+	}
+
+	/**
+	 * Copy the elements to a long array. The elements must all be numbers.
+	 */
+	public long[] toLongArray() {
+		if (kind == Kind.LONG)
+			return Arrays.copyOf((long[]) data, size);
+		long[] result = new long[size];
+		for (int i = 0; i < size; i++)
+			result[i] = getLong(i);
+		return result;
+	}
+
+	/**
+	 * Copy the elements to a double array. The elements must all be numbers.
+	 */
+	public double[] toDoubleArray() {
+		if (kind == Kind.DOUBLE)
+			return Arrays.copyOf((double[]) data, size);
+		double[] result = new double[size];
+		for (int i = 0; i < size; i++)
+			result[i] = getDouble(i);
+		return result;
+	}
+
+	@Override
+	public Object set(int index, Object element) {
+		checkIndex(index);
+		Object previous = get(index);
+		store(index, element);
+		return previous;
+	}
+
+	@Override
+	public boolean add(Object element) {
+		if (size == 0 && kind != Kind.OBJECT)
+			selectKind(element);
+		ensureCapacity(size + 1);
+		store(size, element);
+		size++;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public void add(int index, Object element) {
+		if (index == size) {
+			add(element);
+			return;
+		}
+		checkIndex(index);
+		ensureCapacity(size + 1);
+		System.arraycopy(data, index, data, index + 1, size - index);
+		size++;
+		store(index, element);
+		modCount++;
+	}
+
+	@Override
+	public Object remove(int index) {
+		Object previous = get(index);
+		System.arraycopy(data, index + 1, data, index, size - index - 1);
+		size--;
+		if (kind == Kind.OBJECT)
+			((Object[]) data)[size] = null;
+		modCount++;
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		if (kind == Kind.OBJECT)
+			Arrays.fill((Object[]) data, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Make sure the list can hold the given number of elements without growing its storage.
+	 */
+	public void ensureCapacity(int minCapacity) {
+		if (minCapacity > capacity)
+			resize(Math.max(minCapacity, capacity + (capacity >> 1) + 1));
+	}
+
+	/**
+	 * Shrink the storage to the number of elements.
+	 */
+	public void trimToSize() {
+		resize(size);
+	}
+
+	private void resize(int capacity) {
+		this.capacity = capacity;
+		switch (kind) {
+		case INT:
+			data = Arrays.copyOf((int[]) data, capacity);
+			break;
+		case LONG:
+			data = Arrays.copyOf((long[]) data, capacity);
+			break;
+		case DOUBLE:
+			data = Arrays.copyOf((double[]) data, capacity);
+			break;
+		default:
+			data = Arrays.copyOf((Object[]) data, capacity);
+			break;
+		}
+	}
+
+	/**
+	 * Pick the storage for an empty list, based on the first element that is added.
+	 */
+	private void selectKind(Object element) {
+		Kind wanted = kindOf(element);
+		if (wanted == kind)
+			return;
+		kind = wanted;
+		switch (kind) {
+		case INT:
+			data = new int[capacity];
+			break;
+		case LONG:
+			data = new long[capacity];
+			break;
+		case DOUBLE:
+			data = new double[capacity];
+			break;
+		default:
+			data = new Object[capacity];
+			break;
+		}
+	}
+
+	private static Kind kindOf(Object element) {
+		if (element instanceof Integer)
+			return Kind.INT;
+		if (element instanceof Long)
+			return Kind.LONG;
+		if (element instanceof Double)
+			return Kind.DOUBLE;
+		return Kind.OBJECT;
+	}
+
+	private void store(int index, Object element) {
+		switch (kind) {
+		case INT:
+			if (element instanceof Integer) {
+				((int[]) data)[index] = (Integer) element;
+				return;
+			}
+			if (element instanceof Long) {
+				widenToLong();
+				((long[]) data)[index] = (Long) element;
+				return;
+			}
+			break;
+		case LONG:
+			if (element instanceof Long || element instanceof Integer) {
+				((long[]) data)[index] = ((Number) element).longValue();
+				return;
+			}
+			break;
+		case DOUBLE:
+			if (element instanceof Double) {
+				((double[]) data)[index] = (Double) element;
+				return;
+			}
+			break;
+		default:
+			((Object[]) data)[index] = element;
+			return;
+		}
+		widen();
+		((Object[]) data)[index] = element;
+	}
+
+	/**
+	 * Switch from int[] to long[] storage.
+	 */
+	private void widenToLong() {
+		int[] ints = (int[]) data;
+		long[] longs = new long[capacity];
+		for (int i = 0; i < capacity; i++)
+			longs[i] = ints[i];
+		data = longs;
+		kind = Kind.LONG;
+	}
+
+	/**
+	 * Switch to Object[] storage, boxing the current elements.
+	 */
+	private void widen() {
+		Object[] objects = new Object[capacity];
+		for (int i = 0; i < size; i++)
+			objects[i] = get(i);
+		data = objects;
+		kind = Kind.OBJECT;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+}
@@ -2,7 +2,7 @@ package net.razorvine.pickle.objects;
 
 import net.razorvine.pickle.IObjectConstructor;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.HashSet;
 
 /**
@@ -16,9 +16,9 @@ public class SetConstructor implements IObjectConstructor {
 	}
 
 	public Object construct(Object[] args) {
-		// create a HashSet, args=arraylist of stuff to put in it
+		// create a HashSet, args=list of stuff to put in it
 		@SuppressWarnings("unchecked")
-		ArrayList<Object> data = (ArrayList<Object>) args[0];
+		List<Object> data = (List<Object>) args[0];
 		return new HashSet<>(data);
 	}
 }
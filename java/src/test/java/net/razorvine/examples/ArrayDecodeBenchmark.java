@@ -0,0 +1,47 @@
+package net.razorvine.examples;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.razorvine.pickle.objects.ArrayConstructor;
+
+/**
+ * Measures the decoding of large array.array('d') and array.array('f') payloads
+ * (as in pickles of protocol 3 and up), sequential and in parallel.
+ * Run it with a warmed up JVM and nothing else going on, the numbers are only indicative.
+ */
+public class ArrayDecodeBenchmark {
+
+	static final int ROUNDS = 5;
+	static volatile int sink;
+
+	public static void main(String[] args) {
+		System.out.println("java "+System.getProperty("java.version")+", "+Runtime.getRuntime().availableProcessors()+" cpus");
+		byte[] data = new byte[200 * 1024 * 1024];
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.remaining() >= 8)
+			buffer.putDouble(buffer.position() * 0.25);
+		run("sequential", new ArrayConstructor(), data);
+		run("parallel", new ArrayConstructor(ArrayConstructor.PARALLEL_CHUNK_SIZE), data);
+	}
+
+	static void run(String name, ArrayConstructor constructor, byte[] data) {
+		long best_le = Long.MAX_VALUE;
+		long best_be = Long.MAX_VALUE;
+		long best_float = Long.MAX_VALUE;
+		for(int round=0; round<ROUNDS; ++round) {
+			long start = System.nanoTime();
+			sink += ((double[]) constructor.construct('d', 16, data)).length;
+			best_le = Math.min(best_le, System.nanoTime()-start);
+			start = System.nanoTime();
+			sink += ((double[]) constructor.construct('d', 17, data)).length;
+			best_be = Math.min(best_be, System.nanoTime()-start);
+			start = System.nanoTime();
+			sink += ((float[]) constructor.construct('f', 14, data)).length;
+			best_float = Math.min(best_float, System.nanoTime()-start);
+		}
+		double megabytes = data.length / 1024.0 / 1024.0;
+		System.out.printf("%-12s double LE %6.0f MB/s   double BE %6.0f MB/s   float LE %6.0f MB/s%n", name,
+				megabytes/(best_le/1e9), megabytes/(best_be/1e9), megabytes/(best_float/1e9));
+	}
+}
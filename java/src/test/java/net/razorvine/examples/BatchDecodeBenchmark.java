@@ -0,0 +1,83 @@
+package net.razorvine.examples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import net.razorvine.pickle.PickleCodec;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+
+/**
+ * Measures the unpickling of a batch of independent messages with PickleCodec.loadAll,
+ * for a growing number of cores, compared to one Unpickler decoding them one at a time.
+ * Run it with a warmed up JVM and nothing else going on, the numbers are only indicative.
+ */
+public class BatchDecodeBenchmark {
+
+	static final int MESSAGES = 20000;
+	static final int ROUNDS = 10;
+	static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("java "+System.getProperty("java.version")+", "+Runtime.getRuntime().availableProcessors()+" cpus");
+		List<byte[]> pickles = new ArrayList<byte[]>();
+		Pickler pickler = new Pickler();
+		for(int i=0; i<MESSAGES; ++i)
+			pickles.add(pickler.dumps(message(i)));
+
+		Unpickler unpickler = new Unpickler();
+		int maxCores = Runtime.getRuntime().availableProcessors();
+		single(unpickler, pickles);		// warmup
+		batch(pickles, maxCores);		// warmup
+		System.out.printf("single unpickler   %10.0f msgs/s%n", MESSAGES/(single(unpickler, pickles)/1e9));
+		for(int cores=1; cores<=maxCores; cores=cores<maxCores && cores*2>maxCores ? maxCores : cores*2)
+			System.out.printf("loadAll %2d cores   %10.0f msgs/s%n", cores, MESSAGES/(batch(pickles, cores)/1e9));
+	}
+
+	static long single(Unpickler unpickler, List<byte[]> pickles) throws IOException {
+		long best = Long.MAX_VALUE;
+		for(int round=0; round<ROUNDS; ++round) {
+			long start = System.nanoTime();
+			List<Object> results = new ArrayList<Object>(pickles.size());		// keep them, like loadAll does
+			for(byte[] data: pickles)
+				results.add(unpickler.loads(data));
+			for(Object result: results)
+				sink += ((Map<?, ?>) result).size();
+			best = Math.min(best, System.nanoTime()-start);
+		}
+		return best;
+	}
+
+	static long batch(List<byte[]> pickles, int cores) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(cores);
+		PickleCodec codec = new PickleCodec(cores);
+		long best = Long.MAX_VALUE;
+		try {
+			for(int round=0; round<ROUNDS; ++round) {
+				long start = System.nanoTime();
+				for(PickleCodec.Result result: codec.loadAll(pickles, pool))
+					sink += ((Map<?, ?>) result.get()).size();
+				best = Math.min(best, System.nanoTime()-start);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return best;
+	}
+
+	static Map<String, Object> message(int number) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("id", number);
+		map.put("name", "message"+number);
+		map.put("active", number%2 == 0);
+		List<Object> values = new ArrayList<Object>();
+		for(int i=0; i<30; ++i)
+			values.add(i*1.5+number);
+		map.put("values", values);
+		return map;
+	}
+}
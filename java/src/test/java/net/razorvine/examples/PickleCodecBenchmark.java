@@ -0,0 +1,91 @@
+package net.razorvine.examples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.razorvine.pickle.PickleCodec;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+
+/**
+ * Measures the pickle+unpickle throughput of the pooled PickleCodec for a growing number of threads,
+ * compared to creating a new Pickler and Unpickler for every call.
+ * Run it with a warmed up JVM and nothing else going on, the numbers are only indicative.
+ */
+public class PickleCodecBenchmark {
+
+	static final long DURATION_MILLIS = 2000;
+
+	interface Codec {
+		Object roundtrip(Object o) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Map<String, Object> message = new HashMap<String, Object>();
+		message.put("id", 12345);
+		message.put("name", "benchmark message");
+		List<Object> values = new ArrayList<Object>();
+		for(int i=0; i<50; ++i)
+			values.add(i*1.5);
+		message.put("values", values);
+
+		final PickleCodec codec = new PickleCodec();
+		Codec pooled = new Codec() {
+			@Override
+			public Object roundtrip(Object o) throws IOException {
+				return codec.loads(codec.dumps(o));
+			}
+		};
+		Codec fresh = new Codec() {
+			@Override
+			public Object roundtrip(Object o) throws IOException {
+				return new Unpickler().loads(new Pickler().dumps(o));
+			}
+		};
+
+		int maxThreads = 4 * Runtime.getRuntime().availableProcessors();
+		System.out.println("threads      pooled ops/s      new-instance ops/s");
+		for(int threads=1; threads<=maxThreads; threads*=2) {
+			run(pooled, message, threads);  // warmup
+			long pooledOps = run(pooled, message, threads);
+			run(fresh, message, threads);  // warmup
+			long freshOps = run(fresh, message, threads);
+			System.out.printf("%7d  %16d  %22d%n", threads, pooledOps, freshOps);
+		}
+	}
+
+	static long run(final Codec codec, final Object message, int threads) throws InterruptedException {
+		final AtomicLong count = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long end = System.currentTimeMillis() + DURATION_MILLIS;
+		Thread[] workers = new Thread[threads];
+		for(int i=0; i<threads; ++i) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long ops = 0;
+						while(System.currentTimeMillis() < end) {
+							codec.roundtrip(message);
+							ops++;
+						}
+						count.addAndGet(ops);
+					} catch (Exception x) {
+						throw new RuntimeException(x);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		start.countDown();
+		for(Thread worker: workers)
+			worker.join();
+		return count.get() * 1000 / DURATION_MILLIS;
+	}
+}
@@ -0,0 +1,46 @@
+package net.razorvine.examples;
+
+import java.nio.charset.StandardCharsets;
+
+import net.razorvine.pickle.PickleUtils;
+
+/**
+ * Compares the string decoding of the unpickler (with its ASCII fast path) to plain UTF-8 decoding,
+ * for short dict keys and for long text, both pure ASCII and with non-ASCII characters.
+ * Run it with a warmed up JVM and nothing else going on, the numbers are only indicative.
+ */
+public class StringDecodeBenchmark {
+
+	static final int ROUNDS = 5;
+	static volatile int sink;
+
+	public static void main(String[] args) {
+		System.out.println("java "+System.getProperty("java.version"));
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<400; ++i)
+			sb.append("lorem ipsum dolor sit amet ");
+		String longText = sb.toString();
+		run("short ascii key", "timestamp".getBytes(StandardCharsets.UTF_8), 20000000);
+		run("32 byte ascii string", "abcdefghijklmnopqrstuvwxyz012345".getBytes(StandardCharsets.UTF_8), 10000000);
+		run("short non-ascii key", "café_id".getBytes(StandardCharsets.UTF_8), 20000000);
+		run("long ascii text", longText.getBytes(StandardCharsets.UTF_8), 100000);
+		run("long non-ascii text", (longText+"€").getBytes(StandardCharsets.UTF_8), 100000);
+	}
+
+	static void run(String name, byte[] data, int iterations) {
+		long best_utf8 = Long.MAX_VALUE;
+		long best_fast = Long.MAX_VALUE;
+		for(int round=0; round<ROUNDS; ++round) {
+			long start = System.nanoTime();
+			for(int i=0; i<iterations; ++i)
+				sink += new String(data, 0, data.length, StandardCharsets.UTF_8).length();
+			best_utf8 = Math.min(best_utf8, System.nanoTime()-start);
+			start = System.nanoTime();
+			for(int i=0; i<iterations; ++i)
+				sink += PickleUtils.decodeUtf8(data, 0, data.length).length();
+			best_fast = Math.min(best_fast, System.nanoTime()-start);
+		}
+		System.out.printf("%-22s utf-8 decoder: %8.1f ns/op   decodeUtf8: %8.1f ns/op%n", name,
+				(double)best_utf8/iterations, (double)best_fast/iterations);
+	}
+}
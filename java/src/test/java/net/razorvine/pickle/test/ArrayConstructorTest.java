@@ -1,6 +1,10 @@
 package net.razorvine.pickle.test;
 
 import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import net.razorvine.pickle.PickleException;
 import net.razorvine.pickle.objects.ArrayConstructor;
 
@@ -204,4 +208,24 @@ public class ArrayConstructorTest {
 		assertArrayEquals(new double[]{1.1d, 2.2d}, (double[]) ac.construct('d', 17, new byte[]{(byte)0x3f,(byte)0xf1,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x9a, (byte)0x40,(byte)0x01,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x9a}) ,0);
 		assertArrayEquals(new double[]{1.1d, 2.2d}, (double[]) ac.construct('d', 16, new byte[]{(byte)0x9a,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0xf1,(byte)0x3f, (byte)0x9a,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x99,(byte)0x01,(byte)0x40}) ,0);
 	}
+
+	@Test
+	public void testParallel()
+	{
+		// 10 megabytes of doubles and ints, decoded in chunks
+		ArrayConstructor sequential=new ArrayConstructor();
+		ArrayConstructor parallel=new ArrayConstructor(0);
+		ByteBuffer buffer=ByteBuffer.allocate(10*1024*1024+8).order(ByteOrder.LITTLE_ENDIAN);
+		for(int i=0; buffer.remaining()>=8; ++i)
+			buffer.putDouble(i*0.5);
+		byte[] data=buffer.array();
+		double[] doubles=(double[]) parallel.construct('d', 16, data);
+		assertEquals(data.length/8, doubles.length);
+		assertEquals(0.5, doubles[1], 0);
+		assertEquals((doubles.length-1)*0.5, doubles[doubles.length-1], 0);
+		assertArrayEquals((double[]) sequential.construct('d', 16, data), doubles, 0);
+		assertArrayEquals((int[]) sequential.construct('i', 9, data), (int[]) parallel.construct('i', 9, data));
+		assertArrayEquals((long[]) sequential.construct('I', 7, data), (long[]) parallel.construct('I', 7, data));
+		assertArrayEquals((short[]) sequential.construct('B', 0, data), (short[]) parallel.construct('B', 0, data));
+	}
 }
@@ -0,0 +1,183 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import net.razorvine.pickle.LargeBytes;
+import net.razorvine.pickle.LimitExceededException;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.UnpicklerLimits;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for large bytes and string payloads.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class LargeBytesTest {
+
+	private byte[] payload(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * 7);
+		return data;
+	}
+
+	private byte[] pickle(int opcode, byte[] payload) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(0x80);
+		bos.write(4);
+		bos.write(opcode);
+		long length = payload.length;
+		for (int i = 0; i < 8; i++)
+			bos.write((int) (length >>> (8 * i)));
+		bos.write(payload, 0, payload.length);
+		bos.write('.');
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testChunks() throws IOException {
+		byte[] data = payload(100);
+		LargeBytes bytes = new LargeBytes(Arrays.asList(ByteBuffer.wrap(data, 0, 30), ByteBuffer.allocate(0),
+				ByteBuffer.wrap(data, 30, 1), ByteBuffer.wrap(data, 31, 69)));
+		assertEquals(100, bytes.length());
+		assertEquals(4, bytes.getChunks().size());
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i], bytes.get(i));
+		byte[] range = new byte[50];
+		bytes.get(20, range, 0, 50);
+		assertArrayEquals(Arrays.copyOfRange(data, 20, 70), range);
+		assertArrayEquals(data, bytes.toByteArray());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bytes.writeTo(bos);
+		assertArrayEquals(data, bos.toByteArray());
+		assertEquals("LargeBytes(length=100, chunks=4)", bytes.toString());
+		try {
+			bytes.get(100);
+			fail("expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException x) {
+			// ok
+		}
+		try {
+			bytes.get(60, range, 0, 50);
+			fail("expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException x) {
+			// ok
+		}
+		assertEquals(0, new LargeBytes(Arrays.<ByteBuffer>asList()).length());
+	}
+
+	@Test
+	public void testUnpickleBytes() throws PickleException, IOException {
+		byte[] data = payload(2500);
+		Unpickler u = new Unpickler();
+		for (int opcode : new int[] { 0x8e, 0x96 }) {		// BINBYTES8, BYTEARRAY8
+			byte[] pickle = pickle(opcode, data);
+			assertArrayEquals(data, (byte[]) u.loads(pickle));
+			u.setLargeBytesThreshold(1000);
+			u.setLargeBytesChunkSize(300);
+			for (Object value : new Object[] { u.loads(pickle), u.load(new ByteArrayInputStream(pickle)), u.load(ByteBuffer.wrap(pickle)) }) {
+				LargeBytes bytes = (LargeBytes) value;
+				assertEquals(2500, bytes.length());
+				assertEquals(9, bytes.getChunks().size());
+				assertArrayEquals(data, bytes.toByteArray());
+			}
+			u.setLargeBytesThreshold(Long.MAX_VALUE);
+		}
+		// payloads below the threshold stay byte arrays
+		u.setLargeBytesThreshold(2500);
+		assertArrayEquals(data, (byte[]) u.loads(pickle(0x8e, data)));
+	}
+
+	@Test
+	public void testUnpickleString() throws PickleException, IOException {
+		char[] chars = new char[2000];
+		Arrays.fill(chars, '\u20ac');
+		String text = new String(chars);
+		byte[] pickle = pickle(0x8d, text.getBytes(StandardCharsets.UTF_8));		// BINUNICODE8
+		Unpickler u = new Unpickler();
+		assertEquals(text, u.loads(pickle));
+		u.setLargeBytesThreshold(1000);
+		LargeBytes bytes = (LargeBytes) u.loads(pickle);
+		assertEquals(6000, bytes.length());
+		assertEquals(text, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testUnpickleBinunicode() throws PickleException, IOException {
+		byte[] utf8 = "hello".getBytes(StandardCharsets.UTF_8);
+		byte[] pickle = new byte[utf8.length + 8];		// protocol 3 BINUNICODE, its length is unsigned
+		System.arraycopy(new byte[] { (byte) 0x80, 3, 'X', 5, 0, 0, 0 }, 0, pickle, 0, 7);
+		System.arraycopy(utf8, 0, pickle, 7, utf8.length);
+		pickle[pickle.length - 1] = '.';
+		Unpickler u = new Unpickler();
+		assertEquals("hello", u.loads(pickle));
+		u.setLargeBytesThreshold(4);
+		assertArrayEquals(utf8, ((LargeBytes) u.loads(pickle)).toByteArray());
+
+		// a length above 2 GB is not negative, the (truncated) payload is read as large bytes
+		u = new Unpickler();
+		try {
+			u.loads(new byte[] { (byte) 0x80, 3, 'X', 0, 0, 0, (byte) 0x80, 'a', 'b', 'c' });
+			fail("expected IOException");
+		} catch (IOException x) {
+			// ok, the input ends before the payload does
+		}
+		u.setLimits(UnpicklerLimits.builder().maxAllocation(1000).build());
+		try {
+			u.loads(new byte[] { (byte) 0x80, 3, 'X', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 'a', 'b', 'c' });
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testMappedFile() throws PickleException, IOException {
+		byte[] data = payload(100000);
+		Path file = Files.createTempFile("largebytes", ".pickle");
+		try {
+			Files.write(file, pickle(0x8e, data));
+			Unpickler u = new Unpickler();
+			u.setLargeBytesThreshold(1000);
+			u.setLargeBytesChunkSize(30000);
+			LargeBytes bytes = (LargeBytes) u.load(file);
+			assertEquals(4, bytes.getChunks().size());
+			for (ByteBuffer chunk : bytes.getChunks())
+				assertTrue(chunk.isDirect());		// mapped, not copied to the heap
+			assertArrayEquals(data, bytes.toByteArray());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testLimits() throws PickleException, IOException {
+		Unpickler u = new Unpickler();
+		u.setLargeBytesThreshold(1000);
+		u.setLimits(UnpicklerLimits.builder().maxAllocation(2000).build());
+		try {
+			u.loads(pickle(0x8e, payload(2500)));
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+		try {
+			u.setLargeBytesChunkSize(0);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// ok
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.razorvine.pickle.PickleCodec;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the thread-safe pickle codec.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleCodecTest {
+
+	Map<String, Object> message(int number) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("number", number);
+		map.put("name", "message"+number);
+		List<Object> values = new ArrayList<Object>();
+		for(int i=0; i<number%20; ++i)
+			values.add(i*1.5);
+		map.put("values", values);
+		return map;
+	}
+
+	@Test
+	public void testRoundtrip() throws PickleException, IOException {
+		PickleCodec codec = new PickleCodec();
+		Map<String, Object> msg = message(15);
+		byte[] data = codec.dumps(msg);
+		assertArrayEquals(new Pickler().dumps(msg), data);
+		assertEquals(msg, codec.loads(data));
+		assertEquals(msg, codec.load(ByteBuffer.wrap(data)));
+		ByteArrayInputStream bis = new ByteArrayInputStream(data);
+		assertEquals(msg, codec.load(bis));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		codec.dump(msg, bos);
+		assertArrayEquals(data, bos.toByteArray());
+		assertEquals(1, codec.idlePicklers());
+		assertEquals(1, codec.idleUnpicklers());
+	}
+
+	@Test
+	public void testFailureReturnsInstance() throws IOException {
+		PickleCodec codec = new PickleCodec(1);
+		try {
+			codec.loads(new byte[] {'(', 'I', '1', '\n'});
+			fail("expected error");
+		} catch (IOException x) {
+			// ok
+		}
+		assertEquals(1, codec.idleUnpicklers());
+		assertEquals(42, codec.loads(new byte[] {'I', '4', '2', '\n', '.'}));
+	}
+
+	@Test
+	public void testFactories() throws PickleException, IOException {
+		final AtomicInteger picklersCreated = new AtomicInteger();
+		final AtomicInteger unpicklersCreated = new AtomicInteger();
+		PickleCodec codec = new PickleCodec(2,
+				() -> { picklersCreated.incrementAndGet(); return new Pickler(false); },
+				() -> { unpicklersCreated.incrementAndGet(); return new Unpickler(); });
+		for(int i=0; i<10; ++i)
+			assertEquals("hello", codec.loads(codec.dumps("hello")));
+		assertEquals(1, picklersCreated.get());
+		assertEquals(1, unpicklersCreated.get());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidPoolSize() {
+		new PickleCodec(0);
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final PickleCodec codec = new PickleCodec(4);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for(int task=0; task<200; ++task) {
+				final int number = task;
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for(int i=0; i<20; ++i) {
+							Map<String, Object> msg = message(number+i);
+							if(!msg.equals(codec.loads(codec.dumps(msg))))
+								return false;
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> result: results)
+				assertTrue(result.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(codec.idlePicklers() <= 4);
+		assertTrue(codec.idleUnpicklers() <= 4);
+	}
+
+	@Test
+	public void testLoadAll() throws Exception {
+		PickleCodec codec = new PickleCodec(4);
+		List<byte[]> pickles = new ArrayList<byte[]>();
+		for(int i=0; i<1000; ++i) {
+			byte[] data = codec.dumps(message(i));
+			if(i%100 == 7)
+				data = Arrays.copyOf(data, data.length/2);		// truncated
+			pickles.add(data);
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Executor inline = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					command.run();
+				}
+			};
+			for(Executor ex: new Executor[] {pool, executor, inline}) {
+				List<PickleCodec.Result> results = codec.loadAll(pickles, ex);
+				assertEquals(1000, results.size());
+				for(int i=0; i<1000; ++i) {
+					PickleCodec.Result result = results.get(i);
+					if(i%100 == 7) {
+						assertFalse(result.isSuccess());
+						assertNull(result.getValue());
+						assertTrue(result.getError() instanceof IOException);
+						try {
+							result.get();
+							fail("expected IOException");
+						} catch (IOException x) {
+							// ok
+						}
+					} else {
+						assertTrue(result.isSuccess());
+						assertEquals(message(i), result.get());
+					}
+				}
+			}
+
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+			for(int i=0; i<100; ++i)
+				buffers.add(ByteBuffer.wrap(codec.dumps(message(i))));
+			List<PickleCodec.Result> results = codec.loadAllBuffers(buffers, pool);
+			for(int i=0; i<100; ++i) {
+				assertEquals(message(i), results.get(i).get());
+				assertEquals(0, buffers.get(i).position());
+			}
+			assertTrue(codec.loadAll(new ArrayList<byte[]>(), pool).isEmpty());
+		} finally {
+			pool.shutdown();
+			executor.shutdown();
+		}
+		assertTrue(codec.idleUnpicklers() <= 4);
+	}
+
+	@Test
+	public void testLoadAllFromSaturatedExecutor() throws Exception {
+		final PickleCodec codec = new PickleCodec(2);
+		final List<byte[]> pickles = new ArrayList<byte[]>();
+		for(int i=0; i<1000; ++i)
+			pickles.add(codec.dumps(message(i)));
+		// called from the only thread of the executor, the workers it submits can't start until it returns
+		final ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			Future<List<PickleCodec.Result>> future = executor.submit(new Callable<List<PickleCodec.Result>>() {
+				@Override
+				public List<PickleCodec.Result> call() {
+					return codec.loadAll(pickles, executor);
+				}
+			});
+			List<PickleCodec.Result> results = future.get(30, TimeUnit.SECONDS);
+			assertEquals(1000, results.size());
+			for(int i=0; i<1000; ++i)
+				assertEquals(message(i), results.get(i).get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.razorvine.pickle.LimitExceededException;
+import net.razorvine.pickle.PickleDecoder;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.UnpicklerLimits;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the non-blocking push decoder.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleDecoderTest {
+
+	private List<byte[]> pickles() throws PickleException, IOException {
+		List<byte[]> pickles = new ArrayList<byte[]>();
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", "decoder");
+		map.put("values", Arrays.asList(1, 2.5, -300000, 1234567890123L, "\u20ac"));
+		map.put("decimal", new BigDecimal("3.14"));
+		char[] chars = new char[20000];
+		Arrays.fill(chars, 'x');
+		map.put("large", new String(chars));
+		pickles.add(new Pickler().dumps(map));
+		pickles.add(new Pickler().dumps(Arrays.asList("a", "b", "a", 42)));
+		// protocol 4 with a frame, protocol 0 text, and a global
+		pickles.add(PickleUtils.str2bytes("\u0080\u0004\u0095\u0009\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u008c\u0005hello\u0094."));
+		pickles.add(PickleUtils.str2bytes("(lp0\nI1\naI2\naS'abc'\np1\na."));
+		pickles.add(PickleUtils.str2bytes("\u0080\u0002cdecimal\nDecimal\nX\u0003\u0000\u0000\u00001.5\u0085R."));
+		pickles.add(new Pickler().dumps(null));
+		return pickles;
+	}
+
+	private byte[] concat(List<byte[]> pickles) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (byte[] pickle : pickles)
+			bos.write(pickle, 0, pickle.length);
+		return bos.toByteArray();
+	}
+
+	private List<Object> decode(PickleDecoder decoder, byte[] data, Random chunkSizes, int maxChunk) throws PickleException, IOException {
+		List<Object> values = new ArrayList<Object>();
+		int offset = 0;
+		while (offset < data.length) {
+			int size = Math.min(data.length - offset, 1 + chunkSizes.nextInt(maxChunk));
+			values.addAll(decoder.feed(data, offset, size));
+			offset += size;
+		}
+		return values;
+	}
+
+	@Test
+	public void testChunks() throws PickleException, IOException {
+		List<byte[]> pickles = pickles();
+		List<Object> expected = new ArrayList<Object>();
+		for (byte[] pickle : pickles)
+			expected.add(new Unpickler().loads(pickle));
+		byte[] data = concat(pickles);
+
+		PickleDecoder decoder = new PickleDecoder();
+		for (int maxChunk : new int[] { 1, 2, 3, 7, 100, 5000, data.length }) {
+			assertEquals(expected, decode(decoder, data, new Random(maxChunk), maxChunk));
+			assertFalse(decoder.isPending());
+			assertEquals(0, decoder.getBufferedBytes());
+			decoder.finish();
+		}
+		assertEquals(7L * data.length, decoder.getPosition());
+
+		// all at once, from a direct buffer
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		assertEquals(expected, decoder.feed(direct));
+		assertEquals(0, direct.remaining());
+	}
+
+	@Test
+	public void testPartial() throws PickleException, IOException {
+		byte[] data = new Pickler().dumps(Arrays.asList("abc", "def"));
+		PickleDecoder decoder = new PickleDecoder();
+		assertTrue(decoder.feed(data, 0, data.length - 1).isEmpty());
+		assertTrue(decoder.isPending());
+		assertEquals(Arrays.asList(Arrays.asList("abc", "def")), decoder.feed(data, data.length - 1, 1));
+		assertFalse(decoder.isPending());
+
+		// suspended in the middle of a string payload
+		assertTrue(decoder.feed(data, 0, 8).isEmpty());
+		assertTrue(decoder.getBufferedBytes() > 0);
+		try {
+			decoder.finish();
+			fail("expected IOException");
+		} catch (IOException x) {
+			assertEquals("premature end of file", x.getMessage());
+		}
+		assertFalse(decoder.isPending());
+		assertEquals(Arrays.asList(Arrays.asList("abc", "def")), decoder.feed(data, 0, data.length));
+	}
+
+	@Test
+	public void testZeroCopyBytes() throws PickleException, IOException {
+		Unpickler u = new Unpickler();
+		u.setZeroCopyBytes(true);
+		PickleDecoder decoder = new PickleDecoder(u);
+		byte[] bytes = new byte[100];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+		byte[] data = new byte[bytes.length + 8];	// protocol 3 BINBYTES
+		System.arraycopy(PickleUtils.str2bytes("\u0080\u0003Bd\u0000\u0000\u0000"), 0, data, 0, 7);
+		System.arraycopy(bytes, 0, data, 7, bytes.length);
+		data[data.length - 1] = '.';
+		ByteBuffer first = (ByteBuffer) decoder.feed(data, 0, data.length).get(0);
+		Arrays.fill(data, (byte) 'N');
+		data[data.length - 1] = '.';
+		decoder.feed(data, 0, data.length);		// garbage that fills the buffer again
+		byte[] copy = new byte[first.remaining()];
+		first.get(copy);
+		assertArrayEquals(bytes, copy);
+	}
+
+	@Test
+	public void testErrors() throws PickleException, IOException {
+		PickleDecoder decoder = new PickleDecoder();
+		try {
+			decoder.feed(PickleUtils.str2bytes("\u0080\u0002\u00ffN."), 0, 5);
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			// ok, invalid opcode
+		}
+		assertFalse(decoder.isPending());
+		assertEquals(Arrays.<Object>asList("hello"), decoder.feed(ByteBuffer.wrap(new Pickler().dumps("hello"))));
+	}
+
+	@Test
+	public void testLimits() throws PickleException, IOException {
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxAllocation(1000).maxInputSize(5000).build());
+		PickleDecoder decoder = new PickleDecoder(u);
+		// a huge announced length is rejected as soon as the length is known, before the payload arrives
+		try {
+			decoder.feed(PickleUtils.str2bytes("\u0080\u0003B\u00ff\u00ff\u00ff\u007f"), 0, 7);
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+		assertFalse(decoder.isPending());
+
+		// an endless line in a text pickle
+		byte[] line = new byte[1000];
+		Arrays.fill(line, (byte) '1');
+		line[0] = 'I';
+		try {
+			for (int i = 0; i < 10; i++)
+				decoder.feed(line, 0, line.length);
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+
+		// the input limit applies per pickle
+		byte[] data = new Pickler().dumps(Arrays.asList(new String(new char[800]), new String(new char[800])));
+		for (int i = 0; i < 10; i++)
+			assertEquals(1, decoder.feed(data, 0, data.length).size());
+	}
+}
@@ -0,0 +1,202 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleReader;
+import net.razorvine.pickle.PickleReader.Event;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Pickler;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the pickle event reader.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PickleReaderTest {
+
+	// pickle.dumps([1, 2.5, 'ab', b'xy', 2**70, True, None, (1,2), datetime.date(2020,1,2)], protocol=4)
+	static final String PICKLE4 = "\u0080\u0004\u0095L\u0000\u0000\u0000\u0000\u0000\u0000\u0000]\u0094(K\u0001G@\u0004\u0000\u0000\u0000\u0000\u0000\u0000\u008c\u0002ab\u0094C\u0002xy\u0094\u008a\u0009\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000@\u0088NK\u0001K\u0002\u0086\u0094\u008c\u0008datetime\u0094\u008c\u0004date\u0094\u0093\u0094C\u0004\u0007\u00e4\u0001\u0002\u0094\u0085\u0094R\u0094e.";
+
+	List<Event> events(PickleReader reader) throws IOException {
+		List<Event> result = new ArrayList<>();
+		Event event;
+		while((event = reader.next()) != null) {
+			result.add(event);
+			if(event == Event.END)
+				break;
+		}
+		return result;
+	}
+
+	@Test
+	public void testEvents() throws IOException {
+		PickleReader reader = new PickleReader(PickleUtils.str2bytes(PICKLE4));
+		assertEquals(Event.START_LIST, reader.next());
+		assertEquals(4, reader.protocol());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(0, reader.memoIndex());
+		assertEquals(Event.MARK, reader.next());
+		assertEquals(Event.INT, reader.next());
+		assertEquals(1L, reader.longValue());
+		assertEquals(BigInteger.ONE, reader.bigIntegerValue());
+		assertEquals(Event.FLOAT, reader.next());
+		assertEquals(2.5, reader.doubleValue(), 0.0);
+		assertEquals(Event.STRING, reader.next());
+		assertEquals("ab", reader.stringValue());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(1, reader.memoIndex());
+		assertEquals(Event.BYTES, reader.next());
+		ByteBuffer bytes = reader.bytesValue();
+		assertTrue(bytes.isReadOnly());
+		assertEquals(ByteBuffer.wrap(new byte[] {'x', 'y'}), bytes);
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(Event.BIGINT, reader.next());
+		assertEquals(BigInteger.valueOf(2).pow(70), reader.bigIntegerValue());
+		assertEquals(Event.BOOL, reader.next());
+		assertTrue(reader.booleanValue());
+		assertEquals(Event.NONE, reader.next());
+		assertEquals(Event.INT, reader.next());
+		assertEquals(Event.INT, reader.next());
+		assertEquals(2L, reader.longValue());
+		assertEquals(Event.TUPLE, reader.next());
+		assertEquals(2, reader.size());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(3, reader.memoIndex());
+		assertEquals(Event.STRING, reader.next());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(Event.STRING, reader.next());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(Event.GLOBAL, reader.next());
+		assertEquals("datetime", reader.module());
+		assertEquals("date", reader.name());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(6, reader.memoIndex());
+		assertEquals(Event.BYTES, reader.next());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(Event.TUPLE, reader.next());
+		assertEquals(1, reader.size());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(Event.REDUCE, reader.next());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(9, reader.memoIndex());
+		assertEquals(Event.APPENDS, reader.next());
+		assertEquals(Event.END, reader.next());
+		assertEquals(Event.END, reader.event());
+		assertNull(reader.next());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testProtocol0() throws IOException {
+		// pickle.dumps([42, 'ab', (1,2)], protocol=0) with a datetime.date global
+		byte[] data = PickleUtils.str2bytes("(lp0\nI42\naVab\np1\naI01\naL1180591620717411303424L\na(I1\nI2\ntp2\nacdatetime\ndate\np3\n(g1\ntRa.");
+		PickleReader reader = new PickleReader(data);
+		Event[] expected = new Event[] {
+			Event.MARK, Event.LIST, Event.MEMO_PUT, Event.INT, Event.APPEND, Event.STRING, Event.MEMO_PUT, Event.APPEND,
+			Event.BOOL, Event.APPEND, Event.BIGINT, Event.APPEND, Event.MARK, Event.INT, Event.INT, Event.TUPLE, Event.MEMO_PUT, Event.APPEND,
+			Event.GLOBAL, Event.MEMO_PUT, Event.MARK, Event.MEMO_GET, Event.TUPLE, Event.REDUCE, Event.APPEND, Event.END
+		};
+		assertArrayEquals(expected, events(reader).toArray());
+		assertEquals(0, reader.protocol());
+		assertNull(reader.next());
+
+		reader = new PickleReader(data);
+		while(reader.next() != Event.GLOBAL)
+			;
+		assertEquals("datetime", reader.module());
+		assertEquals("date", reader.name());
+		assertEquals(Event.MEMO_PUT, reader.next());
+		assertEquals(3, reader.memoIndex());
+		assertNull(reader.module());
+		assertEquals(Event.MARK, reader.next());
+		assertEquals(Event.MEMO_GET, reader.next());
+		assertEquals(1, reader.memoIndex());
+	}
+
+	@Test
+	public void testPicklerOutput() throws IOException {
+		List<Object> list = new ArrayList<>();
+		list.add("hello");
+		list.add(12345678901L);
+		list.add(new byte[] {1, 2, 3});
+		byte[] data = new Pickler().dumps(list);
+		PickleReader reader = new PickleReader(data);
+		List<Event> events = events(reader);
+		assertEquals(Event.START_LIST, events.get(0));
+		assertTrue(events.contains(Event.STRING));
+		assertTrue(events.contains(Event.INT));
+		assertEquals(Event.END, events.get(events.size()-1));
+
+		reader = new PickleReader(data);
+		long total = 0;
+		Event event;
+		while((event = reader.next()) != Event.END) {
+			if(event == Event.INT)
+				total += reader.longValue();
+		}
+		assertEquals(12345678901L, total);
+	}
+
+	@Test
+	public void testConcatenatedPickles() throws IOException {
+		byte[] p1 = PickleUtils.str2bytes(PICKLE4);
+		byte[] p2 = PickleUtils.str2bytes("I42\n.");
+		byte[] data = new byte[p1.length+p2.length];
+		System.arraycopy(p1, 0, data, 0, p1.length);
+		System.arraycopy(p2, 0, data, p1.length, p2.length);
+		PickleReader reader = new PickleReader(new ByteArrayInputStream(data));
+		assertEquals(30, events(reader).size());
+		assertEquals(Event.INT, reader.next());
+		assertEquals(0, reader.protocol());
+		assertEquals(42L, reader.longValue());
+		assertEquals(Event.END, reader.next());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		PickleReader reader = new PickleReader(PickleUtils.str2bytes("(I1\nI2\n"));
+		assertEquals(Event.MARK, reader.next());
+		assertEquals(Event.INT, reader.next());
+		assertEquals(Event.INT, reader.next());
+		try {
+			reader.next();
+			fail("expected premature end of file");
+		} catch (IOException x) {
+			assertEquals("premature end of file", x.getMessage());
+		}
+	}
+
+	@Test
+	public void testNegativeLengths() throws IOException {
+		byte[][] pickles = new byte[][] {
+			{(byte)0x8b, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 'a', 'b'},		// LONG4
+			{'T', (byte)0xfe, (byte)0xff, (byte)0xff, (byte)0xff, 'a', 'b'},				// BINSTRING
+			{(byte)0x8d, 0, 0, 0, 0, 0, 0, 0, (byte)0x80, 'a', 'b'},						// BINUNICODE8
+			{(byte)0x8e, 0, 0, 0, 0, 0, 0, 0, (byte)0x80, 'a', 'b'}							// BINBYTES8
+		};
+		for(byte[] pickle: pickles) {
+			try {
+				new PickleReader(pickle).next();
+				fail("expected invalid negative length");
+			} catch (PickleException x) {
+				assertTrue(x.getMessage().startsWith("invalid negative length: "));
+			}
+		}
+	}
+
+	@Test(expected=PickleException.class)
+	public void testInvalidOpcode() throws IOException {
+		new PickleReader(new byte[] {(byte)0xff}).next();
+	}
+}
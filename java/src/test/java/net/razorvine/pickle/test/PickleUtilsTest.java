@@ -288,4 +288,22 @@ public class PickleUtilsTest {
 		assertEquals("a\tc", PickleUtils.decode_unicode_escaped("a\\tc"));
 		assertEquals("a\rc", PickleUtils.decode_unicode_escaped("a\\rc"));
 	}
+
+	@Test
+	public void testDecodeUtf8() throws IOException
+	{
+		byte[] data = "xxhello\u20ac\u00e9!".getBytes("UTF-8");
+		assertEquals("", PickleUtils.decodeUtf8(data, 0, 0));
+		assertEquals("hello", PickleUtils.decodeUtf8(data, 2, 5));
+		assertEquals("hello\u20ac\u00e9!", PickleUtils.decodeUtf8(data, 2, data.length-2));
+		assertEquals("\u00e9", PickleUtils.decodeUtf8(data, data.length-3, 2));
+		byte[] invalid = new byte[] {'a', (byte)0xff, 'b'};
+		assertEquals(new String(invalid, "UTF-8"), PickleUtils.decodeUtf8(invalid, 0, 3));
+	}
+
+	@Test
+	public void testRawStringFromBytes()
+	{
+		assertEquals("a\u00ff\u0080b", PickleUtils.rawStringFromBytes(new byte[] {'a', (byte)0xff, (byte)0x80, 'b'}));
+	}
 }
@@ -697,6 +697,34 @@ public class PicklerTest {
 		assertSame(s1, s5);
 	}
 
+	@Test
+	public void testReuse() throws PickleException, IOException
+	{
+		Pickler p=new Pickler();
+		ArrayList<Object> list=new ArrayList<Object>();
+		for(int i=0; i<100; ++i)
+			list.add("item"+(i%10));
+		byte[] first=p.dumps(list);
+		byte[] second=p.dumps(list);
+		assertArrayEquals(first, second);
+		assertArrayEquals(first, new Pickler().dumps(list));
+		assertEquals("\u0080\u0002X\u0001\u0000\u0000\u0000aq\u0000.", S(p.dumps("a")));
+
+		// the retained memory is released when it exceeds the high-water mark
+		p.setRetainedCapacity(5, 10);
+		assertArrayEquals(first, p.dumps(list));
+		assertArrayEquals(first, p.dumps(list));
+
+		// a failed dump doesn't affect the next one
+		try {
+			p.dumps(new NotABean());
+			fail("expected pickle exception");
+		} catch (PickleException x) {
+			// ok
+		}
+		assertArrayEquals(first, p.dumps(list));
+	}
+
 	@SuppressWarnings("unused")
 	@Test(expected=StackOverflowError.class)
 	public void testMemoizationRecursiveNoMemo() throws PickleException, IOException
@@ -0,0 +1,224 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.razorvine.pickle.objects.IntKeyMap;
+import net.razorvine.pickle.objects.PrimitiveList;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the primitive list and int-keyed map.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class PrimitiveCollectionsTest {
+
+	@Test
+	public void testIntList() {
+		PrimitiveList list = new PrimitiveList(2);
+		List<Object> expected = new ArrayList<Object>();
+		for(int i=0; i<100; ++i) {
+			list.add(i);
+			expected.add(i);
+		}
+		assertEquals(PrimitiveList.Kind.INT, list.kind());
+		assertEquals(expected, list);
+		assertEquals(expected.hashCode(), list.hashCode());
+		assertEquals(42, list.getInt(42));
+		assertEquals(42L, list.getLong(42));
+		assertEquals(42.0, list.getDouble(42), 0);
+		assertEquals(100, list.toIntArray().length);
+		assertEquals(99.0, list.toDoubleArray()[99], 0);
+		list.set(0, 1000);
+		list.add(0, -1);
+		assertEquals(-1, list.get(0));
+		assertEquals(1000, list.remove(1));
+		assertEquals(100, list.size());
+		list.trimToSize();
+		assertEquals(99, list.get(99));
+		try {
+			list.get(100);
+			fail("expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testKinds() {
+		PrimitiveList list = new PrimitiveList();
+		list.add(1.5);
+		assertEquals(PrimitiveList.Kind.DOUBLE, list.kind());
+		list.clear();
+		list.add(10L);
+		assertEquals(PrimitiveList.Kind.LONG, list.kind());
+		assertEquals(10L, list.get(0));
+		list.clear();
+		list.add("string");
+		assertEquals(PrimitiveList.Kind.OBJECT, list.kind());
+		list.clear();
+		list.add(null);
+		assertEquals(PrimitiveList.Kind.OBJECT, list.kind());
+		assertNull(list.get(0));
+	}
+
+	@Test
+	public void testWiden() {
+		PrimitiveList list = new PrimitiveList();
+		list.add(1);
+		list.add(2);
+		list.add(3000000000L);
+		// ints and longs are stored together as longs
+		assertEquals(PrimitiveList.Kind.LONG, list.kind());
+		assertEquals(Arrays.asList(1L, 2L, 3000000000L), list);
+		assertEquals(Long.class, list.get(0).getClass());
+		assertEquals(3000000000L, list.getLong(2));
+		list.add(4);
+		list.add(0, -1);
+		assertEquals(PrimitiveList.Kind.LONG, list.kind());
+		assertArrayEquals(new long[] { -1, 1, 2, 3000000000L, 4 }, list.toLongArray());
+
+		list = new PrimitiveList();
+		list.add(1);
+		list.add(2.5);
+		assertEquals(PrimitiveList.Kind.OBJECT, list.kind());
+		assertEquals(Arrays.asList(1, 2.5), list);
+		assertEquals(Integer.class, list.get(0).getClass());
+
+		list = new PrimitiveList();
+		list.add(1.5);
+		list.add(2.5);
+		list.set(1, null);
+		assertEquals(PrimitiveList.Kind.OBJECT, list.kind());
+		assertEquals(Arrays.asList(1.5, null), list);
+
+		list = new PrimitiveList();
+		list.add(1);
+		list.add(2);
+		list.add(1, "x");
+		assertEquals(Arrays.asList(1, "x", 2), list);
+	}
+
+	@Test
+	public void testIntKeyMap() {
+		IntKeyMap map = new IntKeyMap();
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		for(int i=-500; i<500; i+=3) {
+			map.put(i, "value"+i);
+			expected.put(i, "value"+i);
+		}
+		map.put(7, null);
+		expected.put(7, null);
+		assertTrue(map.isIntKeyed());
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertEquals("value-2", map.get(-2));
+		assertEquals("value-2", map.get((Object) Integer.valueOf(-2)));
+		assertNull(map.get(-1));
+		assertNull(map.get("foo"));
+		assertNull(map.get(7L));
+		assertTrue(map.containsKey(7));
+		assertNull(map.get(7));
+
+		assertEquals("value-2", map.remove(-2));
+		assertFalse(map.containsKey(-2));
+		assertEquals(expected.size()-1, map.size());
+		for(int i=0; i<10000; ++i) {
+			map.put(-2, (Object) i);
+			map.remove(-2);
+		}
+		assertEquals(expected.size()-1, map.size());
+		map.put(-2, "back");
+		assertEquals("back", map.get(-2));
+		assertEquals(expected.size(), map.size());
+	}
+
+	@Test
+	public void testIntKeyMapIterator() {
+		IntKeyMap map = new IntKeyMap();
+		for(int i=0; i<100; ++i)
+			map.put(i, (Object) i);
+		Iterator<Map.Entry<Object, Object>> it = map.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Object, Object> entry = it.next();
+			int key = (Integer) entry.getKey();
+			if(key%2==0)
+				it.remove();
+			else
+				entry.setValue("odd");
+		}
+		assertEquals(50, map.size());
+		assertFalse(map.containsKey(10));
+		assertEquals("odd", map.get(11));
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertFalse(map.entrySet().iterator().hasNext());
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		IntKeyMap map = new IntKeyMap();
+		map.put(1, "one");
+		map.put(2, null);
+		map.put(3, "three");
+		map.remove(3);
+		IntKeyMap copy = (IntKeyMap) roundtrip(map);
+		assertTrue(copy.isIntKeyed());
+		assertEquals(2, copy.size());
+		assertNull(copy.get(2));
+		assertTrue(copy.containsKey(2));
+		assertFalse(copy.containsKey(3));
+		assertEquals(map, copy);
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		expected.put(1, "one");
+		expected.put(2, null);
+		assertEquals(expected, new HashMap<Object, Object>(copy));
+		copy.put(3, "again");
+		assertEquals("again", copy.get(3));
+
+		PrimitiveList list = new PrimitiveList();
+		list.add(1);
+		list.add(5000000000L);
+		assertEquals(list, roundtrip(list));
+	}
+
+	private Object roundtrip(Object obj) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(obj);
+		oos.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+	}
+
+	@Test
+	public void testIntKeyMapWiden() {
+		IntKeyMap map = new IntKeyMap();
+		map.put(1, "one");
+		map.put(2, null);
+		map.put("three", 3);
+		assertFalse(map.isIntKeyed());
+		assertEquals(3, map.size());
+		assertEquals("one", map.get(1));
+		assertTrue(map.containsKey(2));
+		assertEquals(3, map.get("three"));
+		map.put(4, "four");
+		assertEquals("four", map.get((Object) Integer.valueOf(4)));
+		assertEquals("one", map.remove(1));
+		assertEquals(3, map.size());
+	}
+}
@@ -0,0 +1,190 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.razorvine.pickle.ConstructorRegistry;
+import net.razorvine.pickle.IObjectConstructor;
+import net.razorvine.pickle.IObjectDeconstructor;
+import net.razorvine.pickle.IObjectPickler;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.PicklerRegistry;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.objects.AnyClassConstructor;
+import net.razorvine.pickle.objects.ComplexNumber;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the immutable constructor and pickler registries.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class RegistryTest {
+
+	interface Shape {}
+
+	static class Circle implements Shape {}
+
+	static class Point implements Shape {
+		final int x, y;
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	static class PointPickler implements IObjectPickler {
+		public void pickle(Object o, OutputStream out, Pickler currentPickler) throws PickleException, IOException {
+			Point p = (Point) o;
+			currentPickler.save(p.x + "," + p.y);
+		}
+	}
+
+	static class PointDeconstructor implements IObjectDeconstructor {
+		public String getModule() {
+			return "geometry";
+		}
+		public String getName() {
+			return "Point";
+		}
+		public Object[] deconstruct(Object obj) {
+			Point p = (Point) obj;
+			return new Object[] { p.x, p.y };
+		}
+	}
+
+	static class PointConstructor implements IObjectConstructor {
+		public Object construct(Object[] args) {
+			return new Point((Integer) args[0], (Integer) args[1]);
+		}
+	}
+
+	@Test
+	public void testConstructorRegistry() {
+		IObjectConstructor constructor = new AnyClassConstructor(ComplexNumber.class);
+		ConstructorRegistry.Builder builder = ConstructorRegistry.builder();
+		for (int i = 0; i < 100; i++)
+			builder.register("module" + i, "Class", constructor);
+		builder.register("a.b", "c", new PointConstructor());
+		ConstructorRegistry registry = builder.build();
+		assertEquals(101, registry.size());
+		assertSame(constructor, registry.get("module42", "Class"));
+		assertNull(registry.get("module42", "Clas"));
+		assertNull(registry.get("module4", "2Class"));
+		assertNull(registry.get("module100", "Class"));
+		assertTrue(registry.get("a.b", "c") instanceof PointConstructor);
+		assertTrue(registry.get("a", "b.c") instanceof PointConstructor);	// same key as in the static registry
+		assertNull(registry.get("a", "b"));
+
+		ConstructorRegistry smaller = registry.toBuilder().unregister("module42", "Class").build();
+		assertEquals(100, smaller.size());
+		assertNull(smaller.get("module42", "Class"));
+		assertSame(constructor, registry.get("module42", "Class"));
+
+		ConstructorRegistry empty = ConstructorRegistry.builder().build();
+		assertEquals(0, empty.size());
+		assertNull(empty.get("decimal", "Decimal"));
+		assertNotNull(ConstructorRegistry.defaults().get("decimal", "Decimal"));
+	}
+
+	@Test
+	public void testUnpicklerRegistry() throws PickleException, IOException {
+		byte[] data = PickleUtils.str2bytes("\u0080\u0002cgeometry\nPoint\nK\u0001K\u0002\u0086R.");
+		assertUnregistered(new Unpickler(), data, "geometry.Point");
+
+		ConstructorRegistry registry = ConstructorRegistry.defaults().toBuilder()
+				.register("geometry", "Point", new PointConstructor())
+				.build();
+		Unpickler u = new Unpickler(registry);
+		Point p = (Point) u.loads(data);
+		assertEquals(1, p.x);
+		assertEquals(2, p.y);
+		assertEquals(new BigDecimal("1.5"), u.loads(PickleUtils.str2bytes("\u0080\u0002cdecimal\nDecimal\nX\u0003\u0000\u0000\u00001.5\u0085R.")));
+
+		// the static registry is not affected, and an unpickler can switch back to it
+		assertUnregistered(new Unpickler(), data, "geometry.Point");
+		u.setConstructorRegistry(null);
+		assertUnregistered(u, data, "geometry.Point");
+		u.setConstructorRegistry(ConstructorRegistry.builder().build());
+		assertUnregistered(u, PickleUtils.str2bytes("\u0080\u0002cdecimal\nDecimal\nX\u0003\u0000\u0000\u00001.5\u0085R."), "decimal.Decimal");
+	}
+
+	private void assertUnregistered(Unpickler u, byte[] data, String classname) throws IOException {
+		try {
+			u.loads(data);
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			assertTrue(x.getMessage().contains(classname));
+		}
+	}
+
+	@Test
+	public void testPicklerRegistry() throws PickleException, IOException {
+		PicklerRegistry registry = PicklerRegistry.builder()
+				.registerCustomPickler(Point.class, new PointPickler())
+				.registerCustomPickler(Shape.class, new PointPickler())
+				.build();
+		assertTrue(registry.getPickler(Point.class) instanceof PointPickler);
+		assertTrue(registry.getPickler(Circle.class) instanceof PointPickler);	// by interface
+		assertNull(registry.getPickler(Integer.class));
+		assertNull(registry.getDeconstructor(Point.class));
+
+		Pickler p = new Pickler(false);
+		try {
+			p.dumps(new Point(1, 2));
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			// ok, not registered in the static registry
+		}
+		p.setPicklerRegistry(registry);
+		assertEquals("1,2", new Unpickler().loads(p.dumps(new Point(1, 2))));
+
+		registry = PicklerRegistry.builder().registerCustomDeconstructor(Point.class, new PointDeconstructor()).build();
+		p.setPicklerRegistry(registry);
+		assertNull(registry.getPickler(Point.class));
+		assertTrue(registry.toBuilder().build().getDeconstructor(Point.class) instanceof PointDeconstructor);
+		byte[] data = p.dumps(new Point(3, 4));
+		Unpickler u = new Unpickler(ConstructorRegistry.builder().register("geometry", "Point", new PointConstructor()).build());
+		Point point = (Point) u.loads(data);
+		assertEquals(3, point.x);
+		assertEquals(4, point.y);
+	}
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception {
+		final ConstructorRegistry registry = ConstructorRegistry.defaults().toBuilder()
+				.register("geometry", "Point", new PointConstructor())
+				.build();
+		final byte[] data = PickleUtils.str2bytes("\u0080\u0002cgeometry\nPoint\nK\u0001K\u0002\u0086R.");
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Unpickler u = new Unpickler(registry);
+						for (int i = 0; i < 1000; i++)
+							assertEquals(2, ((Point) u.loads(data)).y);
+					} catch (Throwable x) {
+						synchronized (errors) {
+							errors.add(x);
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+}
@@ -0,0 +1,65 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import net.razorvine.pickle.StringCache;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the string deduplication cache.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class StringCacheTest {
+
+	@Test
+	public void testHitsAndMisses() {
+		StringCache cache = new StringCache();
+		byte[] data = "..name..name..na\u20acme".getBytes(StandardCharsets.UTF_8);
+		String s1 = cache.get(data, 2, 4);
+		String s2 = cache.get(data, 8, 4);
+		assertEquals("name", s1);
+		assertSame(s1, s2);
+		assertEquals("na\u20acme", cache.get(data, 14, 7));
+		assertEquals(1, cache.hits());
+		assertEquals(2, cache.misses());
+		cache.resetCounters();
+		assertEquals(0, cache.hits());
+		assertEquals(0, cache.misses());
+		cache.clear();
+		assertNotSame(s1, cache.get(data, 2, 4));
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void testBounded() {
+		StringCache cache = new StringCache(3, 8);
+		assertEquals(8, cache.maxLength());
+		String[] strings = new String[100];
+		for(int i=0; i<strings.length; ++i) {
+			byte[] data = ("s"+i).getBytes(StandardCharsets.UTF_8);
+			strings[i] = cache.get(data, 0, data.length);
+			assertEquals("s"+i, strings[i]);
+		}
+		for(int i=0; i<strings.length; ++i) {
+			byte[] data = ("s"+i).getBytes(StandardCharsets.UTF_8);
+			assertEquals("s"+i, cache.get(data, 0, data.length));
+		}
+		assertTrue(cache.hits() <= 4);
+		byte[] longString = "this string is too long".getBytes(StandardCharsets.UTF_8);
+		long misses = cache.misses();
+		String s1 = cache.get(longString, 0, longString.length);
+		String s2 = cache.get(longString, 0, longString.length);
+		assertEquals("this string is too long", s1);
+		assertNotSame(s1, s2);
+		assertEquals(misses, cache.misses());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new StringCache(0, 10);
+	}
+}
@@ -0,0 +1,260 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.UnpickleInput;
+import net.razorvine.pickle.Unpickler;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the buffered unpickle input.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpickleInputTest {
+
+	static final byte[] data = new byte[] {
+		0x01, 0x02, (byte)0xf1, (byte)0xff, (byte)0xff, (byte)0xf0,
+		0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, (byte)0x80,
+		0x40, (byte)0x93, 0x4a, 0x45, 0x6d, 0x5c, (byte)0xfa, (byte)0xad,
+		'a', 'b', 'c', '\n', 'd', 'e', (byte)0xe2, (byte)0x82, (byte)0xac, '\n', 'x'
+	};
+
+	/**
+	 * Stream that doesn't support mark/reset and returns at most a few bytes per read call.
+	 */
+	static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 3));
+		}
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Stream that doesn't support mark/reset, like a FileInputStream or socket stream, and counts the read calls.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		int reads;
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		@Override
+		public int read() throws IOException {
+			reads++;
+			return super.read();
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			reads++;
+			return super.read(b, off, len);
+		}
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	void check(UnpickleInput in) throws IOException {
+		assertEquals(0, in.position());
+		assertEquals(0x0201, in.readInt2());
+		assertEquals(-251658255, in.readInt4());
+		assertEquals(0x8007060504030201L, in.readLong8());
+		assertEquals(1234.5678d, in.readDouble(), 0.0);
+		assertEquals(22, in.position());
+		assertEquals("abc\n", in.readLine(true));
+		assertEquals("de\u00e2\u0082\u00ac", in.readLine(false));
+		assertEquals("x", in.readLine(false));
+		assertEquals(data.length, in.position());
+		assertEquals(-1, in.read());
+		try {
+			in.readLine(false);
+			fail("expected premature end of file");
+		} catch (IOException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testFromBytes() throws IOException {
+		check(UnpickleInput.fromBytes(data));
+	}
+
+	@Test
+	public void testFromBytesRegion() throws IOException {
+		byte[] larger = new byte[data.length+20];
+		System.arraycopy(data, 0, larger, 10, data.length);
+		UnpickleInput in = UnpickleInput.fromBytes(larger, 10, data.length);
+		check(in);
+	}
+
+	@Test
+	public void testFromStream() throws IOException {
+		check(UnpickleInput.fromStream(new ByteArrayInputStream(data)));
+		check(UnpickleInput.fromStream(new ByteArrayInputStream(data), 8));
+		check(UnpickleInput.fromStream(new TrickleInputStream(new ByteArrayInputStream(data)), 8));
+		check(UnpickleInput.fromStreamReadAhead(new TrickleInputStream(new ByteArrayInputStream(data)), 8));
+		check(UnpickleInput.fromStreamReadAhead(new ByteArrayInputStream(data), 8));
+	}
+
+	@Test
+	public void testReadAheadWithoutMark() throws PickleException, IOException {
+		byte[] pickle = new Pickler().dumps(Arrays.asList(1, 2.5, "abc", Arrays.asList(3, 4), null, true));
+		CountingInputStream exact = new CountingInputStream(new ByteArrayInputStream(pickle));
+		Object expected = new Unpickler().load(UnpickleInput.fromStream(exact));
+		assertTrue(exact.reads > 10);		// one read call per opcode, or more
+
+		CountingInputStream stream = new CountingInputStream(new ByteArrayInputStream(pickle));
+		UnpickleInput in = UnpickleInput.fromStreamReadAhead(stream, 8192);
+		assertEquals(expected, new Unpickler().load(in));
+		assertEquals(1, stream.reads);
+
+		// the bytes that were read ahead stay in the input, for the next pickle
+		byte[] two = new byte[pickle.length*2];
+		System.arraycopy(pickle, 0, two, 0, pickle.length);
+		System.arraycopy(pickle, 0, two, pickle.length, pickle.length);
+		stream = new CountingInputStream(new ByteArrayInputStream(two));
+		in = UnpickleInput.fromStreamReadAhead(stream, 8192);
+		Unpickler u = new Unpickler();
+		assertEquals(expected, u.load(in));
+		assertEquals(expected, u.load(in));
+		assertEquals(1, stream.reads);
+	}
+
+	@Test
+	public void testFromBuffer() throws IOException {
+		check(UnpickleInput.fromBuffer(ByteBuffer.wrap(data)));
+		check(UnpickleInput.fromBuffer(ByteBuffer.wrap(data).asReadOnlyBuffer()));
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length+10);
+		direct.put(new byte[10]);
+		direct.put(data);
+		direct.position(10);
+		UnpickleInput in = UnpickleInput.fromBuffer(direct);
+		check(in);
+		in.finish();
+		assertEquals(10+data.length, direct.position());
+	}
+
+	@Test
+	public void testFromMappedFile() throws IOException {
+		File file = File.createTempFile("pickletest", ".dat");
+		file.deleteOnExit();
+		try {
+			Files.write(file.toPath(), data);
+			for(int window: new int[] {8, 10, 13, UnpickleInput.DEFAULT_MAP_WINDOW_SIZE}) {
+				try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					check(UnpickleInput.fromMappedFile(channel, window));
+				}
+				try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					UnpickleInput in = UnpickleInput.fromMappedFile(channel, window);
+					assertEquals(1, in.read());
+					byte[] result = in.readBytes(data.length-1);
+					assertEquals(data[data.length-1], result[result.length-1]);
+					in.finish();
+					assertEquals(data.length, channel.position());
+				}
+				try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					UnpickleInput in = UnpickleInput.fromMappedFile(channel, window);
+					assertEquals(0x0201, in.readInt2());
+					ByteBuffer slice = in.readSlice(20);
+					assertTrue(slice.isReadOnly());
+					assertEquals(ByteBuffer.wrap(data, 2, 20), slice);
+					assertEquals("abc\n", in.readLine(true));
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testMappedFileLongLine() throws IOException {
+		// a text line much longer than the map window
+		byte[] line = new byte[100000];
+		for(int i=0; i<line.length; ++i)
+			line[i] = (byte)('a' + i%26);
+		byte[] content = new byte[line.length+3];
+		content[0] = 'V';
+		System.arraycopy(line, 0, content, 1, line.length);
+		content[line.length+1] = '\n';
+		content[line.length+2] = '.';
+		File file = File.createTempFile("pickletest", ".dat");
+		try {
+			Files.write(file.toPath(), content);
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				UnpickleInput in = UnpickleInput.fromMappedFile(channel, 4096);
+				assertEquals('V', in.read());
+				assertEquals(new String(line, StandardCharsets.ISO_8859_1), in.readLine(false));
+				assertEquals('.', in.read());
+				assertEquals(-1, in.read());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testReadString() throws IOException {
+		UnpickleInput in = UnpickleInput.fromStream(new TrickleInputStream(new ByteArrayInputStream(data)), 8);
+		in.readBytes(26);
+		assertEquals("de\u20ac", in.readString(5));
+		in = UnpickleInput.fromBytes(data);
+		in.readBytes(26);
+		assertEquals("de\u20ac", in.readString(5));
+		byte[] large = new byte[1000];
+		for(int i=0; i<large.length; ++i)
+			large[i] = (byte)('a' + i%26);
+		in = UnpickleInput.fromStream(new ByteArrayInputStream(large), 16);
+		assertEquals("ab", in.readString(2));
+		assertEquals(new String(large, 2, 998, StandardCharsets.UTF_8), in.readString(998));
+	}
+
+	@Test
+	public void testReadBytes() throws IOException {
+		for(int size: new int[] {8, 16, 100}) {
+			UnpickleInput in = UnpickleInput.fromStream(new TrickleInputStream(new ByteArrayInputStream(data)), size);
+			assertEquals(1, in.readUnsignedByte());
+			byte[] result = in.readBytes(data.length-1);
+			for(int i=1; i<data.length; ++i)
+				assertEquals(data[i], result[i-1]);
+			assertEquals(data.length, in.position());
+			try {
+				in.readUnsignedByte();
+				fail("expected io error");
+			} catch (IOException x) {
+				// ok
+			}
+		}
+	}
+
+	@Test
+	public void testFinishGivesBackReadAhead() throws IOException {
+		ByteArrayInputStream bis = new ByteArrayInputStream(data);
+		UnpickleInput in = UnpickleInput.fromStream(bis, 16);
+		assertEquals(0x0201, in.readInt2());
+		in.finish();
+		assertEquals(data.length-2, bis.available());
+		assertEquals(0xf1, bis.read());
+	}
+}
@@ -0,0 +1,152 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.UnpickleMemo;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the unpickler memo table.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpickleMemoTest {
+
+	@Test
+	public void testDense() {
+		UnpickleMemo memo = new UnpickleMemo();
+		assertEquals(0, memo.size());
+		for(int i=0; i<1000; ++i)
+			memo.put(memo.size(), "item"+i);
+		assertEquals(1000, memo.size());
+		for(int i=0; i<1000; ++i)
+			assertEquals("item"+i, memo.get(i));
+		memo.put(10, "replaced");
+		assertEquals(1000, memo.size());
+		assertEquals("replaced", memo.get(10));
+		assertFalse(memo.containsKey(1000));
+	}
+
+	@Test
+	public void testNone() {
+		UnpickleMemo memo = new UnpickleMemo();
+		memo.put(0, null);
+		assertEquals(1, memo.size());
+		assertTrue(memo.containsKey(0));
+		assertNull(memo.get(0));
+	}
+
+	@Test
+	public void testSparse() {
+		UnpickleMemo memo = new UnpickleMemo();
+		memo.put(-5, "negative");
+		memo.put(1000000000, "large");
+		memo.put(40, "forty");
+		memo.put(1, "one");
+		assertEquals(4, memo.size());
+		assertEquals("negative", memo.get(-5));
+		assertEquals("large", memo.get(1000000000));
+		assertEquals("forty", memo.get(40));
+		assertEquals("one", memo.get(1));
+		memo.put(40, "forty again");
+		assertEquals(4, memo.size());
+		// fill up so that the dense table grows over the index that was stored sparsely
+		for(int i=2; i<100; ++i)
+			if(i!=40)
+				memo.put(i, i);
+		assertEquals(101, memo.size());
+		assertEquals("forty again", memo.get(40));
+		assertEquals(99, memo.get(99));
+		assertEquals("large", memo.get(1000000000));
+	}
+
+	@Test
+	public void testInvalidKey() {
+		UnpickleMemo memo = new UnpickleMemo();
+		memo.put(0, "a");
+		try {
+			memo.get(1);
+			fail("expected invalid memo key");
+		} catch (PickleException x) {
+			assertEquals("invalid memo key", x.getMessage());
+		}
+		try {
+			memo.get(-1);
+			fail("expected invalid memo key");
+		} catch (PickleException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testClearReset() {
+		UnpickleMemo memo = new UnpickleMemo();
+		for(int i=0; i<100; ++i)
+			memo.put(i, i);
+		memo.put(-1, "x");
+		memo.reset();
+		assertEquals(0, memo.size());
+		assertFalse(memo.containsKey(5));
+		assertFalse(memo.containsKey(-1));
+		memo.put(0, "a");
+		assertEquals("a", memo.get(0));
+		memo.clear();
+		assertEquals(0, memo.size());
+		assertFalse(memo.containsKey(0));
+	}
+
+	@Test
+	public void testMapView() {
+		UnpickleMemo memo = new UnpickleMemo();
+		memo.put(0, "zero");
+		memo.put(1, null);
+		memo.put(1000000, "sparse");
+		memo.put(-5, "negative");
+		Map<Integer, Object> map = memo.asMap();
+		Map<Integer, Object> expected = new HashMap<Integer, Object>();
+		expected.put(0, "zero");
+		expected.put(1, null);
+		expected.put(1000000, "sparse");
+		expected.put(-5, "negative");
+		assertEquals(expected, map);
+		assertEquals(expected, new HashMap<Integer, Object>(map));
+		assertNull(map.get(Integer.valueOf(2)));
+		assertNull(map.get("0"));
+		assertTrue(map.containsKey(Integer.valueOf(1)));
+		assertEquals("zero", map.put(Integer.valueOf(0), "new"));
+		assertEquals("new", memo.get(0));
+		assertEquals("sparse", map.remove(Integer.valueOf(1000000)));
+		assertEquals(3, map.size());
+		map.keySet().remove(Integer.valueOf(0));
+		assertFalse(memo.containsKey(0));
+		assertEquals(2, memo.size());
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		UnpickleMemo memo = new UnpickleMemo();
+		memo.put(0, "zero");
+		memo.put(1, null);
+		memo.put(1000000, null);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(memo);
+		oos.close();
+		UnpickleMemo copy = (UnpickleMemo) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+		assertEquals(3, copy.size());
+		assertEquals("zero", copy.get(0));
+		assertNull(copy.get(1));
+		assertNull(copy.get(1000000));
+		assertEquals(memo.asMap(), copy.asMap());
+	}
+}
@@ -2,10 +2,16 @@ package net.razorvine.pickle.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -93,6 +99,12 @@ public class UnpickleOpcodesTest {
 		//POP            = b'0'   # discard topmost stack item
 		assertNull(U("}N."));
 		assertEquals(Collections.EMPTY_MAP, U("}N0."));
+		// a POP right after a MARK discards the mark: protocol 0 pickle of a=[]; t=(a,); a.append(t)
+		Object[] tuple=(Object[]) U("((lp0\n(g0\ntp1\na00g1\n.");
+		assertEquals(1, tuple.length);
+		List<?> list=(List<?>) tuple[0];
+		assertEquals(1, list.size());
+		assertSame(tuple, list.get(0));
 	}
 
 	@Test
@@ -561,6 +573,16 @@ public class UnpickleOpcodesTest {
 		dict.put("b", 43);
 		dict.put("c", 44);
 		assertEquals(dict, U("}S'a'\nI42\ns(S'b'\nI43\nS'c'\nI44\nu."));
+
+		// an odd number of items is invalid, also for DICT
+		for (String pickle : new String[] { "}(I1\nI2\nI3\nu.", "(I1\nI2\nI3\nd." }) {
+			try {
+				U(pickle);
+				fail("expected PickleException");
+			} catch (PickleException x) {
+				assertEquals("odd number of items for dict", x.getMessage());
+			}
+		}
 	}
 
 	@Test
@@ -758,7 +780,7 @@ public class UnpickleOpcodesTest {
 	public void testBYTEARRAY8() throws PickleException, IOException {
 		// BYTEARRAY8 = 0x96 (pickle protocol 5)
 		Unpickler u = new Unpickler();
-		byte[] data = PickleUtils.str2bytes("\u0080\u0005\u0095\u000e\u0000\u0000\u0000\u0000\u0000\u0000\u0090\u0096\u0003\u0000\u0000\u0000\u0000\u0000\u0000\u0000abc\u0094.");
+		byte[] data = PickleUtils.str2bytes("\u0080\u0005\u0095\u000e\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0096\u0003\u0000\u0000\u0000\u0000\u0000\u0000\u0000abc\u0094.");
 		byte[] result = (byte[]) u.loads(data);
 		assertArrayEquals(new byte[]{'a','b','c'}, result);
 	}
@@ -780,6 +802,35 @@ public class UnpickleOpcodesTest {
 		assertArrayEquals(bytes, (byte[]) U("C\u00ff"+STRING255+"."));
 	}
 
+	@Test
+	public void testZeroCopyBytes() throws PickleException, IOException {
+		u.setZeroCopyBytes(true);
+		byte[] data = PickleUtils.str2bytes("(B\u0003\u0000\u0000\u0000abcC\u0002de\u008e\u0001\u0000\u0000\u0000\u0000\u0000\u0000\u0000f\u0096\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000t.");
+		Object[] result = (Object[]) u.loads(data);
+		assertEquals(4, result.length);
+		ByteBuffer abc = (ByteBuffer) result[0];
+		assertTrue(abc.isReadOnly());
+		assertEquals(ByteBuffer.wrap(new byte[]{'a','b','c'}), abc);
+		assertEquals(ByteBuffer.wrap(new byte[]{'d','e'}), result[1]);
+		assertEquals(ByteBuffer.wrap(new byte[]{'f'}), result[2]);
+		assertEquals(0, ((ByteBuffer) result[3]).remaining());
+		// the slices point into the source data
+		data[6] = 'X';
+		assertEquals('X', abc.get(0));
+
+		// the same from a ByteBuffer, and from a stream (where the payloads are copies)
+		result = (Object[]) u.load(ByteBuffer.wrap(data));
+		assertEquals(ByteBuffer.wrap(new byte[]{'X','b','c'}), result[0]);
+		result = (Object[]) u.load(new ByteArrayInputStream(data));
+		assertEquals(ByteBuffer.wrap(new byte[]{'X','b','c'}), result[0]);
+		assertTrue(((ByteBuffer) result[0]).isReadOnly());
+
+		// bytes consumed by constructors
+		assertArrayEquals(new byte[] {'a','b'}, PickleUtils.toBytes(U("cbuiltins\nbytearray\nC\u0002ab\u0085R.")));
+		Calendar c = (Calendar) U("cdatetime\ndate\nC\u0004\u0007\u00db\u000c\u001f\u0085R.");
+		assertEquals(2011, c.get(Calendar.YEAR));
+	}
+
 	@Test
 	public void testMEMOIZE() throws PickleException, IOException {
 		// MEMOIZE = 0x94;  // store top of the stack in memo
@@ -798,6 +849,65 @@ public class UnpickleOpcodesTest {
 		assertArrayEquals(value, result);
 	}
 
+	@Test
+	public void testFRAMEBoundaries() throws PickleException, IOException {
+		// opcode crossing the end of the frame
+		try {
+			u.loads(new byte[] { (byte)Opcodes.FRAME, 3,0,0,0,0,0,0,0, Opcodes.BININT1, 42, Opcodes.BININT2, 1, 2, (byte)Opcodes.TUPLE2, Opcodes.STOP });
+			fail("expected pickle exception");
+		} catch (PickleException x) {
+			assertTrue(x.getMessage().contains("frame boundary"));
+		}
+		// new frame starting inside the current frame
+		try {
+			u.loads(new byte[] { (byte)Opcodes.FRAME, 20,0,0,0,0,0,0,0, Opcodes.BININT1, 42,
+					(byte)Opcodes.FRAME, 2,0,0,0,0,0,0,0, (byte)Opcodes.TUPLE1, Opcodes.STOP });
+			fail("expected pickle exception");
+		} catch (PickleException x) {
+			assertTrue(x.getMessage().contains("new frame"));
+		}
+		// unframed data between frames is fine
+		Object[] result = (Object[]) u.loads(new byte[] { (byte)Opcodes.FRAME, 2,0,0,0,0,0,0,0, Opcodes.BININT1, 42,
+				Opcodes.SHORT_BINBYTES, 1, 'a',
+				(byte)Opcodes.FRAME, 2,0,0,0,0,0,0,0, (byte)Opcodes.TUPLE2, Opcodes.STOP });
+		assertEquals(42, result[0]);
+		assertArrayEquals(new byte[]{'a'}, (byte[]) result[1]);
+	}
+
+	@Test
+	public void testFRAMEBulkRead() throws PickleException, IOException {
+		// a frame is fetched with a single read from a stream
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(new byte[] {(byte)Opcodes.PROTO, 4, (byte)Opcodes.FRAME, (byte)0xd4, 7,0,0,0,0,0,0, Opcodes.EMPTY_LIST, Opcodes.MARK});
+		for(int i=0; i<1000; ++i) {
+			bos.write(Opcodes.BININT1);
+			bos.write(i & 0xff);
+		}
+		bos.write(Opcodes.APPENDS);
+		bos.write(Opcodes.STOP);
+		final int[] readCalls = new int[1];
+		InputStream stream = new FilterInputStream(new ByteArrayInputStream(bos.toByteArray())) {
+			@Override
+			public int read() throws IOException {
+				readCalls[0]++;
+				return super.read();
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				readCalls[0]++;
+				return super.read(b, off, len);
+			}
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+		List<?> result = (List<?>) u.load(stream);
+		assertEquals(1000, result.size());
+		assertEquals(231, result.get(999));
+		assertTrue("read calls: "+readCalls[0], readCalls[0] <= 5);
+	}
+
 	@Test
 	public void testGLOBAL() throws PickleException, IOException {
 		//GLOBAL = (byte)'c'; // push self.find_class(modname, name); 2 string args
@@ -3,8 +3,12 @@ package net.razorvine.pickle.test;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import net.razorvine.pickle.LimitExceededException;
+import net.razorvine.pickle.PickleException;
 import net.razorvine.pickle.UnpickleStack;
 
 import org.junit.Test;
@@ -16,6 +20,40 @@ import org.junit.Test;
  */
 public class UnpickleStackTest {
 
+	@Test
+	public void testLimits() {
+		UnpickleStack s=new UnpickleStack();
+		s.setLimits(40, 3);
+		for(int i=0; i<40; ++i)
+			s.add(i);
+		try {
+			s.add(40);
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+		assertEquals(40, s.size());
+		s.add_mark();
+		s.add_mark();
+		s.add_mark();
+		try {
+			s.add_mark();
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+		s.clear();
+		s.setLimits(5, 5);
+		for(int i=0; i<5; ++i)
+			s.add(i);
+		try {
+			s.add(5);
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+	}
+
 	@Test
 	public void testPopSinceMarker() {
 		UnpickleStack s=new UnpickleStack();
@@ -36,6 +74,83 @@ public class UnpickleStackTest {
 		assertEquals("c",s.pop());
 	}
 
+	@Test
+	public void testSlicesSinceMarker() {
+		UnpickleStack s=new UnpickleStack();
+		s.add("list");
+		s.add_mark();
+		for(int i=0; i<100; ++i)
+			s.add(i);
+		s.add_mark();
+		s.add("k");
+		s.add("v");
+		assertEquals(2, s.size_since_marker());
+		assertEquals(103, s.size());
+		Map<Object, Object> map = new HashMap<>();
+		s.pop_pairs_since_marker_into(map);
+		assertEquals("v", map.get("k"));
+		s.add_mark();
+		s.add("k");
+		try {
+			s.pop_pairs_since_marker_into(map);
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			assertEquals("odd number of items for dict", x.getMessage());
+		}
+		s.pop_mark();
+		assertEquals(100, s.size_since_marker());
+		assertEquals("list", s.peek_below_marker());
+		Object[] array = s.pop_array_since_marker();
+		assertEquals(100, array.length);
+		assertEquals(0, array[0]);
+		assertEquals(99, array[99]);
+		assertEquals(1, s.size());
+		assertEquals("list", s.peek());
+
+		s.add_mark();
+		s.add("a");
+		s.add("b");
+		List<Object> target = new ArrayList<>();
+		s.pop_all_since_marker_into(target);
+		assertEquals(2, target.size());
+		assertEquals("a", target.get(0));
+		s.add_mark();
+		s.add_mark();
+		s.add("c");
+		s.pop_mark();
+		assertEquals(0, s.size_since_marker());
+		assertEquals(0, s.pop_all_since_marker().size());
+		assertEquals("list", s.pop());
+		assertEquals(0, s.size());
+	}
+
+	@Test
+	public void testMarkErrors() {
+		UnpickleStack s=new UnpickleStack();
+		s.add("a");
+		try {
+			s.pop_all_since_marker();
+			fail("expected pickle exception");
+		} catch (PickleException x) {
+			assertEquals("could not find MARK", x.getMessage());
+		}
+		s.add_mark();
+		try {
+			s.pop();
+			fail("expected exception");
+		} catch (IndexOutOfBoundsException x) {
+			// can't pop past a mark
+		}
+		s.pop_mark();
+		assertEquals("a", s.pop());
+		try {
+			s.pop();
+			fail("expected exception");
+		} catch (IndexOutOfBoundsException x) {
+			// empty stack
+		}
+	}
+
 	@Test
 	public void testAddPop() {
 		UnpickleStack s=new UnpickleStack();
@@ -61,6 +176,18 @@ public class UnpickleStackTest {
 		assertEquals(0, s.size());
 	}
 
+	@Test
+	public void testReset() {
+		UnpickleStack s=new UnpickleStack();
+		s.add("x");
+		s.add_mark();
+		s.add("y");
+		s.reset();
+		assertEquals(0, s.size());
+		s.add("z");
+		assertEquals("z", s.pop());
+	}
+
 	@Test
 	public void testTrim() {
 		UnpickleStack s=new UnpickleStack();
@@ -0,0 +1,201 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import net.razorvine.pickle.LimitExceededException;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.UnpicklerLimits;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the resource limits of the unpickler.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpicklerLimitsTest {
+
+	private void assertRejected(Unpickler u, byte[] data) throws IOException {
+		try {
+			u.loads(data);
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+		try {
+			u.load(new ByteArrayInputStream(data));
+			fail("expected LimitExceededException");
+		} catch (LimitExceededException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testMaxAllocation() throws PickleException, IOException {
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxAllocation(1000).build());
+		// strings and bytes that announce a huge length are rejected before anything is allocated
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0004\u008d\u0000\u0000\u0000\u0000\u0001\u0000\u0000\u0000x."));
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0003B\u00ff\u00ff\u00ff\u007fx."));
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0003X\u00ff\u00ff\u00ff\u007fx."));
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0002\u008b\u00ff\u00ff\u00ff\u007fx."));
+
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'a');
+		String text = new String(chars);
+		assertEquals(text, u.loads(new Pickler().dumps(text)));
+		assertRejected(u, new Pickler().dumps(text + "a"));
+		u.setZeroCopyBytes(true);
+		assertEquals(1000, ((ByteBuffer) u.loads(PickleUtils.str2bytes("\u0080\u0003B\u00e8\u0003\u0000\u0000" + text + "."))).remaining());
+	}
+
+	private void assertNegativeLength(byte[] data) throws IOException {
+		Unpickler u = new Unpickler();
+		try {
+			u.loads(data);
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			assertTrue(x.getMessage().contains("negative length"));
+		}
+		try {
+			u.load(new ByteArrayInputStream(data));
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			assertTrue(x.getMessage().contains("negative length"));
+		}
+	}
+
+	@Test
+	public void testNegativeLengths() throws PickleException, IOException {
+		// BINSTRING, LONG4, BINUNICODE8 and BINBYTES8 with a length that is negative
+		assertNegativeLength(PickleUtils.str2bytes("T\u00ff\u00ff\u00ff\u00ffabc."));
+		assertNegativeLength(PickleUtils.str2bytes("\u0080\u0002\u008b\u00f0\u00ff\u00ff\u00ffabc."));
+		assertNegativeLength(PickleUtils.str2bytes("\u0080\u0004\u008d\u00ff\u00ff\u00ff\u00ff\u00ff\u00ff\u00ff\u00ffabc."));
+		assertNegativeLength(PickleUtils.str2bytes("\u0080\u0004\u008e\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0080abc."));
+		// the length of BINUNICODE is unsigned, so this is a truncated string of 4 GB
+		try {
+			new Unpickler().loads(PickleUtils.str2bytes("\u0080\u0003X\u00ff\u00ff\u00ff\u00ffabc."));
+			fail("expected IOException");
+		} catch (IOException x) {
+			// ok
+		}
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxAllocation(1000).build());
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0003X\u00ff\u00ff\u00ff\u00ffabc."));
+	}
+
+	@Test
+	public void testMaxInputSize() throws PickleException, IOException {
+		char[] chars = new char[2000];
+		Arrays.fill(chars, 'a');
+		String text = new String(chars);
+		byte[] data = new Pickler().dumps(text);
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxInputSize(1000).build());
+		assertRejected(u, data);
+		// a protocol 0 string is read as a line
+		assertRejected(u, PickleUtils.str2bytes("S'" + text + "'\n."));
+		// a frame that is larger than the input may be
+		assertRejected(u, PickleUtils.str2bytes("\u0080\u0004\u0095\u0000\u00ca\u009a;\u0000\u0000\u0000\u0000N."));
+
+		u.setLimits(UnpicklerLimits.builder().maxInputSize(data.length).build());
+		assertEquals(text, u.loads(data));
+		assertEquals(text, u.load(new ByteArrayInputStream(data)));
+		u.setLimits(UnpicklerLimits.builder().maxInputSize(data.length - 1).build());
+		assertRejected(u, data);
+		u.setLimits(UnpicklerLimits.NONE);
+		assertEquals(text, u.loads(data));
+	}
+
+	@Test
+	public void testMaxInputSizePerRecord() throws PickleException, IOException {
+		// the input size is limited per pickle, not for the whole stream
+		Pickler p = new Pickler();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int i = 0; i < 100; i++)
+			p.dump("record" + i, bos);
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxInputSize(100).build());
+		Iterator<Object> it = u.iterate(new ByteArrayInputStream(bos.toByteArray()));
+		int count = 0;
+		while (it.hasNext())
+			assertEquals("record" + count++, it.next());
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void testMaxMemoEntries() throws PickleException, IOException {
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 100; i++)
+			list.add(new ArrayList<Object>(Arrays.asList(i)));
+		byte[] data = new Pickler().dumps(list);
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxMemoEntries(100).build());
+		assertRejected(u, data);
+		u.setLimits(UnpicklerLimits.builder().maxMemoEntries(101).build());
+		assertEquals(list, u.loads(data));
+		// storing at an index that is in use already doesn't add an entry
+		u.setLimits(UnpicklerLimits.builder().maxMemoEntries(1).build());
+		assertEquals(Arrays.asList(1, 1), u.loads(PickleUtils.str2bytes("\u0080\u0002(K\u0001q\u0000q\u0000h\u0000l.")));
+	}
+
+	@Test
+	public void testMaxStackSize() throws PickleException, IOException {
+		Object[] tuple = new Object[100];
+		Arrays.fill(tuple, 42);
+		byte[] data = new Pickler().dumps(tuple);
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxStackSize(50).build());
+		assertRejected(u, data);
+		u.setLimits(UnpicklerLimits.builder().maxStackSize(100).build());
+		assertArrayEquals(tuple, (Object[]) u.loads(data));
+	}
+
+	@Test
+	public void testMaxNesting() throws PickleException, IOException {
+		List<Object> nested = new ArrayList<Object>();
+		for (int i = 0; i < 20; i++) {
+			List<Object> outer = new ArrayList<Object>();
+			outer.add(nested);
+			nested = outer;
+		}
+		byte[] data = new Pickler().dumps(nested);
+		Unpickler u = new Unpickler();
+		u.setLimits(UnpicklerLimits.builder().maxNesting(10).build());
+		assertRejected(u, data);
+		u.setLimits(UnpicklerLimits.builder().maxNesting(21).build());
+		assertEquals(nested, u.loads(data));
+	}
+
+	@Test
+	public void testBuilder() {
+		UnpicklerLimits limits = UnpicklerLimits.builder().maxInputSize(1000).maxNesting(5).build();
+		assertEquals(1000, limits.getMaxInputSize());
+		assertEquals(5, limits.getMaxNesting());
+		assertEquals(Long.MAX_VALUE, limits.getMaxAllocation());
+		assertEquals(Integer.MAX_VALUE, limits.getMaxMemoEntries());
+		UnpicklerLimits other = limits.toBuilder().maxMemoEntries(10).build();
+		assertEquals(10, other.getMaxMemoEntries());
+		assertEquals(1000, other.getMaxInputSize());
+		assertEquals(Integer.MAX_VALUE, limits.getMaxMemoEntries());
+		assertEquals(Integer.MAX_VALUE, UnpicklerLimits.NONE.getMaxStackSize());
+		try {
+			UnpicklerLimits.builder().maxStackSize(-1);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// ok
+		}
+	}
+}
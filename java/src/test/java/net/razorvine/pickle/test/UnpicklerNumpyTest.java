@@ -0,0 +1,153 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.objects.ComplexNumber;
+import net.razorvine.pickle.objects.NDArray;
+import net.razorvine.pickle.objects.NumpyDType;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for unpickling numpy arrays and scalars.
+ * The pickle data is what numpy produces for the arrays mentioned in the comments.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpicklerNumpyTest {
+
+	Object U(String strdata) throws PickleException, IOException
+	{
+		Unpickler u=new Unpickler();
+		Object o=u.loads(PickleUtils.str2bytes(strdata));
+		u.close();
+		return o;
+	}
+
+	@Test
+	public void testFloat64() throws PickleException, IOException
+	{
+		// pickle.dumps(numpy.array([[1,2,3],[4,5,6]], dtype='<f8'), 2)
+		NDArray array = (NDArray) U("\u0080\u0002cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002c_codecs\nencode\nq\u0003X\u0001\u0000\u0000\u0000bq\u0004X\u0006\u0000\u0000\u0000latin1q\u0005\u0086q\u0006Rq\u0007\u0087q\u0008Rq\u0009(K\u0001K\u0002K\u0003\u0086q\ncnumpy\ndtype\nq\u000bX\u0002\u0000\u0000\u0000f8q\u000c\u0089\u0088\u0087q\rRq\u000e(K\u0003X\u0001\u0000\u0000\u0000<q\u000fNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u0010b\u0089h\u0003X1\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u00c3\u00b0?\u0000\u0000\u0000\u0000\u0000\u0000\u0000@\u0000\u0000\u0000\u0000\u0000\u0000\u0008@\u0000\u0000\u0000\u0000\u0000\u0000\u0010@\u0000\u0000\u0000\u0000\u0000\u0000\u0014@\u0000\u0000\u0000\u0000\u0000\u0000\u0018@q\u0011h\u0005\u0086q\u0012Rq\u0013tq\u0014b.");
+		assertArrayEquals(new int[] {2, 3}, array.getShape());
+		assertEquals(6, array.size());
+		assertFalse(array.isFortranOrder());
+		NumpyDType dtype = array.getDType();
+		assertEquals('f', dtype.getKind());
+		assertEquals(8, dtype.getItemsize());
+		assertEquals(ByteOrder.LITTLE_ENDIAN, dtype.getByteOrder());
+		assertEquals("<f8", dtype.toString());
+		assertArrayEquals(new double[] {1, 2, 3, 4, 5, 6}, (double[]) array.getData(), 0);
+		assertSame(array.getData(), array.toArray());
+	}
+
+	@Test
+	public void testIntegerTypes() throws PickleException, IOException
+	{
+		// pickle.dumps(numpy.array([1, -2, 300], dtype='>i4'), 3)
+		NDArray array = (NDArray) U("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0003\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0002\u0000\u0000\u0000i4q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000>q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u000c\u0000\u0000\u0000\u0001\u00ff\u00ff\u00ff\u00fe\u0000\u0000\u0001,q\rtq\u000eb.");
+		assertEquals(ByteOrder.BIG_ENDIAN, array.getDType().getByteOrder());
+		assertArrayEquals(new int[] {1, -2, 300}, (int[]) array.getData());
+		// pickle.dumps(numpy.array([0, 1, 128, 255], dtype='u1'), 3)
+		array = (NDArray) U("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0004\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0002\u0000\u0000\u0000u1q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000|q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u0004\u0000\u0001\u0080\u00ffq\rtq\u000eb.");
+		assertArrayEquals(new short[] {0, 1, 128, 255}, (short[]) array.getData());
+		// pickle.dumps(numpy.array([True, False, True]), 3)
+		array = (NDArray) U("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0003\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0002\u0000\u0000\u0000b1q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000|q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u0003\u0001\u0000\u0001q\rtq\u000eb.");
+		assertTrue(Arrays.equals(new boolean[] {true, false, true}, (boolean[]) array.getData()));
+		// pickle.dumps(numpy.array([5], dtype='m8'), 3)
+		array = (NDArray) U("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0001\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0002\u0000\u0000\u0000m8q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000<q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u0008\u0005\u0000\u0000\u0000\u0000\u0000\u0000\u0000q\rtq\u000eb.");
+		assertArrayEquals(new long[] {5}, (long[]) array.getData());
+	}
+
+	@Test
+	public void testComplex() throws PickleException, IOException
+	{
+		// pickle.dumps(numpy.array([1.5-2j]), 3)
+		NDArray array = (NDArray) U("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0001\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0003\u0000\u0000\u0000c16q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000<q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u0010\u0000\u0000\u0000\u0000\u0000\u0000\u00f8?\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u00c0q\rtq\u000eb.");
+		assertEquals(1, array.size());
+		assertArrayEquals(new double[] {1.5, -2.0}, (double[]) array.getData(), 0);
+	}
+
+	@Test
+	public void testScalars() throws PickleException, IOException
+	{
+		// pickle.dumps([numpy.float64(1.5), numpy.int64(-42), numpy.float32(0.25), numpy.bool_(True), numpy.uint64(2**64-1), numpy.float16(-1.5)], 2)
+		List<?> scalars = (List<?>) U("\u0080\u0002]q\u0000(cnumpy.core.multiarray\nscalar\nq\u0001cnumpy\ndtype\nq\u0002X\u0002\u0000\u0000\u0000f8q\u0003\u0089\u0088\u0087q\u0004Rq\u0005(K\u0003X\u0001\u0000\u0000\u0000<q\u0006NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u0007bc_codecs\nencode\nq\u0008X\u0009\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u00c3\u00b8?q\u0009X\u0006\u0000\u0000\u0000latin1q\n\u0086q\u000bRq\u000c\u0086q\rRq\u000eh\u0001h\u0002X\u0002\u0000\u0000\u0000i8q\u000f\u0089\u0088\u0087q\u0010Rq\u0011(K\u0003h\u0006NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u0012bh\u0008X\u0010\u0000\u0000\u0000\u00c3\u0096\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bfq\u0013h\n\u0086q\u0014Rq\u0015\u0086q\u0016Rq\u0017h\u0001h\u0002X\u0002\u0000\u0000\u0000f4q\u0018\u0089\u0088\u0087q\u0019Rq\u001a(K\u0003h\u0006NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u001bbh\u0008X\u0005\u0000\u0000\u0000\u0000\u0000\u00c2\u0080>q\u001ch\n\u0086q\u001dRq\u001e\u0086q\u001fRq h\u0001h\u0002X\u0002\u0000\u0000\u0000b1q!\u0089\u0088\u0087q\"Rq#(K\u0003X\u0001\u0000\u0000\u0000|q$NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq%bh\u0008X\u0001\u0000\u0000\u0000\u0001q&h\n\u0086q'Rq(\u0086q)Rq*h\u0001h\u0002X\u0002\u0000\u0000\u0000u8q+\u0089\u0088\u0087q,Rq-(K\u0003h\u0006NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq.bh\u0008X\u0010\u0000\u0000\u0000\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bf\u00c3\u00bfq/h\n\u0086q0Rq1\u0086q2Rq3h\u0001h\u0002X\u0002\u0000\u0000\u0000f2q4\u0089\u0088\u0087q5Rq6(K\u0003h\u0006NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq7bh\u0008X\u0003\u0000\u0000\u0000\u0000\u00c2\u00beq8h\n\u0086q9Rq:\u0086q;Rq<e.");
+		assertEquals(1.5, scalars.get(0));
+		assertEquals(-42L, scalars.get(1));
+		assertEquals(0.25f, scalars.get(2));
+		assertEquals(true, scalars.get(3));
+		assertEquals(new BigInteger("18446744073709551615"), scalars.get(4));
+		assertEquals(-1.5f, scalars.get(5));
+	}
+
+	@Test
+	public void testProtocol5() throws PickleException, IOException
+	{
+		// pickle.dumps(numpy.array([1.5, 2.5]), 5)
+		NDArray array = (NDArray) U("\u0080\u0005\u0095\u0083\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u008c\u0012numpy.core.numeric\u0094\u008c\u000b_frombuffer\u0094\u0093\u0094(\u0096\u0010\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u0000\u00f8?\u0000\u0000\u0000\u0000\u0000\u0000\u0004@\u0094\u008c\u0005numpy\u0094\u008c\u0005dtype\u0094\u0093\u0094\u008c\u0002f8\u0094\u0089\u0088\u0087\u0094R\u0094(K\u0003\u008c\u0001<\u0094NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000t\u0094bK\u0002\u0085\u0094\u008c\u0001C\u0094t\u0094R\u0094.");
+		assertArrayEquals(new double[] {1.5, 2.5}, (double[]) array.getData(), 0);
+
+		// pickle.dumps([numpy.array([1.5, 2.5]), numpy.array([7, -7], dtype='i2')], 5, buffer_callback=buffers.append)
+		// where the first array is writable and the second one is read-only
+		byte[] data = PickleUtils.str2bytes("\u0080\u0005\u0095\u009f\u0000\u0000\u0000\u0000\u0000\u0000\u0000]\u0094(\u008c\u0012numpy.core.numeric\u0094\u008c\u000b_frombuffer\u0094\u0093\u0094(\u0097\u008c\u0005numpy\u0094\u008c\u0005dtype\u0094\u0093\u0094\u008c\u0002f8\u0094\u0089\u0088\u0087\u0094R\u0094(K\u0003\u008c\u0001<\u0094NNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000t\u0094bK\u0002\u0085\u0094\u008c\u0001C\u0094t\u0094R\u0094h\u0003(\u0097\u0098h\u0006\u008c\u0002i2\u0094\u0089\u0088\u0087\u0094R\u0094(K\u0003h\nNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000t\u0094bh\u000ch\rt\u0094R\u0094e.");
+		ByteBuffer buffer1 = ByteBuffer.allocateDirect(16).order(ByteOrder.LITTLE_ENDIAN);
+		buffer1.putDouble(1.5).putDouble(2.5).flip();
+		ByteBuffer buffer2 = ByteBuffer.wrap(new byte[] {7, 0, -7, -1});
+		List<?> arrays = (List<?>) new Unpickler().loads(data, Arrays.asList(buffer1, buffer2));
+		NDArray array1 = (NDArray) arrays.get(0);
+		NDArray array2 = (NDArray) arrays.get(1);
+		ByteBuffer view1 = (ByteBuffer) array1.getData();
+		ByteBuffer view2 = (ByteBuffer) array2.getData();
+		assertTrue(view1.isDirect());
+		assertFalse(view1.isReadOnly());
+		assertTrue(view2.isReadOnly());
+		assertEquals(ByteOrder.LITTLE_ENDIAN, view2.order());
+		assertEquals(2.5, view1.getDouble(8), 0);
+		view1.putDouble(0, 3.5);
+		assertEquals(3.5, buffer1.getDouble(0), 0);		// a view, not a copy
+		assertArrayEquals(new double[] {3.5, 2.5}, (double[]) array1.toArray(), 0);
+		assertArrayEquals(new short[] {7, -7}, (short[]) array2.toArray());
+	}
+
+	@Test
+	public void testZeroCopyBytes() throws PickleException, IOException
+	{
+		Unpickler u = new Unpickler();
+		u.setZeroCopyBytes(true);
+		NDArray array = (NDArray) u.loads(PickleUtils.str2bytes("\u0080\u0003cnumpy.core.multiarray\n_reconstruct\nq\u0000cnumpy\nndarray\nq\u0001K\u0000\u0085q\u0002C\u0001bq\u0003\u0087q\u0004Rq\u0005(K\u0001K\u0003\u0085q\u0006cnumpy\ndtype\nq\u0007X\u0002\u0000\u0000\u0000i4q\u0008\u0089\u0088\u0087q\u0009Rq\n(K\u0003X\u0001\u0000\u0000\u0000>q\u000bNNNJ\u00ff\u00ff\u00ff\u00ffJ\u00ff\u00ff\u00ff\u00ffK\u0000tq\u000cb\u0089C\u000c\u0000\u0000\u0000\u0001\u00ff\u00ff\u00ff\u00fe\u0000\u0000\u0001,q\rtq\u000eb."));
+		ByteBuffer data = (ByteBuffer) array.getData();
+		assertEquals(ByteOrder.BIG_ENDIAN, data.order());
+		assertEquals(300, data.getInt(8));
+		assertArrayEquals(new int[] {1, -2, 300}, (int[]) array.toArray());
+	}
+
+	@Test
+	public void testDecode() {
+		NumpyDType dtype = new NumpyDType("u4");
+		dtype.__setstate__(new Object[] {3, "<", null, null, null, -1, -1, 0});
+		assertArrayEquals(new long[] {4294967295L, 1}, (long[]) dtype.decode(ByteBuffer.wrap(new byte[] {-1, -1, -1, -1, 1, 0, 0, 0}), 2));
+		dtype = new NumpyDType("f2");
+		dtype.__setstate__(new Object[] {3, ">", null, null, null, -1, -1, 0});
+		float[] halfs = (float[]) dtype.decode(ByteBuffer.wrap(new byte[] {0x3c, 0, 0x7c, 0, 0, 1, (byte) 0xc0, 0}), 4);
+		assertArrayEquals(new float[] {1.0f, Float.POSITIVE_INFINITY, 5.9604645e-8f, -2.0f}, halfs, 0);
+		try {
+			dtype.decode(ByteBuffer.wrap(new byte[4]), 3);
+			fail("expected error");
+		} catch (PickleException x) {
+			// ok
+		}
+		dtype = new NumpyDType("U5");
+		assertFalse(dtype.isNumeric());
+	}
+}
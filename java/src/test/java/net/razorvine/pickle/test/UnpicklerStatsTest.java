@@ -0,0 +1,119 @@
+package net.razorvine.pickle.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.razorvine.pickle.Opcodes;
+import net.razorvine.pickle.PickleException;
+import net.razorvine.pickle.PickleUtils;
+import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.UnpicklerStats;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the unpickler statistics.
+ *
+ * @author Irmen de Jong (irmen@razorvine.net)
+ */
+public class UnpicklerStatsTest {
+
+	@Test
+	public void testCounts() throws PickleException, IOException {
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 10; i++)
+			list.add(new BigDecimal(i + ".5"));
+		byte[] data = new Pickler().dumps(list);
+
+		UnpicklerStats stats = new UnpicklerStats();
+		Unpickler u = new Unpickler();
+		u.setStats(stats);
+		assertEquals(list, u.loads(data));
+		assertEquals(list, u.loads(data));
+
+		UnpicklerStats.Snapshot snapshot = stats.snapshot();
+		assertEquals(2, snapshot.getLoads());
+		assertEquals(0, snapshot.getFailedLoads());
+		assertEquals(2L * data.length, snapshot.getBytes());
+		assertTrue(snapshot.getTotalNanos() > 0);
+		assertTrue(snapshot.getMaxNanos() <= snapshot.getTotalNanos());
+		assertEquals(2, snapshot.getOpcodeCount(Opcodes.STOP));
+		assertEquals(2, snapshot.getOpcodeCount(Opcodes.EMPTY_LIST));
+		assertEquals(20, snapshot.getOpcodeCount(Opcodes.REDUCE));
+		Map<String, Long> opcodes = snapshot.getOpcodeCounts();
+		assertEquals(Long.valueOf(20), opcodes.get("REDUCE"));
+		assertEquals(Long.valueOf(2), opcodes.get("PROTO"));
+		assertNull(opcodes.get("BINFLOAT"));
+		long previous = Long.MAX_VALUE;
+		for (long count : opcodes.values()) {
+			assertTrue(count <= previous);		// most frequent first
+			previous = count;
+		}
+		assertEquals(Long.valueOf(20), snapshot.getConstructorCounts().get("decimal.Decimal"));
+		assertTrue(snapshot.getMemoHighWater() >= 11);		// the list and the decimals
+		assertTrue(snapshot.getStackHighWater() >= 12);		// the list, the mark and the decimals
+
+		// not collecting anymore
+		u.setStats(null);
+		u.loads(data);
+		assertEquals(2, stats.snapshot().getLoads());
+		assertEquals("PROTO", UnpicklerStats.opcodeName(Opcodes.PROTO));
+		assertEquals("0xff", UnpicklerStats.opcodeName(0xff));
+	}
+
+	@Test
+	public void testSnapshotAndReset() throws PickleException, IOException {
+		UnpicklerStats stats = new UnpicklerStats();
+		Unpickler u1 = new Unpickler();
+		Unpickler u2 = new Unpickler();
+		u1.setStats(stats);
+		u2.setStats(stats);
+		u1.loads(PickleUtils.str2bytes("\u0080\u0002K\u0001."));
+		u2.loads(PickleUtils.str2bytes("\u0080\u0002cfoo\nBar\n)\u0081."));
+		try {
+			u2.loads(PickleUtils.str2bytes("\u0080\u0002K\u0001"));
+			fail("expected IOException");
+		} catch (IOException x) {
+			// ok
+		}
+
+		UnpicklerStats.Snapshot snapshot = stats.snapshotAndReset();
+		assertEquals(3, snapshot.getLoads());
+		assertEquals(1, snapshot.getFailedLoads());
+		assertEquals(3, snapshot.getOpcodeCount(Opcodes.PROTO));
+		assertEquals(Long.valueOf(1), snapshot.getConstructorCounts().get("foo.Bar"));
+		assertTrue(snapshot.toString().contains("foo.Bar=1"));
+
+		snapshot = stats.snapshot();
+		assertEquals(0, snapshot.getLoads());
+		assertEquals(0, snapshot.getBytes());
+		assertEquals(0, snapshot.getOpcodeCount(Opcodes.PROTO));
+		assertTrue(snapshot.getOpcodeCounts().isEmpty());
+		assertTrue(snapshot.getConstructorCounts().isEmpty());
+	}
+
+	@Test
+	public void testIterate() throws PickleException, IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Pickler p = new Pickler();
+		for (int i = 0; i < 5; i++)
+			p.dump(i, bos);
+		UnpicklerStats stats = new UnpicklerStats();
+		Unpickler u = new Unpickler();
+		u.setStats(stats);
+		Iterator<Object> it = u.iterate(new ByteArrayInputStream(bos.toByteArray()));
+		while (it.hasNext())
+			it.next();
+		assertEquals(5, stats.snapshot().getLoads());
+		assertEquals(bos.size(), stats.snapshot().getBytes());
+	}
+}
@@ -2,24 +2,44 @@ package net.razorvine.pickle.test;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TimeZone;
 
+import net.razorvine.pickle.IBufferProvider;
+import net.razorvine.pickle.IObjectConstructor;
 import net.razorvine.pickle.PickleException;
 import net.razorvine.pickle.PickleUtils;
 import net.razorvine.pickle.Pickler;
+import net.razorvine.pickle.StringCache;
 import net.razorvine.pickle.Unpickler;
+import net.razorvine.pickle.objects.AnyClassConstructor;
+import net.razorvine.pickle.objects.ClassDict;
+import net.razorvine.pickle.objects.ClassDictConstructor;
 import net.razorvine.pickle.objects.ComplexNumber;
+import net.razorvine.pickle.objects.IntKeyMap;
+import net.razorvine.pickle.objects.PrimitiveList;
 import net.razorvine.pickle.objects.Time;
 import net.razorvine.pickle.objects.TimeDelta;
 
@@ -573,6 +593,93 @@ public class UnpicklerTest {
 		assertArrayEquals(testd,arrayd,0.000001);
 	}
 
+	@Test
+	public void testArrayListForm() throws PickleException, IOException
+	{
+		// the list form of array.array, as written by Python 2 and by the Java pickler
+		Pickler p = new Pickler();
+		int[] ints = new int[1000];
+		double[] doubles = new double[1000];
+		for(int i=0; i<1000; ++i) {
+			ints[i] = i*1000;
+			doubles[i] = i/3.0;
+		}
+		assertArrayEquals(ints, (int[]) U(p.dumps(ints)));
+		assertArrayEquals(ints, (int[]) U(new Pickler(false).dumps(ints)));
+		assertArrayEquals(doubles, (double[]) U(p.dumps(doubles)), 0);
+		assertArrayEquals(new float[] {1.5f, -2.25f}, (float[]) U(p.dumps(new float[] {1.5f, -2.25f})), 0);
+		assertArrayEquals(new short[] {1, -2, 300}, (short[]) U(p.dumps(new short[] {1, -2, 300})));
+
+		// python 2: array.array('i', [1, 2]) with protocol 0
+		assertArrayEquals(new int[] {1, 2}, (int[]) U("carray\narray\np0\n(Vi\np1\n(lp2\nI1\naI2\natp3\nRp4\n."));
+		// python 2: array.array('u', u'ab') with protocol 2
+		assertArrayEquals(new char[] {'a', 'b'}, (char[]) U("\u0080\u0002carray\narray\nq\u0000X\u0001\u0000\u0000\u0000uq\u0001]q\u0002(X\u0001\u0000\u0000\u0000aq\u0003X\u0001\u0000\u0000\u0000bq\u0004e\u0086q\u0005Rq\u0006."));
+		// python 2: array.array('d', [1.5, 2.5]) with protocol 2
+		assertArrayEquals(new double[] {1.5, 2.5}, (double[]) U("\u0080\u0002carray\narray\nq\u0000X\u0001\u0000\u0000\u0000dq\u0001]q\u0002(G?\u00f8\u0000\u0000\u0000\u0000\u0000\u0000G@\u0004\u0000\u0000\u0000\u0000\u0000\u0000e\u0086q\u0003Rq\u0004."), 0);
+
+		// a list that merely follows a string is still a normal list
+		Object[] tuple = (Object[]) U("\u0080\u0002X\u0001\u0000\u0000\u0000d]q\u0000K\u0001a\u0086.");
+		assertEquals("d", tuple[0]);
+		assertTrue(tuple[1] instanceof ArrayList);
+		// also when it follows the array constructor and a typecode, but isn't an argument of it
+		tuple = (Object[]) U("\u0080\u0002carray\narray\nX\u0001\u0000\u0000\u0000d]\u0087.");
+		assertEquals(3, tuple.length);
+		assertTrue(tuple[2] instanceof ArrayList);
+	}
+
+	@Test
+	public void testResolvedGlobalsAreShared() throws PickleException, IOException
+	{
+		Unpickler u = new Unpickler();
+		// a tuple of the same unregistered class twice, once with GLOBAL and once with STACK_GLOBAL
+		Object[] globals = (Object[]) u.loads(PickleUtils.str2bytes("\u0080\u0004cunpicklertest\nCachedGlobal\n\u008c\runpicklertest\u008c\u000cCachedGlobal\u0093\u0086."));
+		assertTrue(globals[0] instanceof ClassDictConstructor);
+		assertSame(globals[0], globals[1]);
+		Object[] again = (Object[]) u.loads(PickleUtils.str2bytes("\u0080\u0004cunpicklertest\nCachedGlobal\n\u008c\runpicklertest\u008c\u000cCachedGlobal\u0093\u0086."));
+		assertSame(globals[0], again[0]);
+
+		// registering a constructor invalidates the resolved globals
+		IObjectConstructor registered = new AnyClassConstructor(ComplexNumber.class);
+		Unpickler.registerConstructor("unpicklertest", "CachedGlobal", registered);
+		again = (Object[]) u.loads(PickleUtils.str2bytes("\u0080\u0004cunpicklertest\nCachedGlobal\n\u008c\runpicklertest\u008c\u000cCachedGlobal\u0093\u0086."));
+		assertSame(registered, again[0]);
+		assertSame(registered, again[1]);
+	}
+
+	@Test
+	public void testCachedReflection() throws PickleException, IOException
+	{
+		// the constructor is looked up per argument signature, alternating signatures must keep working
+		AnyClassConstructor constructor = new AnyClassConstructor(BigDecimal.class);
+		for(int i=0; i<3; ++i) {
+			assertEquals(new BigDecimal("1.5"), constructor.construct(new Object[] {"1.5"}));
+			assertEquals(new BigDecimal(BigInteger.TEN), constructor.construct(new Object[] {BigInteger.TEN}));
+			assertEquals(Double.NaN, constructor.construct(new Object[] {"NaN"}));
+		}
+		try {
+			constructor.construct(new Object[] {"1.5", "2.5"});
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			// ok
+		}
+		assertEquals(new BigDecimal("2.5"), constructor.construct(new Object[] {"2.5"}));
+		List<?> decimals = (List<?>) U("\u0080\u0002]q\u0000(cdecimal\nDecimal\nq\u0001X\u0001\u0000\u0000\u00001\u0085Rq\u0002h\u0001X\u0003\u0000\u0000\u0000NaN\u0085Rq\u0003h\u0001X\u0001\u0000\u0000\u00002\u0085Rq\u0004e.");
+		assertEquals(Arrays.asList(new BigDecimal(1), Double.NaN, new BigDecimal(2)), decimals);
+
+		// the __setstate__ method is looked up per class and state type, the state dict may or may not be a HashMap
+		byte[] pickle = PickleUtils.str2bytes("\u0080\u0002c__main__\nFoo\nq\u0000)\u0081q\u0001}q\u0002(X\u0001\u0000\u0000\u0000aq\u0003K\u0001X\u0001\u0000\u0000\u0000bq\u0004]q\u0005(K\u0001K\u0002eub.");
+		Unpickler plain = new Unpickler();
+		Unpickler primitive = new Unpickler();
+		primitive.setPrimitiveCollections(true);
+		for(int i=0; i<3; ++i) {
+			ClassDict obj = (ClassDict) plain.loads(pickle);
+			assertEquals(1, obj.get("a"));
+			obj = (ClassDict) primitive.loads(pickle);
+			assertEquals(1, obj.get("a"));
+			assertEquals(Arrays.asList(1, 2), obj.get("b"));
+		}
+	}
+
 	@Test
 	public void testArrayPython3() throws IOException, PickleException {
 		// python 3 array reconstructor
@@ -676,6 +783,71 @@ public class UnpicklerTest {
 		assertEquals("bufferdata2", result[1]);
 	}
 
+	@Test
+	public void testProtocol5BufferProvider() throws PickleException, IOException
+	{
+		// pickle.dumps([PickleBuffer(b'readonly data'), PickleBuffer(bytearray(b'writable'))], protocol=5, buffer_callback=...)
+		byte[] data = PickleUtils.str2bytes("\u0080\u0005\u0095\u0008\u0000\u0000\u0000\u0000\u0000\u0000\u0000]\u0094(\u0097\u0098\u0097e.");
+		ByteBuffer buffer1 = ByteBuffer.wrap("xxreadonly data".getBytes());
+		buffer1.position(2);
+		ByteBuffer buffer2 = ByteBuffer.allocateDirect(8);
+		buffer2.put("writable".getBytes());
+		buffer2.flip();
+
+		Unpickler u = new Unpickler();
+		List<?> result = (List<?>) u.loads(data, Arrays.asList(buffer1, buffer2));
+		assertEquals(2, result.size());
+		ByteBuffer view1 = (ByteBuffer) result.get(0);
+		ByteBuffer view2 = (ByteBuffer) result.get(1);
+		assertTrue(view1.isReadOnly());
+		assertFalse(view2.isReadOnly());
+		assertTrue(view2.isDirect());
+		assertArrayEquals("readonly data".getBytes(), PickleUtils.toBytes(view1));
+		assertArrayEquals("writable".getBytes(), PickleUtils.toBytes(view2));
+		view2.put(0, (byte) 'W');
+		assertEquals('W', buffer2.get(0));		// a view, not a copy
+		assertEquals(2, buffer1.position());
+
+		try {
+			u.load(new ByteArrayInputStream(data), Arrays.asList(buffer1));
+			fail("should give error");
+		} catch(PickleException x) {
+			assertTrue(x.getMessage().contains("not enough"));
+		}
+		try {
+			u.loads(data);
+			fail("should give error");
+		} catch(PickleException x) {
+			assertTrue(x.getMessage().contains("out-of-band"));
+		}
+
+		final List<ByteBuffer> buffers = Arrays.asList(buffer1, buffer2);
+		u.setBufferProvider(IBufferProvider.of(buffers));
+		result = (List<?>) u.loads(data);
+		assertEquals(2, result.size());
+	}
+
+	@Test
+	public void testProtocol5MappedBuffers() throws PickleException, IOException
+	{
+		byte[] data = PickleUtils.str2bytes("\u0080\u0005\u0095\u0008\u0000\u0000\u0000\u0000\u0000\u0000\u0000]\u0094(\u0097\u0098\u0097e.");
+		File file1 = File.createTempFile("pickletest", ".buf");
+		File file2 = File.createTempFile("pickletest", ".buf");
+		try {
+			Files.write(file1.toPath(), "first buffer".getBytes());
+			Files.write(file2.toPath(), "second buffer".getBytes());
+			Unpickler u = new Unpickler();
+			u.setBufferProvider(IBufferProvider.mapped(file1.toPath(), file2.toPath()));
+			List<?> result = (List<?>) u.loads(data);
+			assertArrayEquals("first buffer".getBytes(), PickleUtils.toBytes(result.get(0)));
+			assertArrayEquals("second buffer".getBytes(), PickleUtils.toBytes(result.get(1)));
+			assertTrue(((ByteBuffer) result.get(1)).isReadOnly());
+		} finally {
+			file1.delete();
+			file2.delete();
+		}
+	}
+
 	class OutOfBandUnpickler extends Unpickler {
 		int buffer_counter = 0;
 
@@ -686,6 +858,268 @@ public class UnpicklerTest {
 		}
 	}
 
+	@Test
+	public void testLoadFromStream() throws PickleException, IOException
+	{
+		Pickler p = new Pickler();
+		List<Object> list = new ArrayList<Object>();
+		for(int i=0; i<1000; ++i) {
+			list.add("item"+i);
+			list.add(i*1000);
+			list.add(i*1.5);
+		}
+		byte[] first = p.dumps(list);
+		byte[] second = p.dumps("second");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(first);
+		bos.write(second);
+		bos.write(42);
+		byte[] data = bos.toByteArray();
+
+		// mark/reset streams are read ahead, the surplus is given back at the end of the pickle
+		InputStream[] streams = new InputStream[] {
+			new ByteArrayInputStream(data),
+			new BufferedInputStream(new ByteArrayInputStream(data)),
+			new FilterInputStream(new ByteArrayInputStream(data)) {
+				@Override
+				public boolean markSupported() { return false; }
+			}
+		};
+		for(InputStream stream: streams) {
+			Unpickler u = new Unpickler();
+			assertEquals(list, u.load(stream));
+			assertEquals("second", u.load(stream));
+			assertEquals(42, stream.read());
+			assertEquals(-1, stream.read());
+		}
+	}
+
+	@Test
+	public void testLoadFromBufferAndFile() throws PickleException, IOException
+	{
+		Pickler p = new Pickler();
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", "value");
+		map.put("numbers", new double[] {1.1, 2.2, 3.3});
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		p.dump(map, bos);
+		p.dump("second", bos);
+		byte[] data = bos.toByteArray();
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		for(ByteBuffer buffer: new ByteBuffer[] {ByteBuffer.wrap(data), ByteBuffer.wrap(data).asReadOnlyBuffer(), direct}) {
+			Unpickler u = new Unpickler();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> result = (Map<String, Object>) u.load(buffer);
+			assertEquals("value", result.get("name"));
+			assertArrayEquals(new double[] {1.1, 2.2, 3.3}, (double[]) result.get("numbers"), 0.0);
+			assertEquals("second", u.load(buffer));
+			assertFalse(buffer.hasRemaining());
+		}
+
+		File file = File.createTempFile("pickletest", ".dat");
+		file.deleteOnExit();
+		try {
+			Files.write(file.toPath(), data);
+			@SuppressWarnings("unchecked")
+			Map<String, Object> result = (Map<String, Object>) new Unpickler().load(file.toPath());
+			assertEquals("value", result.get("name"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testReuse() throws PickleException, IOException
+	{
+		List<Object> list = new ArrayList<Object>();
+		for(int i=0; i<1000; ++i)
+			list.add("item"+(i%100));
+		byte[] big = new Pickler().dumps(list);
+		byte[] small = new Pickler().dumps("small");
+		Unpickler u = new Unpickler();
+		assertEquals(list, u.loads(big));
+		assertEquals("small", u.loads(small));
+		assertEquals(list, u.loads(big));
+		u.setRetainedCapacity(10);
+		assertEquals(list, u.loads(big));
+		assertEquals("small", u.loads(small));
+
+		// a failed load leaves stack and memo behind, the next load must not be affected by that
+		try {
+			u.loads(Arrays.copyOf(big, big.length/2));
+			fail("expected io error");
+		} catch (IOException x) {
+			// ok
+		}
+		assertEquals("small", u.loads(small));
+		u.reset();
+		assertEquals(list, u.loads(big));
+		u.close();
+		assertEquals(list, u.loads(big));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testStringCache() throws PickleException, IOException
+	{
+		List<Object> records = new ArrayList<Object>();
+		for(int i=0; i<100; ++i) {
+			Map<String, Object> record = new HashMap<String, Object>();
+			record.put(new String("key"), i);
+			record.put(new String("value"), "value"+i);
+			records.add(record);
+		}
+		byte[] data = new Pickler(false).dumps(records);   // no memo, so every key is in the pickle data
+		Unpickler u = new Unpickler();
+		assertNull(u.getStringCache());
+		List<Map<String, Object>> result = (List<Map<String, Object>>) u.loads(data);
+		assertEquals(records, result);
+		assertNotSame(result.get(0).keySet().iterator().next(), result.get(1).keySet().iterator().next());
+
+		u.setStringCache(StringCache.Mode.SHARED);
+		result = (List<Map<String, Object>>) u.loads(data);
+		assertEquals(records, result);
+		String key = null;
+		for(String k: result.get(0).keySet())
+			if(k.equals("key"))
+				key = k;
+		for(Map<String, Object> record: result) {
+			boolean found = false;
+			for(String k: record.keySet())
+				if(k == key)
+					found = true;
+			assertTrue(found);
+		}
+		StringCache cache = u.getStringCache();
+		assertEquals(2*99, cache.hits());
+		assertEquals(2+100, cache.misses());
+		List<Map<String, Object>> result2 = (List<Map<String, Object>>) u.loads(data);
+		assertTrue(result2.get(0).containsKey(key));
+		assertEquals(2*99+2*100+100, cache.hits());  // dict keys, and 100 short values that are now cached too
+
+		u.setStringCache(StringCache.Mode.PER_LOAD);
+		cache = u.getStringCache();
+		u.loads(data);
+		u.loads(data);
+		assertEquals(2*2*99, cache.hits());
+
+		u.setStringCache(StringCache.Mode.OFF);
+		assertNull(u.getStringCache());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testPrimitiveCollections() throws PickleException, IOException
+	{
+		Unpickler u = new Unpickler();
+		u.setPrimitiveCollections(true);
+
+		List<Object> ints = new ArrayList<Object>();
+		List<Object> doubles = new ArrayList<Object>();
+		Map<Integer, Object> dict = new HashMap<Integer, Object>();
+		for(int i=0; i<100; ++i) {
+			ints.add(i);
+			doubles.add(i*0.5);
+			dict.put(i, "value"+i);
+		}
+		PrimitiveList list = (PrimitiveList) u.loads(new Pickler().dumps(ints));
+		assertEquals(PrimitiveList.Kind.INT, list.kind());
+		assertEquals(ints, list);
+		assertEquals(99, list.getInt(99));
+		list = (PrimitiveList) u.loads(new Pickler().dumps(doubles));
+		assertEquals(PrimitiveList.Kind.DOUBLE, list.kind());
+		assertEquals(doubles, list);
+		assertEquals(49.5, list.getDouble(99), 0);
+		IntKeyMap map = (IntKeyMap) u.loads(new Pickler().dumps(dict));
+		assertTrue(map.isIntKeyed());
+		assertEquals(dict, map);
+		assertEquals("value42", map.get(42));
+
+		// a memoized list that widens while it is being filled
+		List<Object> result = (List<Object>) u.loads(PickleUtils.str2bytes("\u0080\u0002]q\u0000(]q\u0001(K\u0001K\u0002X\u0001\u0000\u0000\u0000xq\u0002eh\u0001e."));
+		assertEquals(2, result.size());
+		assertSame(result.get(0), result.get(1));
+		list = (PrimitiveList) result.get(0);
+		assertEquals(PrimitiveList.Kind.OBJECT, list.kind());
+		assertEquals(Arrays.asList(1, 2, "x"), list);
+		list = (PrimitiveList) u.loads(PickleUtils.str2bytes("\u0080\u0002]q\u0000(K\u0001\u008a\u0006\u0000\u0000\u0000\u0000\u0000\u0001K\u0003e."));
+		assertEquals(PrimitiveList.Kind.LONG, list.kind());		// ints that cross 2^31 stay primitive, as longs
+		assertEquals(Arrays.asList(1L, 1099511627776L, 3L), list);
+
+		// dict with mixed keys
+		map = (IntKeyMap) u.loads(PickleUtils.str2bytes("\u0080\u0002}q\u0000(K\u0001X\u0001\u0000\u0000\u0000aq\u0001X\u0001\u0000\u0000\u0000kq\u0002X\u0001\u0000\u0000\u0000bq\u0003u."));
+		assertFalse(map.isIntKeyed());
+		assertEquals("a", map.get(1));
+		assertEquals("b", map.get("k"));
+
+		// object state is given to __setstate__ as a HashMap
+		ClassDict obj = (ClassDict) u.loads(PickleUtils.str2bytes("\u0080\u0002c__main__\nFoo\nq\u0000)\u0081q\u0001}q\u0002(X\u0001\u0000\u0000\u0000aq\u0003K\u0001X\u0001\u0000\u0000\u0000bq\u0004]q\u0005(K\u0001K\u0002eub."));
+		assertEquals(1, obj.get("a"));
+		assertEquals(Arrays.asList(1, 2), obj.get("b"));
+	}
+
+	@Test
+	public void testIterateConcatenatedPickles() throws PickleException, IOException
+	{
+		Pickler p = new Pickler();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		List<Object> expected = new ArrayList<Object>();
+		for(int i=0; i<100; ++i) {
+			Map<String, Object> record = new HashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", "record"+i);
+			expected.add(record);
+			p.dump(record, bos);
+		}
+		p.dump(null, bos);
+		expected.add(null);
+		byte[] data = bos.toByteArray();
+
+		Unpickler u = new Unpickler();
+		Iterator<Object> it = u.iterate(new ByteArrayInputStream(data));
+		List<Object> result = new ArrayList<Object>();
+		while(it.hasNext())
+			result.add(it.next());
+		assertEquals(expected, result);
+		assertFalse(it.hasNext());
+		try {
+			it.next();
+			fail("expected NoSuchElementException");
+		} catch (NoSuchElementException x) {
+			// ok
+		}
+
+		assertEquals(101, u.stream(new ByteArrayInputStream(data)).count());
+		assertEquals(0, u.stream(new ByteArrayInputStream(new byte[0])).count());
+
+		// stream ending halfway a record
+		it = u.iterate(new ByteArrayInputStream(data, 0, data.length-3));
+		try {
+			while(it.hasNext())
+				it.next();
+			fail("expected io error");
+		} catch (UncheckedIOException x) {
+			// ok
+		}
+		assertFalse(it.hasNext());
+
+		// an invalid record ends the iteration, it doesn't continue halfway the record
+		byte[] broken = data.clone();
+		broken[40] = (byte) 0xff;
+		it = u.iterate(new ByteArrayInputStream(broken));
+		try {
+			while(it.hasNext())
+				it.next();
+			fail("expected PickleException");
+		} catch (PickleException x) {
+			// ok
+		}
+		assertFalse(it.hasNext());
+	}
+
 	@Test
     @Ignore("performancetest")
     public void testUnpicklingPerformance() throws PickleException, IOException {